@@ -0,0 +1,51 @@
+package com.myapp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// A session without a connection, every message queued for it is taken off again right away
+class BenchmarkSession extends ChatSession {
+
+    BenchmarkSession(ServerConfig config) {
+        super(config);
+    }
+
+    // Register a session under a username and move it to a room, without the server's console output
+    static BenchmarkSession inRoom(String username, String roomName, ServerConfig config) {
+        BenchmarkSession session = new BenchmarkSession(config);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            session.register(username);
+            if (!roomName.equals(RoomManager.DEFAULT_ROOM)) {
+                session.handleMessage("/join " + roomName);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        return session;
+    }
+
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    @Override
+    protected void messageQueued() {
+        // Stand in for a writer that keeps up, so the queue never fills and the measurement stays steady
+        OutboundMessage message = outboundQueue.poll();
+        if (message != null) {
+            message.written();
+        }
+    }
+
+    @Override
+    protected void closeConnection() {
+    }
+}
+
+/**
+ * BenchmarkSession is a ChatSession with no transport behind it, so the benchmarks can measure the
+ * chat logic (dispatch, routing, room fan-out, queueing) without sockets or threads getting in the
+ * way. What is queued for it is polled off at once, as an idle writer would.
+ */
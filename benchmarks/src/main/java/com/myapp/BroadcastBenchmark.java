@@ -0,0 +1,70 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int recipients;
+
+    // Whether the recipients speak the binary protocol, which frames the shared line once
+    @Param({"false", "true"})
+    private boolean binary;
+
+    private final List<BenchmarkSession> sessions = new ArrayList<>();
+    private BenchmarkSession sender;
+
+    @Setup
+    public void setUp() {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setRateLimitMessages(0).setRateLimitBytes(0);
+        sender = BenchmarkSession.inRoom("sender", "fanout", config);
+        sessions.add(sender);
+        for (int i = 0; i < recipients; i++) {
+            BenchmarkSession recipient = BenchmarkSession.inRoom("user" + i, "fanout", config);
+            recipient.setBinary(binary);
+            sessions.add(recipient);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BenchmarkSession session : sessions) {
+            session.closeEverything();
+        }
+        sessions.clear();
+    }
+
+    // One chat line from one member to every other member of the room
+    @Benchmark
+    public void broadcast() {
+        sender.broadcastMessage("sender: hello everyone, this is a typical chat line");
+    }
+}
+
+/**
+ * BroadcastBenchmark measures the cost of one chat line fanned out to a room of 10, 100 or 1000
+ * other members: encoding the line once, walking the member snapshot and queueing the shared
+ * message for each recipient. Divide by the number of recipients for the cost per delivery.
+ */
@@ -0,0 +1,72 @@
+package com.myapp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    // What the user typed, as Client.sendMessage is given it
+    @Param({"hello everyone", "/msg bob are you there?", "/list", "/rooms"})
+    private String input;
+
+    private BenchmarkSession alice;
+    private BenchmarkSession bob;
+    // The same input as a text client sends it and as a binary client frames it
+    private String line;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setRateLimitMessages(0).setRateLimitBytes(0);
+        alice = BenchmarkSession.inRoom("alice", "commands", config);
+        bob = BenchmarkSession.inRoom("bob", "commands", config);
+        line = "alice: " + input;
+        frame = ByteBuffer.wrap(Client.encodeFrame(input));
+    }
+
+    @TearDown
+    public void tearDown() {
+        alice.closeEverything();
+        bob.closeEverything();
+    }
+
+    // A line read by a text client's handler, parsed and dispatched
+    @Benchmark
+    public void textLine() {
+        alice.handleMessage(line);
+    }
+
+    // The same input from a binary client, decoded from its frame and dispatched on the type byte
+    @Benchmark
+    public void binaryFrame() {
+        ByteBuffer buffer = frame.duplicate();
+        alice.handleFrame(BinaryProtocol.decode(buffer));
+    }
+}
+
+/**
+ * CommandBenchmark measures what a session does with a line once it has been read off the socket:
+ * recognising a command and running it, or broadcasting the line when it is not one. Each input is
+ * measured both as a text line and as a binary frame. The room holds just alice and bob, so a chat
+ * line costs a single delivery and the numbers are dominated by parsing and dispatch.
+ */
@@ -0,0 +1,102 @@
+package com.myapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+    // Lines as a text client sends them: short and long chat, a chat line mentioning a command, and commands
+    @Param({
+        "alice: hello everyone",
+        "alice: has anyone seen the build logs from last night? the deploy failed halfway and nobody knows why",
+        "alice: type /msg bob to reach him",
+        "alice: /msg bob are you there?",
+        "alice: /rooms"
+    })
+    private String line;
+
+    private static final String USERNAME = "alice";
+    private final CommandArgs args = new CommandArgs();
+
+    @Setup
+    public void setUp() {
+        // Loading ChatSession registers the built-in commands
+        ChatSession.commands.names();
+    }
+
+    // What ChatSession did before the dispatcher: look for each command anywhere in the line, split for /msg
+    @Benchmark
+    public void substringMatching(Blackhole blackhole) {
+        if (line.contains("/msg")) {
+            String[] splitMessage = line.split(" ", 4);
+            blackhole.consume(splitMessage[2]);
+            blackhole.consume(splitMessage[3]);
+        } else if (line.contains("/list")) {
+            blackhole.consume(1);
+        } else if (line.contains("/join")) {
+            blackhole.consume(line.substring(line.indexOf("/join") + "/join".length()).trim());
+        } else if (line.contains("/leave")) {
+            blackhole.consume(2);
+        } else if (line.contains("/rooms")) {
+            blackhole.consume(3);
+        } else if (line.contains("/history")) {
+            blackhole.consume(line.substring(line.indexOf("/history") + "/history".length()).trim());
+        } else if (line.contains("/stats")) {
+            blackhole.consume(4);
+        } else {
+            blackhole.consume(line);
+        }
+    }
+
+    // The prefix dispatcher: skip the username, look up the first word in place, take the arguments /msg needs
+    @Benchmark
+    public void prefixDispatch(Blackhole blackhole) {
+        int start = -1;
+        if (line.startsWith("/")) {
+            start = 0;
+        } else if (line.startsWith(USERNAME) && line.startsWith(": /", USERNAME.length())) {
+            start = USERNAME.length() + 2;
+        }
+        if (start < 0) {
+            blackhole.consume(line);
+            return;
+        }
+        int nameEnd = line.indexOf(' ', start + 1);
+        if (nameEnd < 0) {
+            nameEnd = line.length();
+        }
+        CommandHandler handler = ChatSession.commands.find(line, start + 1, nameEnd);
+        blackhole.consume(handler);
+        if (line.startsWith("msg", start + 1)) {
+            args.reset(line, nameEnd);
+            blackhole.consume(args.next());
+            blackhole.consume(args.rest());
+        }
+    }
+}
+
+/**
+ * CommandParsingBenchmark compares the cost of telling commands from chat, without running either,
+ * between the substring matching ChatSession used to do and the CommandDispatcher. The old path scans
+ * a chat line once per command before deciding it is chat, so the long chat line costs the most, and
+ * it takes a chat line mentioning /msg for a private message. The dispatcher looks at the first word
+ * only. Run it with -prof gc to see the allocations /msg saves by not splitting the line.
+ */
@@ -0,0 +1,107 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+        "the", "server", "is", "down", "again", "anyone", "know", "why", "I", "think", "it", "was",
+        "the", "deploy", "yes", "no", "lol", "thanks", "can", "you", "check", "logs", "please", "just",
+    };
+
+    // What users paste: ordinary chat, a stack trace or log excerpt, or a block of code
+    @Param({"chat", "log", "code"})
+    private String content;
+
+    // Payload size in bytes, around the default threshold and well above it
+    @Param({"256", "1024", "8192"})
+    private int size;
+
+    private String text;
+    private byte[] compressedFrame;
+
+    @Setup
+    public void setUp() {
+        text = content(content, size);
+        byte[] frame = BinaryProtocol.encode(BinaryProtocol.CHAT, text);
+        compressedFrame = BinaryProtocol.compress(frame, 0);
+        // JMH reports the CPU cost, print what it buys once per trial
+        System.out.printf("%n%s %d: frame %d bytes, compressed %d bytes, %.0f%% saved%n", content, size,
+                frame.length, compressedFrame.length, 100.0 * (frame.length - compressedFrame.length) / frame.length);
+    }
+
+    // The plain frame, what every recipient gets without compression
+    @Benchmark
+    public byte[] encode() {
+        return BinaryProtocol.encode(BinaryProtocol.CHAT, text);
+    }
+
+    // The frame deflated, paid once per broadcast by the server and once per message by a client
+    @Benchmark
+    public byte[] encodeCompressed() {
+        return BinaryProtocol.compress(BinaryProtocol.encode(BinaryProtocol.CHAT, text), 0);
+    }
+
+    // Inflating a received frame, paid by every compressed recipient
+    @Benchmark
+    public String decodeCompressed() throws IOException {
+        return BinaryProtocol.inflate(BinaryProtocol.decode(ByteBuffer.wrap(compressedFrame))).text();
+    }
+
+    // Deterministic text of about the given size in bytes
+    private static String content(String kind, int size) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 128);
+        int line = 0;
+        while (text.length() < size) {
+            switch (kind) {
+                case "chat":
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                    break;
+                case "log":
+                    text.append(String.format("2026-10-18T12:%02d:%02d.%03dZ %s [worker-%d] com.myapp.Service - request %d took %d ms%n",
+                            line / 60 % 60, line % 60, random.nextInt(1000), random.nextInt(10) == 0 ? "WARN " : "INFO ",
+                            random.nextInt(8), random.nextInt(100_000), random.nextInt(500)));
+                    break;
+                case "code":
+                    text.append(String.format("        if (value%d == null) {%n            throw new IllegalArgumentException(\"value%d is required\");%n        }%n        total += value%d.size();%n",
+                            line, line, line));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown content " + kind);
+            }
+            line++;
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * CompressionBenchmark weighs the bandwidth compression saves against the CPU it costs, for chat
+ * lines, log excerpts and code blocks of 256 bytes to 8 KB. The setup prints how much smaller each
+ * frame gets. encode is the plain framing for comparison, encodeCompressed the deflate a sender pays
+ * once per message, and decodeCompressed the inflate every compressed recipient pays.
+ */
@@ -0,0 +1,73 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateMessageBenchmark {
+    private static final int ROOM_SIZE = 100;
+
+    // Connected users, the lookup should not depend on it
+    @Param({"10", "1000", "10000"})
+    private int users;
+
+    private final List<BenchmarkSession> sessions = new ArrayList<>();
+    private BenchmarkSession sender;
+    private String[] recipients;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setRateLimitMessages(0).setRateLimitBytes(0);
+        recipients = new String[users];
+        for (int i = 0; i < users; i++) {
+            recipients[i] = "user" + i;
+            // Spread the users over rooms, so setting up does not announce every join to everyone
+            sessions.add(BenchmarkSession.inRoom(recipients[i], "room" + i / ROOM_SIZE, config));
+        }
+        sender = BenchmarkSession.inRoom("sender", "sender", config);
+        sessions.add(sender);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BenchmarkSession session : sessions) {
+            session.closeEverything();
+        }
+        sessions.clear();
+    }
+
+    // One /msg, routed to a different recipient each time
+    @Benchmark
+    public void message() {
+        String recipient = recipients[next];
+        next = next + 1 == recipients.length ? 0 : next + 1;
+        sender.message(recipient, "are you there?");
+    }
+}
+
+/**
+ * PrivateMessageBenchmark measures routing a private message to one user among 10, 1000 or 10000
+ * connected ones: looking the recipient up in the ClientRegistry, encoding the line and queueing it.
+ * The time should stay flat as the number of users grows.
+ */
@@ -0,0 +1,79 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomsBenchmark {
+    private static final int ROOM_SIZE = 10;
+
+    // Connected users, in rooms of ten: 10k users are 1k rooms
+    @Param({"1000", "10000"})
+    private int users;
+
+    private final List<BenchmarkSession> sessions = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setRateLimitMessages(0).setRateLimitBytes(0);
+        for (int i = 0; i < users; i++) {
+            sessions.add(BenchmarkSession.inRoom("user" + i, "room" + i / ROOM_SIZE, config));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BenchmarkSession session : sessions) {
+            session.closeEverything();
+        }
+        sessions.clear();
+    }
+
+    private BenchmarkSession nextSession() {
+        BenchmarkSession session = sessions.get(next);
+        next = next + 1 == sessions.size() ? 0 : next + 1;
+        return session;
+    }
+
+    // A chat line to the sender's room, which should cost the same however many rooms there are
+    @Benchmark
+    public void roomBroadcast() {
+        nextSession().broadcastMessage("hello room");
+    }
+
+    // Leave for a room of one's own and come back, two joins, two leaves and four announcements
+    @Benchmark
+    public void joinAndReturn() {
+        BenchmarkSession session = nextSession();
+        String home = session.getRoom().getName();
+        session.handleMessage("/join elsewhere-" + session.getClientUsername());
+        session.handleMessage("/join " + home);
+    }
+}
+
+/**
+ * RoomsBenchmark checks that rooms keep the work of a chat line proportional to the room rather
+ * than to the server: with 1000 or 10000 users in rooms of ten, a broadcast and a round trip to
+ * another room should take the same time.
+ */
@@ -0,0 +1,114 @@
+package com.myapp;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    private static final String MESSAGE = "ping";
+    private static final String EXPECTED = "sender: " + MESSAGE;
+
+    // The server engine, see ServerConfig.Mode; virtual needs the benchmarks built and run on Java 21
+    @Param({"blocking", "nio"})
+    private String mode;
+
+    @Param({"false", "true"})
+    private boolean binary;
+
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private Server server;
+    private NioServer nioServer;
+    private Client sender;
+    private Client receiver;
+
+    @Setup
+    public void setUp() throws Exception {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setMode(ServerConfig.Mode.valueOf(mode.toUpperCase()))
+                .setRateLimitMessages(0).setRateLimitBytes(0);
+        int port;
+        Runnable accept;
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            nioServer = new NioServer(channel, config.setEventLoops(1));
+            accept = nioServer::startServer;
+        } else {
+            ServerSocket serverSocket = new ServerSocket(0);
+            port = serverSocket.getLocalPort();
+            server = new Server(serverSocket, config.getMode() == ServerConfig.Mode.VIRTUAL
+                    ? ServerExecutors.virtualThreadPerTask() : ServerExecutors.platformThreadPerTask(), config);
+            accept = server::startServer;
+        }
+        Thread acceptor = new Thread(accept, "benchmark-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        receiver = new Client("receiver", "localhost", port, binary);
+        receiver.onMessageReceived(received::offer);
+        receiver.connect().join();
+        sender = new Client("sender", "localhost", port, binary);
+        sender.connect().join();
+        while (ChatSession.registry.size() < 2) {
+            Thread.sleep(10);
+        }
+        // Let the join announcements arrive before measuring
+        Thread.sleep(200);
+        received.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.closeEverything();
+        receiver.closeEverything();
+        if (server != null) {
+            server.close();
+        }
+        if (nioServer != null) {
+            nioServer.close();
+        }
+    }
+
+    // One chat line from sender to receiver through the server and back out of the receiver's listener
+    @Benchmark
+    public String roundTrip() throws Exception {
+        sender.sendMessage(MESSAGE);
+        String message;
+        do {
+            message = received.poll(5, TimeUnit.SECONDS);
+            if (message == null) {
+                throw new IllegalStateException("no reply from the server");
+            }
+        } while (!message.equals(EXPECTED));
+        return message;
+    }
+}
+
+/**
+ * RoundTripBenchmark measures the latency of a chat line over loopback: Client.sendMessage, the
+ * server reading, broadcasting and writing it, and the receiving Client's I/O thread handing it to
+ * the message callback. It runs against an in-process server for each engine and for both wire protocols, so the
+ * engines can be compared under the same conditions.
+ */
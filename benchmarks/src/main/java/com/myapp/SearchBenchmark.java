@@ -0,0 +1,90 @@
+package com.myapp;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    // Lines in the index, all of them retained
+    @Param({"1000000"})
+    private int messages;
+
+    private static final String[] ROOMS = {"lobby", "dev", "ops", "random"};
+    private static final int VOCABULARY = 20_000;
+    private static final int WORDS_PER_LINE = 12;
+    private static final int RESULTS = 10;
+
+    private SearchIndex index;
+
+    @Setup
+    public void setUp() {
+        index = new SearchIndex(messages, TimeUnit.DAYS.toMillis(1));
+        SplittableRandom random = new SplittableRandom(42);
+        long now = System.currentTimeMillis();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            line.setLength(0);
+            line.append("user").append(random.nextInt(500)).append(':');
+            for (int w = 0; w < WORDS_PER_LINE; w++) {
+                line.append(' ').append(word(random));
+            }
+            index.indexNow(ROOMS[i % ROOMS.length], line.toString(), now);
+        }
+    }
+
+    // Words follow a rough Zipf distribution, as in real chat: a few are everywhere, most are rare
+    private static String word(SplittableRandom random) {
+        int rank = (int) Math.pow(VOCABULARY, random.nextDouble());
+        return "w" + rank;
+    }
+
+    // A word in most lines, the walk stops after the first few
+    @Benchmark
+    public Object commonWord() {
+        return index.search("lobby", "w1", RESULTS);
+    }
+
+    // A word in a few hundred lines of the room
+    @Benchmark
+    public Object rareWord() {
+        return index.search("lobby", "w9000", RESULTS);
+    }
+
+    // Two words that are seldom in the same line, the worst case: the whole shorter list is walked
+    @Benchmark
+    public Object twoRareWords() {
+        return index.search("lobby", "w5000 w7000", RESULTS);
+    }
+
+    // A common and a middling word together
+    @Benchmark
+    public Object commonAndMiddling() {
+        return index.search("dev", "w2 w300", RESULTS);
+    }
+}
+
+/**
+ * SearchBenchmark measures /search lookups on a SearchIndex holding a million chat lines of twelve
+ * words each, drawn from a skewed vocabulary of 20000 words over four rooms. The index is filled
+ * synchronously in setUp, so what is measured is the lookup alone: splitting the query, finding the
+ * posting lists and intersecting them newest first. Lookups should stay well under a millisecond;
+ * the two rare words are the slowest case, since few or none of the ids in the shorter list match.
+ */
@@ -0,0 +1,93 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedBroadcastBenchmark {
+
+    // Broadcasts published before waiting for the shards to finish them
+    private static final int BATCH = 64;
+
+    // 0 fans out on the sending thread, as without --broadcast-shards; run with up to one shard per core
+    @Param({"0", "1", "2", "4", "8"})
+    private int shards;
+
+    @Param({"1000"})
+    private int recipients;
+
+    private final List<BenchmarkSession> sessions = new ArrayList<>();
+    private BenchmarkSession sender;
+    private BroadcastShards broadcastShards;
+
+    @Setup
+    public void setUp() {
+        if (shards > 0) {
+            broadcastShards = new BroadcastShards(shards, 4096);
+            broadcastShards.startThreads();
+            ChatSession.setBroadcastShards(broadcastShards);
+        }
+        ServerConfig config = new ServerConfig().setRateLimitMessages(0).setRateLimitBytes(0);
+        sender = BenchmarkSession.inRoom("sender", "sharded", config);
+        sessions.add(sender);
+        for (int i = 0; i < recipients; i++) {
+            sessions.add(BenchmarkSession.inRoom("user" + i, "sharded", config));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BenchmarkSession session : sessions) {
+            session.closeEverything();
+        }
+        sessions.clear();
+        ChatSession.setBroadcastShards(null);
+        if (broadcastShards != null) {
+            broadcastShards.close();
+        }
+    }
+
+    // Broadcasts fanned out to every member per second, multiply by the recipients for deliveries per second
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void broadcast() {
+        for (int i = 0; i < BATCH; i++) {
+            sender.broadcastMessage("sender: hello everyone, this is a typical chat line");
+        }
+        if (broadcastShards != null) {
+            // Count a broadcast once every shard has queued it, not when it was published
+            while (broadcastShards.backlog() > 0) {
+                Thread.yield();
+            }
+        }
+    }
+}
+
+/**
+ * ShardedBroadcastBenchmark measures how the fan-out of chat lines to a room of 1000 members scales
+ * with the number of BroadcastShards, against the single loop on the sending thread (shards = 0).
+ * One thread publishes batches of 64 broadcasts and waits until every shard has queued them for its
+ * members, so the score is complete broadcasts per second. With one shard per core the score should
+ * grow with the core count until the publisher, or memory bandwidth, becomes the limit; with more
+ * shards than cores it only adds hand-off cost.
+ */
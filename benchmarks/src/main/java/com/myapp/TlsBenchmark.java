@@ -0,0 +1,159 @@
+package com.myapp;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    // Lines sent back to back by burst(), fewer than an outbound queue holds
+    private static final int BURST = 256;
+    private static final String LINE = "a chat line of about the usual length, sent over and over to fill the pipe";
+    private static final String EXPECTED = "sender: " + LINE;
+
+    @Param({"blocking", "nio"})
+    private String mode;
+
+    // Plaintext, TLS resuming the cached session on every connect, or TLS forgetting it for a full handshake
+    @Param({"plain", "tls", "tls-full"})
+    private String transport;
+
+    private final BlockingQueue<String> announcements = new LinkedBlockingQueue<>();
+    private final Semaphore linesReceived = new Semaphore(0);
+    private TlsContext clientTls;
+    private Server server;
+    private NioServer nioServer;
+    private int port;
+    private Client sender;
+    private Client receiver;
+    private int probes;
+
+    @Setup
+    public void setUp() throws Exception {
+        // No rate limits, the benchmark sends as fast as it can from one session
+        ServerConfig config = new ServerConfig().setMode(ServerConfig.Mode.valueOf(mode.toUpperCase()))
+                .setRateLimitMessages(0).setRateLimitBytes(0).setTls(!transport.equals("plain"));
+        clientTls = config.isTls() ? TlsContext.localClient() : null;
+        Runnable accept;
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            nioServer = new NioServer(channel, config.setEventLoops(1));
+            accept = nioServer::startServer;
+        } else {
+            ServerSocket serverSocket = config.isTls() ? TlsContext.server(config).serverSocket() : new ServerSocket();
+            serverSocket.bind(new InetSocketAddress("localhost", 0));
+            port = serverSocket.getLocalPort();
+            server = new Server(serverSocket, ServerExecutors.platformThreadPerTask(), config);
+            accept = server::startServer;
+        }
+        Thread acceptor = new Thread(accept, "benchmark-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        receiver = connect("receiver");
+        receiver.onMessageReceived(message -> {
+            if (message.equals(EXPECTED)) {
+                linesReceived.release();
+            } else {
+                announcements.offer(message);
+            }
+        });
+        receiver.connect().join();
+        sender = connect("sender");
+        sender.connect().join();
+        while (ChatSession.registry.size() < 2) {
+            Thread.sleep(10);
+        }
+        // Let the join announcements arrive before measuring
+        Thread.sleep(200);
+        announcements.clear();
+    }
+
+    private Client connect(String username) {
+        Client client = new Client(username, "localhost", port);
+        client.setTls(clientTls);
+        return client;
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%ntls handshakes: %d full, %d resumed%n",
+                ServerMetrics.tlsFullHandshakes(), ServerMetrics.tlsResumedHandshakes());
+        sender.closeEverything();
+        receiver.closeEverything();
+        if (server != null) {
+            server.close();
+        }
+        if (nioServer != null) {
+            nioServer.close();
+        }
+    }
+
+    // Throughput: lines sent back to back, through the server, to the receiver's callback; the score is per line
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            sender.sendMessage(LINE);
+        }
+        if (!linesReceived.tryAcquire(BURST, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("the burst did not arrive");
+        }
+    }
+
+    // Connect latency: a new client connects, shakes hands and is announced to the receiver
+    @Benchmark
+    public String connect() throws Exception {
+        if (transport.equals("tls-full")) {
+            clientTls.forgetSessions();
+        }
+        String username = "probe" + probes++;
+        String expected = "SERVER: " + username + " has entered the chat!";
+        Client probe = connect(username);
+        probe.connect().join();
+        try {
+            String message;
+            do {
+                message = announcements.poll(5, TimeUnit.SECONDS);
+                if (message == null) {
+                    throw new IllegalStateException("the new client was not announced");
+                }
+            } while (!message.equals(expected));
+            return message;
+        } finally {
+            probe.closeEverything();
+        }
+    }
+}
+
+/**
+ * TlsBenchmark compares plaintext and TLS over loopback, for both server engines: burst() the cost
+ * per chat line once connected, and connect() the time from a new Client to its session being
+ * announced, handshakes included. With tls the client offers the session it cached, as a reconnect
+ * after a restart would; tls-full forgets it first, so every connect pays for the key exchange and
+ * certificate check. The tear-down prints how many handshakes the server saw as full and resumed.
+ */
@@ -1,5 +1,6 @@
 package com.myapp;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -17,20 +18,31 @@ import java.util.concurrent.TimeUnit;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class App extends Application {
+    // How many lines the chat view keeps, older ones are dropped
+    private static final int SCROLLBACK_LINES = 5000;
 
     private Client chatClient;
     private ExecutorService executorService = Executors.newFixedThreadPool(2);
-    private TextArea chatArea;
+    // Lines received from the server, waiting for the next pulse to be shown
+    private final Queue<String> incoming = new ConcurrentLinkedQueue<>();
+    private final ScrollbackList chatLines = new ScrollbackList(SCROLLBACK_LINES);
+    private ListView<String> chatArea;
+    private AnimationTimer chatRenderer;
     private TextField messageField;
     private VBox sidebar;
     private String host;
     private int port;
     private boolean isHost;
+    private boolean binaryProtocol;
 
     private void showStartupDialog(Stage primaryStage) {
         // Create the custom dialog.
@@ -53,12 +65,14 @@ public class App extends Application {
         portField.setPromptText("Port");
         CheckBox isHostCheckBox = new CheckBox("Host Server");
         isHostCheckBox.setSelected(true);
+        CheckBox binaryCheckBox = new CheckBox("Use binary protocol");
 
         grid.add(new Label("Host:"), 0, 0);
         grid.add(hostField, 1, 0);
         grid.add(new Label("Port:"), 0, 1);
         grid.add(portField, 1, 1);
         grid.add(isHostCheckBox, 0, 2, 2, 1);
+        grid.add(binaryCheckBox, 0, 3, 2, 1);
 
         dialog.getDialogPane().setContent(grid);
 
@@ -79,6 +93,7 @@ public class App extends Application {
             this.host = hostPort.getKey();
             this.port = hostPort.getValue();
             this.isHost = isHostCheckBox.isSelected();
+            this.binaryProtocol = binaryCheckBox.isSelected();
 
             if (this.isHost) {
                 startServer(this.port);
@@ -96,10 +111,17 @@ public class App extends Application {
 
     public void setupPrimaryStage(Stage primaryStage) {
 
-        // Chat area setup
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setMouseTransparent(true);
+        // Chat area setup, a ListView only renders the lines that are visible
+        chatArea = new ListView<>(chatLines);
+        chatArea.setFocusTraversable(false);
+        // Show whatever arrived since the last frame, once per pulse
+        chatRenderer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drainIncoming();
+            }
+        };
+        chatRenderer.start();
 
         // Input field setup
         messageField = new TextField();
@@ -125,11 +147,21 @@ public class App extends Application {
 
         Label sidebarLabel = new Label("Commands:");
         Label sidebarLabel2 = new Label("/msg <username> <message> \nSend a private message to that user");
-        Label sidebarLabel3 = new Label("/list \nList all users in the chat");
+        Label sidebarLabel3 = new Label("/list \nList all users in your room");
+        Label sidebarLabel4 = new Label("/join <room> \nMove to that room, creating it if needed");
+        Label sidebarLabel5 = new Label("/leave \nGo back to the lobby");
+        Label sidebarLabel6 = new Label("/rooms \nList all rooms");
+        Label sidebarLabel7 = new Label("/history <count> \nShow earlier messages of your room");
+        Label sidebarLabel8 = new Label("/stats \nShow server statistics");
 
         sidebar.getChildren().add(sidebarLabel);
         sidebar.getChildren().add(sidebarLabel2);
         sidebar.getChildren().add(sidebarLabel3);
+        sidebar.getChildren().add(sidebarLabel4);
+        sidebar.getChildren().add(sidebarLabel5);
+        sidebar.getChildren().add(sidebarLabel6);
+        sidebar.getChildren().add(sidebarLabel7);
+        sidebar.getChildren().add(sidebarLabel8);
 
         // Root layout containing both chatLayout and sidebar
         HBox rootLayout = new HBox(10, chatLayout, sidebar);
@@ -156,24 +188,37 @@ public class App extends Application {
     }
 
     private void connectToServer(String username) {
-        try {
-            if (username.length() < 1) {
-                showErrorAndExit("You need to enter a username.");
-            }
-            chatClient = new Client(username, this.host, this.port);
-    
-            chatClient.onMessageReceived(message -> {
-                Platform.runLater(() -> {
-                    chatArea.appendText(message + "\n");
-                });
-            });
-            chatClient.startMessageListener();
-        } catch (IOException e) {
-            showErrorAndExit("Could not connect to the server. Please try again later.");
+        if (username.length() < 1) {
+            showErrorAndExit("You need to enter a username.");
         }
+        chatClient = new Client(username, this.host, this.port, this.binaryProtocol);
 
+        // Called on the client's I/O thread, the message is picked up by the next pulse
+        chatClient.onMessageReceived(incoming::add);
+        chatClient.connect().exceptionally(e -> {
+            showErrorAndExit("Could not connect to the server. Please try again later.");
+            return null;
+        });
     }
     
+    // Move the lines received since the last pulse into the chat view, runs on the JavaFX thread
+    private void drainIncoming() {
+        if (incoming.isEmpty()) {
+            return;
+        }
+        ArrayDeque<String> batch = new ArrayDeque<>();
+        String line;
+        while ((line = incoming.poll()) != null) {
+            if (batch.size() == chatLines.capacity()) {
+                // It would scroll out of view before it is ever shown
+                batch.pollFirst();
+            }
+            batch.add(line);
+        }
+        chatLines.appendAll(new ArrayList<>(batch));
+        chatArea.scrollTo(chatLines.size() - 1);
+    }
+
     private void showErrorAndExit(String errorMessage) {
         // Alert must be created and shown in the JavaFX Application thread
         Platform.runLater(() -> {
@@ -190,22 +235,21 @@ public class App extends Application {
 
     private void sendMessage(String message) {
         if (chatClient != null && !message.isEmpty()) {
-            try {
-                chatClient.sendMessage(message); // Send the message through the Client instance
-                final String formattedMessage = "Me: " + message + "\n"; // Format the message to indicate it's from the current user
-                Platform.runLater(() -> {
-                    chatArea.appendText(formattedMessage); // Append the message to the chat area
-                });
-                messageField.clear(); // Clear the input field for new messages
-            } catch (IOException e) {
-                // Handle exception (e.g., show error dialog to the user)
-                e.printStackTrace();
-            }
+            // Queue the message without waiting for the network, a failure is shown in the chat
+            chatClient.sendMessage(message).exceptionally(e -> {
+                incoming.add("CLIENT: could not send \"" + message + "\": " + e.getMessage());
+                return null;
+            });
+            incoming.add("Me: " + message); // Show the message as coming from the current user
+            messageField.clear(); // Clear the input field for new messages
         }
     }
     
     @Override
     public void stop() {
+        if (chatRenderer != null) {
+            chatRenderer.stop();
+        }
         if (chatClient != null) {
             chatClient.closeEverything();
         }
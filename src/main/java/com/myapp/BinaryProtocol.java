@@ -0,0 +1,234 @@
+package com.myapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class BinaryProtocol {
+    // Sent by a binary client before anything else; no text client starts a line with a zero byte
+    public static final byte[] PREAMBLE = {0, 'C', 'H', 1};
+
+    // Frame types
+    public static final byte HELLO = 1; // client to server: the username
+    public static final byte CHAT = 2; // client to server: a chat line; server to client: a line to show
+    public static final byte PRIVATE = 3; // client to server: recipient and text; server to client: a line to show
+    public static final byte LIST = 4; // client to server: list the room; server to client: the list
+    public static final byte SYSTEM = 5; // server to client: a notice
+    public static final byte COMMAND = 6; // client to server: any other slash command, as text
+    public static final byte COMPRESS = 7; // client to server: asks for compression; server to client: agrees to it
+    public static final byte PING = 8; // either way: are you still there, answered with a PONG
+    public static final byte PONG = 9; // either way: the answer to a PING
+    public static final byte RECONNECT = 10; // server to client: about to close, reconnect after the delay given, or never if negative
+    // Set on the type byte of a frame whose payload is deflated, see Compression
+    public static final byte COMPRESSED = (byte) 0x80;
+
+    private BinaryProtocol() {
+    }
+
+    // Encode a frame: one type byte, the payload length as a varint, then the payload
+    public static byte[] encode(byte type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[1 + varintSize(length) + length];
+        frame[0] = type;
+        int position = writeVarint(frame, 1, length);
+        System.arraycopy(payload, offset, frame, position, length);
+        return frame;
+    }
+
+    public static byte[] encode(byte type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return encode(type, payload, 0, payload.length);
+    }
+
+    public static byte[] encodePrivate(String target, String text) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[varintSize(targetBytes.length) + targetBytes.length + textBytes.length];
+        int position = writeVarint(payload, 0, targetBytes.length);
+        System.arraycopy(targetBytes, 0, payload, position, targetBytes.length);
+        System.arraycopy(textBytes, 0, payload, position + targetBytes.length, textBytes.length);
+        return encode(PRIVATE, payload, 0, payload.length);
+    }
+
+    // Deflate the payload of an encoded frame if it is at least threshold bytes long and gets smaller,
+    // otherwise return the frame as it is
+    public static byte[] compress(byte[] frame, int threshold) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        byte type = buffer.get();
+        int length = readVarint(buffer);
+        if (length < threshold || (type & COMPRESSED) != 0) {
+            return frame;
+        }
+        byte[] deflated = Compression.deflate(frame, buffer.position(), length);
+        if (deflated == null) {
+            return frame;
+        }
+        return encode((byte) (type | COMPRESSED), deflated, 0, deflated.length);
+    }
+
+    // The frame with its payload inflated, or the frame itself if it was not compressed
+    public static Frame inflate(Frame frame) throws IOException {
+        if (!frame.isCompressed()) {
+            return frame;
+        }
+        byte[] payload = frame.payload();
+        return new Frame((byte) (frame.type() & ~COMPRESSED), Compression.inflate(payload, 0, payload.length));
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Write an unsigned varint, seven bits per byte with the high bit set on all but the last
+    public static int writeVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    // Read a varint, returns -1 and leaves the position alone if the buffer does not hold all of it
+    public static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int start = buffer.position();
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return -1;
+            }
+            byte b = buffer.get();
+            if (shift == 28 && (b & 0x78) != 0) {
+                // More than 31 bits, no frame is that long
+                throw new IllegalArgumentException("Malformed varint");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    // Decode the next frame from the buffer, returns null if it is not complete yet
+    public static Frame decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        byte type = buffer.get();
+        int length = readVarint(buffer);
+        if (length < 0 || buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new Frame(type, payload);
+    }
+
+    // Bytes needed before the frame at the buffer's position can be decoded, or -1 if not known yet
+    public static int frameSize(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return -1;
+        }
+        buffer.get();
+        int length = readVarint(buffer);
+        int headerSize = buffer.position() - start;
+        buffer.position(start);
+        return length < 0 ? -1 : headerSize + length;
+    }
+
+    // Read the next frame from a stream, returns null at the end of the stream
+    public static Frame read(InputStream in) throws IOException {
+        return read(in, Integer.MAX_VALUE);
+    }
+
+    // Read the next frame, skipping it with a MessageTooLargeException if its payload is over the limit
+    public static Frame read(InputStream in, int maxPayload) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed inside a frame header");
+            }
+            if (shift >= 35 || (shift == 28 && (b & 0x78) != 0)) {
+                throw new IOException("Malformed varint");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > maxPayload) {
+            // Skip it unread, the next frame starts right after it
+            skipFully(in, length);
+            throw new MessageTooLargeException(length, maxPayload);
+        }
+        byte[] payload = in.readNBytes(length);
+        if (payload.length < length) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+        return new Frame((byte) type, payload);
+    }
+
+    // Skip exactly count bytes, InputStream.skip may skip fewer even before the end of the stream
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip gives no way to tell the end of the stream apart, read a byte to find out
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed inside a frame");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // Check the rest of the preamble after its leading zero byte has been read
+    public static void readPreamble(InputStream in) throws IOException {
+        byte[] rest = in.readNBytes(PREAMBLE.length - 1);
+        for (int i = 1; i < PREAMBLE.length; i++) {
+            if (rest.length < i || rest[i - 1] != PREAMBLE[i]) {
+                throw new IOException("Unsupported protocol preamble");
+            }
+        }
+    }
+
+    // The preamble and HELLO frame a binary client opens its connection with
+    public static byte[] handshake(String username) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(PREAMBLE);
+        out.writeBytes(encode(HELLO, username));
+        return out.toByteArray();
+    }
+}
+
+/**
+ * BinaryProtocol is the compact alternative to newline separated text.
+ *
+ * A binary client opens with a four byte preamble starting with a zero byte, which no text client
+ * sends, followed by a HELLO frame with its username. Every frame is a type byte, the payload length
+ * as a varint and the payload. The username is sent once instead of with every line, and commands
+ * have their own frame types, so the server dispatches on the type byte instead of scanning and
+ * splitting strings. Text clients keep working unchanged on the same port.
+ *
+ * A client may also send a COMPRESS frame to have large payloads deflated in both directions. A
+ * compressed frame has the COMPRESSED bit set on its type byte and is otherwise framed the same way,
+ * so it can be read and skipped without inflating it.
+ */
@@ -0,0 +1,311 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class BroadcastShards {
+    // Busy-wait this many times for the next broadcast before parking
+    private static final int SPIN_TRIES = 200;
+    // How long a publisher parks between looks while the ring is full
+    private static final long FULL_PARK_NANOS = 10_000;
+
+    // The broadcasts, reused in place; slot i holds the sequences equal to i modulo the ring's size
+    private final Slot[] slots;
+    private final int mask;
+    // The sequence last published in each slot, -1 until the first one; shards only read a slot once it is there
+    private final AtomicLongArray published;
+    // The last sequence claimed by a publisher
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // A lower bound on what every shard has finished, so publishers rarely need to look at each shard
+    private volatile long finishedCache = -1;
+    private final Shard[] shards;
+    private final LongAdder fullWaits = new LongAdder();
+    private final LongAdder inlineFallbacks = new LongAdder();
+    private volatile boolean closed;
+
+    BroadcastShards(int shardCount, int ringSize) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("The ring size must be a power of two: " + ringSize);
+        }
+        slots = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new Slot();
+        }
+        mask = ringSize - 1;
+        published = new AtomicLongArray(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            published.set(i, -1);
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    // Start the shards as configured, null if --broadcast-shards leaves broadcasting to the sending thread
+    public static BroadcastShards start(ServerConfig config) {
+        if (config.getBroadcastShards() == 0) {
+            return null;
+        }
+        BroadcastShards broadcastShards = new BroadcastShards(config.getBroadcastShards(), config.getBroadcastRingSize());
+        broadcastShards.startThreads();
+        return broadcastShards;
+    }
+
+    void startThreads() {
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    // Hand a broadcast to every shard, waiting while the ring is full; returns false instead of waiting when
+    // called from a shard, which would be waiting on itself, and the caller then fans the message out itself
+    public boolean publish(Room target, OutboundMessage message, ChatSession sender, long start) {
+        return publish(target, null, message, sender, start);
+    }
+
+    // Hand a line for one session to the shard that owns its partition, behind the broadcasts published
+    // before it; returns false like publish, and the caller then queues it itself
+    public boolean publishTo(ChatSession recipient, OutboundMessage message) {
+        return publish(null, recipient, message, null, 0);
+    }
+
+    private boolean publish(Room target, ChatSession recipient, OutboundMessage message, ChatSession sender, long start) {
+        long sequence = claim();
+        if (sequence < 0) {
+            inlineFallbacks.increment();
+            return false;
+        }
+        int index = (int) sequence & mask;
+        Slot slot = slots[index];
+        slot.target = target;
+        slot.recipient = recipient;
+        slot.message = message;
+        slot.sender = sender;
+        slot.start = start;
+        slot.recipients.set(0);
+        slot.remaining.set(shards.length);
+        // A volatile write, so whatever a shard sees here it sees the slot's fields with it
+        published.set(index, sequence);
+        for (Shard shard : shards) {
+            if (shard.parked) {
+                LockSupport.unpark(shard.thread);
+            }
+        }
+        return true;
+    }
+
+    // Claim the next sequence once its slot is free, or -1 if the ring is full and the caller is a shard
+    private long claim() {
+        int tries = 0;
+        while (true) {
+            long current = claimed.get();
+            long next = current + 1;
+            // The slot still holds next - size, which every shard must be done with
+            long wrapPoint = next - slots.length;
+            if (wrapPoint > finishedCache) {
+                long finished = finishedByAll();
+                finishedCache = finished;
+                if (wrapPoint > finished) {
+                    if (inShard()) {
+                        return -1;
+                    }
+                    if (tries++ == 0) {
+                        fullWaits.increment();
+                    }
+                    LockSupport.parkNanos(FULL_PARK_NANOS);
+                    continue;
+                }
+            }
+            if (claimed.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private long finishedByAll() {
+        long finished = Long.MAX_VALUE;
+        for (Shard shard : shards) {
+            finished = Math.min(finished, shard.finished);
+        }
+        return finished;
+    }
+
+    private boolean inShard() {
+        Thread current = Thread.currentThread();
+        for (Shard shard : shards) {
+            if (shard.thread == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // Broadcasts published but not yet fanned out by every shard
+    public long backlog() {
+        return claimed.get() - finishedByAll();
+    }
+
+    // A line for /stats
+    public String report() {
+        return String.format("shards: %d, %d broadcasts published, %d behind, ring full %d times, %d fanned out inline",
+                shards.length, claimed.get() + 1, backlog(), fullWaits.sum(), inlineFallbacks.sum());
+    }
+
+    public void close() {
+        closed = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    // One worker, fanning every broadcast out to the members in the partitions it owns
+    private final class Shard implements Runnable {
+        final int index;
+        final Thread thread;
+        // Keep finished off the cache line of the fields around it, every publisher reads it
+        long p1, p2, p3, p4, p5, p6, p7;
+        // The last sequence this shard is done with
+        volatile long finished = -1;
+        long q1, q2, q3, q4, q5, q6, q7;
+        // Set before parking, so a publisher knows to unpark it
+        volatile boolean parked;
+
+        Shard(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "broadcast-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int spins = 0;
+            while (!closed) {
+                int slotIndex = (int) next & mask;
+                if (published.get(slotIndex) != next) {
+                    if (spins++ < SPIN_TRIES) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    parked = true;
+                    // Look again after announcing it, a publisher either sees parked or is seen here
+                    if (published.get(slotIndex) != next && !closed) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+                spins = 0;
+                fanOut(slots[slotIndex]);
+                finished = next;
+                next++;
+            }
+        }
+
+        private void fanOut(Slot slot) {
+            ChatSession sender = slot.sender;
+            ChatSession recipient = slot.recipient;
+            OutboundMessage message = slot.message;
+            List<ChatSession> slowConsumers = null;
+            int recipients = 0;
+            try {
+                if (recipient != null) {
+                    // A line for one session, queued only by the shard that queues its broadcasts
+                    if (recipient.partition() % shards.length == index && !recipient.enqueue(message)) {
+                        slowConsumers = List.of(recipient);
+                    }
+                } else {
+                    ClientRegistry members = slot.target.getMembers();
+                    for (int partition = index; partition < ClientRegistry.PARTITIONS; partition += shards.length) {
+                        for (ChatSession session : members.partition(partition)) {
+                            if (session == sender) {
+                                continue;
+                            }
+                            if (session.enqueue(message)) {
+                                recipients++;
+                            } else {
+                                if (slowConsumers == null) {
+                                    slowConsumers = new ArrayList<>();
+                                }
+                                slowConsumers.add(session);
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                int total = slot.recipients.addAndGet(recipients);
+                if (slot.remaining.decrementAndGet() == 0) {
+                    // The last shard to finish accounts for the whole broadcast and lets go of it
+                    if (recipient == null) {
+                        message.queuedFor(total);
+                        ServerMetrics.broadcast(total, System.nanoTime() - slot.start);
+                    }
+                    slot.target = null;
+                    slot.recipient = null;
+                    slot.message = null;
+                    slot.sender = null;
+                }
+            }
+            if (slowConsumers != null) {
+                // Closing announces the departure, which is published from here
+                for (ChatSession session : slowConsumers) {
+                    session.closeEverything();
+                }
+            }
+        }
+    }
+
+    // A broadcast waiting in the ring; written by its publisher, then only read until every shard is done
+    private static final class Slot {
+        // A room to broadcast to, or else the one session the message is for
+        Room target;
+        ChatSession recipient;
+        OutboundMessage message;
+        ChatSession sender;
+        long start;
+        // Recipients counted so far, and shards that have not fanned it out yet
+        final AtomicInteger recipients = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger();
+    }
+}
+
+/**
+ * BroadcastShards spreads the fan-out of room broadcasts over --broadcast-shards worker threads, one
+ * per core being the usual choice, instead of running it on the thread that read the line.
+ *
+ * Every session belongs to one of the ClientRegistry partitions, picked round-robin when it is
+ * created, and shard i owns partitions i, i + n, i + 2n and so on. A broadcast is published once into
+ * a ring of --broadcast-ring-size slots that every shard reads in full, and each shard queues the
+ * message for the members of the room in its own partitions. Recipients are split between the
+ * shards, so a broadcast to a large room is fanned out by all of them at once. A session always gets
+ * its broadcasts from the same shard, so it gets them in the order they were published.
+ *
+ * Lines for a single session, such as private messages, SERVER replies, history and pings, go through
+ * the ring too, and only the shard owning the session's partition queues them. Queued straight away
+ * they could overtake a broadcast still waiting in the ring, and a reply could arrive before the line
+ * it answers. The exceptions are the last lines of a closing session and the drain on shutdown, which
+ * are queued directly so they are in the queue before it is finished.
+ *
+ * The ring takes no lock. A publisher claims the next sequence with a compare-and-set and writes the
+ * slot. It then stores the sequence in the slot's published entry, which is what the shards wait for.
+ * Each shard records the last sequence it finished, and a publisher only reuses a slot once every
+ * shard is past it, so a full ring makes publishers wait for the slowest shard. A shard that must
+ * broadcast while the ring is full, for example to announce a slow consumer it just disconnected,
+ * fans that message out itself rather than wait for itself. An idle shard spins briefly and then
+ * parks until a publisher unparks it.
+ *
+ * The last shard done with a broadcast records it in ServerMetrics and tells the message how many
+ * recipients it was queued for, just as the single-threaded loop in ChatSession does.
+ */
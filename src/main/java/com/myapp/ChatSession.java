@@ -0,0 +1,873 @@
+package com.myapp;
+
+import java.io.IOException; // Import the IOException class for frames that cannot be decompressed
+import java.util.ArrayList; // Import the ArrayList class for collecting slow consumers
+import java.util.List; // Import the List interface for managing a list of sessions
+import java.util.Map; // Import the Map interface for the room sizes of the cluster
+import java.util.TreeMap; // Import TreeMap to list rooms sorted by name
+import java.util.concurrent.ThreadLocalRandom; // Import ThreadLocalRandom to spread the reconnects after a shutdown
+import java.util.concurrent.TimeUnit; // Import TimeUnit for the drain deadline
+import java.util.concurrent.atomic.AtomicBoolean; // Import AtomicBoolean so a session is only closed once
+import java.util.concurrent.atomic.AtomicInteger; // Import AtomicInteger to spread sessions over the partitions
+
+public abstract class ChatSession {
+    // Declare a registry of every connected session, whatever engine is serving it
+    public static final ClientRegistry registry = new ClientRegistry();
+    // Declare the rooms clients can join, every broadcast goes to the sender's room
+    public static final RoomManager rooms = new RoomManager();
+    // The slash commands clients can use, more can be registered at any time
+    public static final CommandDispatcher commands = new CommandDispatcher();
+    // The persistent log of chat lines, null when the server runs without one
+    private static volatile MessageJournal journal;
+    // The other nodes of the cluster, null when the server runs on its own
+    private static volatile ClusterNode cluster;
+    // Pings and closes idle sessions, null when idle sessions are left alone
+    private static volatile IdleReaper idleReaper;
+    // The full-text index behind /search, null when the server keeps none
+    private static volatile SearchIndex searchIndex;
+    // Private lines for users who are not connected, null when they are dropped
+    private static volatile OfflineMailbox mailbox;
+    // Fans broadcasts out on worker threads, null when the sending thread does it
+    private static volatile BroadcastShards broadcastShards;
+    // Hands out the partitions round-robin
+    private static final AtomicInteger nextPartition = new AtomicInteger();
+    // Sent to every idle client, the same line for all of them
+    private static final OutboundMessage PING = OutboundMessage.of(MessageKind.PING, "/ping");
+    private static final OutboundMessage PONG = OutboundMessage.of(MessageKind.PONG, "/pong");
+    // Set once the server is shutting down, departures are no longer announced
+    private static volatile boolean draining;
+    // How many lines are shown by /history without a count
+    private static final int DEFAULT_HISTORY = 20;
+    // How many lines /search answers with at most
+    private static final int SEARCH_RESULTS = 10;
+    // Lines waiting to be written to this client
+    protected final OutboundQueue outboundQueue;
+    // Set once closeEverything has started
+    protected final AtomicBoolean closed = new AtomicBoolean();
+    // Store the client's username, set once the handshake has registered it
+    protected volatile String clientUsername;
+    // True when this client speaks the binary protocol instead of newline separated text
+    protected volatile boolean binary;
+    // True once this binary client has negotiated compression, large frames are then sent deflated
+    protected volatile boolean compressed;
+    // Whether the server lets clients negotiate compression
+    private final boolean compressionEnabled;
+    // The room this client is in, null until the handshake is done
+    protected volatile Room room;
+    // How many earlier lines of a room to send when entering it
+    private final int historyOnJoin;
+    // When the line or frame being handled was read, only used by the thread reading this client
+    private long receivedAt;
+    // The IdleReaper tick at which a line or frame was last received from this client
+    volatile long lastActiveTick;
+    // The tick at which the IdleReaper looks at this session next, only used by the reaper
+    long idleCheckTick;
+    // The arguments of the command being run, only used by the thread reading this client
+    private final CommandArgs commandArgs = new CommandArgs();
+    // Limits how fast this client may send, only used by the thread reading this client
+    private final RateLimiter rateLimiter;
+    // True while this client's lines are being dropped for going over the rate limit
+    private boolean rateLimited;
+    // Longest line or frame payload accepted from a client, in bytes
+    protected final int maxLineBytes;
+    // Which ClientRegistry partition, and so which broadcast shard, this session belongs to
+    private final int partition = Math.floorMod(nextPartition.getAndIncrement(), ClientRegistry.PARTITIONS);
+
+    static {
+        commands.register("msg", (session, args) -> {
+            String user = args.next();
+            String text = args.rest();
+            if (user.isEmpty() || text.isEmpty()) {
+                session.selfMessage("SERVER: usage /msg <user> <message>");
+            } else {
+                session.privateMessage(user, text);
+            }
+        });
+        commands.register("list", (session, args) -> session.listUsers());
+        commands.register("join", (session, args) -> session.joinRoom(args.rest()));
+        commands.register("leave", (session, args) -> session.leaveRoom());
+        commands.register("rooms", (session, args) -> session.listRooms());
+        commands.register("history", (session, args) -> session.history(args.rest()));
+        commands.register("search", (session, args) -> session.search(args.rest()));
+        commands.register("stats", (session, args) -> session.selfMessage(MessageKind.LIST, ServerMetrics.report()));
+        commands.register("help", (session, args) -> session.selfMessage(MessageKind.LIST,
+                "Commands: /" + String.join(" /", commands.names())));
+        commands.register("ping", (session, args) -> session.pong());
+        // The answer to a heartbeat, receiving it was all that mattered
+        commands.register("pong", (session, args) -> { });
+    }
+
+    protected ChatSession(ServerConfig config) {
+        this.historyOnJoin = config.getHistoryOnJoin();
+        this.compressionEnabled = config.isCompression();
+        this.rateLimiter = RateLimiter.of(config);
+        this.maxLineBytes = config.getMaxLineBytes();
+        this.outboundQueue = new OutboundQueue(config.getOutboundQueueCapacity(),
+                config.getBackpressurePolicy(), config.getBackpressureBlockMillis());
+    }
+
+    // Let the transport know that new lines are waiting in the outbound queue
+    protected abstract void messageQueued();
+
+    // Close the underlying connection
+    protected abstract void closeConnection();
+
+    // Write every chat line to this journal from now on, or stop journaling with null
+    public static void setJournal(MessageJournal messageJournal) {
+        journal = messageJournal;
+    }
+
+    public static MessageJournal getJournal() {
+        return journal;
+    }
+
+    // Relay broadcasts, private messages and presence to the other nodes of a cluster from now on
+    public static void setCluster(ClusterNode clusterNode) {
+        cluster = clusterNode;
+    }
+
+    public static ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // Ping sessions that go quiet and close those that stay quiet, from now on
+    public static void setIdleReaper(IdleReaper reaper) {
+        idleReaper = reaper;
+    }
+
+    public static IdleReaper getIdleReaper() {
+        return idleReaper;
+    }
+
+    // Index every chat line for /search from now on, or stop with null
+    public static void setSearchIndex(SearchIndex index) {
+        searchIndex = index;
+    }
+
+    public static SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    // Fan broadcasts out on these shards from now on, or on the sending thread with null
+    public static void setBroadcastShards(BroadcastShards shards) {
+        broadcastShards = shards;
+    }
+
+    public static BroadcastShards getBroadcastShards() {
+        return broadcastShards;
+    }
+
+    // Keep private lines for offline users in this mailbox from now on, or drop them with null
+    public static void setMailbox(OfflineMailbox offlineMailbox) {
+        mailbox = offlineMailbox;
+    }
+
+    public static OfflineMailbox getMailbox() {
+        return mailbox;
+    }
+
+    // Called by the transport once the connection is set up, so a client that never says anything is closed too
+    public void startIdleTimer() {
+        IdleReaper reaper = idleReaper;
+        if (reaper != null) {
+            reaper.watch(this);
+        }
+    }
+
+    // Tell every client to reconnect after a random delay of up to spreadMillis and close the sessions once
+    // their queues are written, waiting up to timeoutMillis; returns how many had to be closed unflushed
+    public static int drainAll(long timeoutMillis, long spreadMillis) throws InterruptedException {
+        draining = true;
+        for (ChatSession session : registry.snapshot()) {
+            long delay = spreadMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(spreadMillis);
+            session.selfMessage("SERVER: the server is shutting down, reconnecting in " + delay + " ms");
+            session.send(reconnectHint(delay));
+            session.closeAfterFlush();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (registry.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        ChatSession[] remaining = registry.snapshot();
+        for (ChatSession session : remaining) {
+            // Too slow to take its last lines, cut it off
+            session.closeEverything();
+        }
+        return remaining.length;
+    }
+
+    private static OutboundMessage reconnectHint(long delayMillis) {
+        return OutboundMessage.of(MessageKind.RECONNECT, "/reconnect " + delayMillis);
+    }
+
+    // Ask the client whether it is still there, any line or frame it sends counts as an answer
+    void ping() {
+        if (!send(PING)) {
+            closeEverything();
+        }
+    }
+
+    public String getClientUsername() {
+        return clientUsername;
+    }
+
+    public boolean isRegistered() {
+        return clientUsername != null;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+
+    public int partition() {
+        return partition;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    // The username in the first line sent by a text client, "<username>: ", or null if there is none
+    protected static String usernameFromHandshake(String firstMessage) {
+        // Keep the part before the colon
+        int colon = firstMessage.indexOf(':');
+        String username = colon < 0 ? firstMessage : firstMessage.substring(0, colon);
+        return isValidUsername(username) ? username : null;
+    }
+
+    // Whether a client may log in with this name; an empty one could not be addressed or told apart,
+    // and a line break would forge lines in every announcement that carries the name
+    protected static boolean isValidUsername(String username) {
+        return username != null && !username.isBlank() && !containsLineBreak(username);
+    }
+
+    protected void register(String username) {
+        // Add this session to the registry, unless someone else already uses that name here or on another node
+        ClusterNode clusterNode = cluster;
+        if ((clusterNode != null && clusterNode.isRemoteUser(username)) || !registry.register(username, this)) {
+            selfMessage("SERVER: the username " + username + " is already taken, please reconnect with another one.");
+            // Reconnecting with the same name would only be refused again
+            send(reconnectHint(-1));
+            closeAfterFlush();
+            return;
+        }
+        this.clientUsername = username;
+        System.out.println("username logged as : " + clientUsername);
+        synchronized (this) {
+            // Every client starts in the default room
+            this.room = rooms.join(RoomManager.DEFAULT_ROOM, this);
+        }
+        if (clusterNode != null) {
+            // Let the other nodes know before the announcement reaches them
+            clusterNode.userJoined(username, room.getName());
+        }
+        // Catch up on what was said before this client arrived
+        sendHistory(room, historyOnJoin);
+        // And on what was sent to it in private
+        deliverMail();
+        // Broadcast a message about the client's entry
+        broadcastMessage(MessageKind.SYSTEM, "SERVER: " + clientUsername + " has entered the chat!");
+    }
+
+    protected void handleMessage(String messageFromClient) {
+        messageReceived();
+        // Characters rather than UTF-8 bytes, close enough for a rate and free to get
+        if (messageFromClient != null && !withinRateLimit(messageFromClient.length())) {
+            return;
+        }
+        if (containsLineBreak(messageFromClient)) {
+            // A lone CR ends a line for readers that split on it, it could forge a line for them
+            lineBreakRefused();
+            return;
+        }
+        dispatchMessage(messageFromClient);
+    }
+
+    // Tell the client a line or frame was dropped for being longer than the limit
+    protected void messageTooLarge(long size) {
+        ServerMetrics.tooLarge();
+        selfMessage("SERVER: message of " + size + " bytes dropped, the limit is " + maxLineBytes + " bytes");
+    }
+
+    // Tell the client a line or frame was dropped for carrying a line break
+    private void lineBreakRefused() {
+        selfMessage("SERVER: messages cannot contain line breaks, the message was dropped");
+    }
+
+    private static boolean containsLineBreak(String text) {
+        return text != null && (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0);
+    }
+
+    // Charge a line or frame to the rate limiter, returns false if it must be dropped
+    private boolean withinRateLimit(int bytes) {
+        if (rateLimiter.tryAcquire(bytes)) {
+            rateLimited = false;
+            return true;
+        }
+        ServerMetrics.rateLimited();
+        if (!rateLimited) {
+            // Only once until the client slows down, a flood must not flood the client back
+            rateLimited = true;
+            selfMessage("SERVER: you are sending too fast, messages are being dropped");
+        }
+        return false;
+    }
+
+    // Count an incoming line or frame and remember when it arrived, to time its delivery
+    private void messageReceived() {
+        receivedAt = System.nanoTime();
+        ServerMetrics.messageReceived();
+        IdleReaper reaper = idleReaper;
+        if (reaper != null) {
+            // Just the reaper's tick, the wheel is not touched
+            lastActiveTick = reaper.currentTick();
+        }
+    }
+
+    // Run the command the line starts with, or broadcast it to the room if it is not a command
+    private void dispatchMessage(String messageFromClient) {
+        int commandStart = commandStart(messageFromClient);
+        if (commandStart < 0) {
+            // Broadcast the message to everyone in this room
+            broadcastMessage(messageFromClient);
+        } else if (!commands.dispatch(this, messageFromClient, commandStart, commandArgs)) {
+            // A mistyped command is more likely meant for the server than for the room
+            int nameEnd = messageFromClient.indexOf(' ', commandStart);
+            selfMessage("SERVER: unknown command "
+                    + messageFromClient.substring(commandStart, nameEnd < 0 ? messageFromClient.length() : nameEnd)
+                    + ", /help lists them");
+        }
+    }
+
+    // Where the command starts in a line, after the "<username>: " text clients put first; -1 for chat
+    private int commandStart(String line) {
+        if (line.startsWith("/")) {
+            return 0;
+        }
+        String username = clientUsername;
+        int prefix = username.length();
+        if (line.startsWith(username) && line.startsWith(": /", prefix)) {
+            return prefix + 2;
+        }
+        return -1;
+    }
+
+    // Dispatch a frame from a binary client on its type, without looking at the text
+    protected void handleFrame(Frame frame) {
+        messageReceived();
+        // Charged as received, a compressed frame costs what it took on the wire
+        if (!withinRateLimit(frame.payload().length)) {
+            return;
+        }
+        if (frame.isCompressed()) {
+            if (!compressed) {
+                selfMessage("SERVER: compressed frames need a COMPRESS frame first");
+                return;
+            }
+            try {
+                frame = BinaryProtocol.inflate(frame);
+            } catch (IOException e) {
+                selfMessage("SERVER: could not decompress a frame, " + e.getMessage());
+                return;
+            }
+            if (frame.payload().length > maxLineBytes) {
+                // Small on the wire does not make it small
+                messageTooLarge(frame.payload().length);
+                return;
+            }
+        }
+        byte type = frame.type();
+        if ((type == BinaryProtocol.CHAT || type == BinaryProtocol.PRIVATE || type == BinaryProtocol.COMMAND)
+                && frame.containsLineBreak()) {
+            // Relayed to text clients as it is, a line break would let it pass for lines of its own
+            lineBreakRefused();
+            return;
+        }
+        switch (type) {
+            case BinaryProtocol.CHAT:
+                // Binary clients send their username once, so add it here
+                broadcastMessage(clientUsername + ": " + frame.text());
+                break;
+            case BinaryProtocol.PRIVATE:
+                String target;
+                String text;
+                try {
+                    target = frame.privateTarget();
+                    text = frame.privateText();
+                } catch (IllegalArgumentException e) {
+                    // The recipient's length does not fit in the payload
+                    selfMessage("SERVER: malformed frame");
+                    return;
+                }
+                privateMessage(target, text);
+                break;
+            case BinaryProtocol.LIST:
+                listUsers();
+                break;
+            case BinaryProtocol.COMMAND:
+                // Less frequent commands go through the text parser
+                dispatchMessage(frame.text());
+                break;
+            case BinaryProtocol.COMPRESS:
+                negotiateCompression(frame.text());
+                break;
+            case BinaryProtocol.PING:
+                pong();
+                break;
+            case BinaryProtocol.PONG:
+                // The answer to a heartbeat, receiving it was all that mattered
+                break;
+            default:
+                selfMessage("SERVER: unsupported frame type " + frame.type());
+        }
+    }
+
+    // Agree to compress large frames in both directions, if the server allows it and knows the algorithm
+    private void negotiateCompression(String algorithm) {
+        if (!compressionEnabled || !algorithm.equals(Compression.DEFLATE)) {
+            selfMessage("SERVER: compression " + algorithm + " is not available");
+            return;
+        }
+        // The client accepts compressed frames as soon as it has asked, so the order does not matter
+        selfMessage(MessageKind.COMPRESS, Compression.DEFLATE);
+        compressed = true;
+    }
+
+    private void pong() {
+        if (!send(PONG)) {
+            closeEverything();
+        }
+    }
+
+    private void privateMessage(String user, String messageString) {
+        selfMessage("Messaged "+user+" : "+messageString);
+        message(user, messageString);
+    }
+
+    private void listUsers() {
+        // Send the members of this room as a single multi-line message
+        Room current = room;
+        StringBuilder users = new StringBuilder("Users in #").append(current.getName()).append(':');
+        ClientRegistry members = current.getMembers();
+        for (int partition = 0; partition < ClientRegistry.PARTITIONS; partition++) {
+            for (ChatSession session : members.partition(partition)) {
+                users.append('\n').append(session.clientUsername);
+            }
+        }
+        ClusterNode clusterNode = cluster;
+        if (clusterNode != null) {
+            // Members connected to other nodes of the cluster
+            for (String username : clusterNode.remoteMembers(current.getName())) {
+                users.append('\n').append(username);
+            }
+        }
+        selfMessage(MessageKind.LIST, users.toString());
+    }
+
+    private void joinRoom(String roomName) {
+        if (roomName.isEmpty() || roomName.contains(" ")) {
+            selfMessage("SERVER: usage /join <room>");
+        } else {
+            changeRoom(roomName);
+        }
+    }
+
+    private void leaveRoom() {
+        if (room.getName().equals(RoomManager.DEFAULT_ROOM)) {
+            selfMessage("SERVER: you are already in #" + RoomManager.DEFAULT_ROOM);
+        } else {
+            changeRoom(RoomManager.DEFAULT_ROOM);
+        }
+    }
+
+    private void listRooms() {
+        // Room sizes by name, sorted, adding up the users of every node of the cluster
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Room each : rooms.rooms()) {
+            sizes.put(each.getName(), each.size());
+        }
+        ClusterNode clusterNode = cluster;
+        if (clusterNode != null) {
+            clusterNode.remoteRoomSizes().forEach((name, size) -> sizes.merge(name, size, Integer::sum));
+        }
+        StringBuilder roomList = new StringBuilder("Rooms:");
+        sizes.forEach((name, size) -> roomList.append("\n#").append(name).append(" (").append(size).append(')'));
+        selfMessage(MessageKind.LIST, roomList.toString());
+    }
+
+    private void history(String count) {
+        if (journal == null) {
+            selfMessage("SERVER: history is not kept on this server");
+            return;
+        }
+        int lines;
+        try {
+            lines = count.isEmpty() ? DEFAULT_HISTORY : Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            lines = -1;
+        }
+        if (lines < 1) {
+            selfMessage("SERVER: usage /history <count>");
+            return;
+        }
+        Room current = room;
+        if (sendHistory(current, lines) == 0) {
+            selfMessage("SERVER: no history in #" + current.getName());
+        }
+    }
+
+    private void search(String query) {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            selfMessage("SERVER: search is not available on this server");
+            return;
+        }
+        if (query.isEmpty()) {
+            selfMessage("SERVER: usage /search <words>");
+            return;
+        }
+        Room current = room;
+        List<String> matches = index.search(current.getName(), query, SEARCH_RESULTS);
+        if (matches.isEmpty()) {
+            selfMessage("SERVER: nothing in #" + current.getName() + " matches " + query);
+            return;
+        }
+        StringBuilder results = new StringBuilder("Search results in #").append(current.getName()).append(':');
+        for (String match : matches) {
+            results.append('\n').append(match);
+        }
+        selfMessage(MessageKind.LIST, results.toString());
+    }
+
+    // Send the last lines of a room from the journal to this client, returns how many were sent
+    private int sendHistory(Room target, int lines) {
+        MessageJournal messageJournal = journal;
+        if (messageJournal == null || target == null || lines == 0) {
+            return 0;
+        }
+        List<OutboundMessage> history = messageJournal.history(target.getName(), lines);
+        for (OutboundMessage message : history) {
+            if (!send(message)) {
+                closeEverything();
+                break;
+            }
+        }
+        return history.size();
+    }
+
+    // Queue a line for this client, returns false if the client is too slow and must be disconnected. With
+    // BroadcastShards a registered client's lines go through its shard, so they stay in order with its
+    // broadcasts, and the shard disconnects it if it is too slow
+    protected boolean send(OutboundMessage message) {
+        BroadcastShards shards = broadcastShards;
+        if (shards != null && isRegistered() && !draining && shards.publishTo(this, message)) {
+            return true;
+        }
+        return enqueue(message);
+    }
+
+    // Put a line on the queue right away, for the broadcast loops and lines that must not wait for a shard
+    boolean enqueue(OutboundMessage message) {
+        if (!outboundQueue.offer(message)) {
+            return false;
+        }
+        messageQueued();
+        return true;
+    }
+
+    public void selfMessage(String message) {
+        selfMessage(MessageKind.SYSTEM, message);
+    }
+
+    public void selfMessage(MessageKind kind, String message) {
+        // Queue the message for this client
+        if (!send(OutboundMessage.of(kind, message))) {
+            closeEverything();
+        }
+    }
+
+    // Move this client to another room, announcing it in both rooms
+    private void changeRoom(String roomName) {
+        Room previous;
+        Room next;
+        synchronized (this) {
+            previous = room;
+            if (closed.get()) {
+                // Closing raced with this command, the session has already left its room
+                return;
+            }
+            if (previous.getName().equals(roomName)) {
+                selfMessage("SERVER: you are already in #" + roomName);
+                return;
+            }
+            rooms.leave(previous, this);
+            next = rooms.join(roomName, this);
+            room = next;
+        }
+        ClusterNode clusterNode = cluster;
+        if (clusterNode != null) {
+            clusterNode.userJoined(clientUsername, next.getName());
+        }
+        broadcastMessage(previous, MessageKind.SYSTEM, "SERVER: " + clientUsername + " has left #" + previous.getName());
+        broadcastMessage(next, MessageKind.SYSTEM, "SERVER: " + clientUsername + " has joined #" + next.getName());
+        selfMessage("SERVER: you are now in #" + next.getName());
+        sendHistory(next, historyOnJoin);
+    }
+
+    public void broadcastMessage(String messageToSend) {
+        broadcastMessage(MessageKind.CHAT, messageToSend);
+    }
+
+    public void broadcastMessage(MessageKind kind, String messageToSend) {
+        Room current = room;
+        if (current != null) {
+            broadcastMessage(current, kind, messageToSend);
+        }
+    }
+
+    // Send a line to every other member of a room, here and on the other nodes of the cluster
+    public void broadcastMessage(Room target, MessageKind kind, String messageToSend) {
+        long start = System.nanoTime();
+        // Encode the line once, every recipient queues the same bytes
+        OutboundMessage message = OutboundMessage.of(kind, messageToSend);
+        if (kind == MessageKind.CHAT) {
+            // Time chat lines from the moment they were read until the last recipient has them
+            message.trackDelivery(receivedAt);
+        }
+        fanOut(target.getName(), target, message, this, start);
+        ClusterNode clusterNode = cluster;
+        if (clusterNode != null) {
+            clusterNode.relayBroadcast(target.getName(), kind, messageToSend);
+        }
+    }
+
+    // Deliver a line another node relayed to the members of a room on this node
+    static void deliverRelayed(String roomName, MessageKind kind, String messageToSend) {
+        long start = System.nanoTime();
+        fanOut(roomName, rooms.find(roomName), OutboundMessage.of(kind, messageToSend), null, start);
+    }
+
+    // Deliver a private line another node relayed to a user of this node
+    static void deliverRelayedPrivate(String user, String messageToSend) {
+        ChatSession recipient = registry.find(user);
+        OfflineMailbox offlineMailbox = mailbox;
+        if (recipient == null && offlineMailbox != null) {
+            // Gone since the other node looked, keep it here
+            offlineMailbox.put(user, null, messageToSend);
+        } else if (recipient != null && !recipient.send(OutboundMessage.of(MessageKind.PRIVATE, messageToSend))) {
+            recipient.closeEverything();
+        }
+    }
+
+    // Journal and index a line and queue it for every member of a room but the sender, the room may be null
+    private static void fanOut(String roomName, Room target, OutboundMessage message, ChatSession sender, long start) {
+        MessageJournal messageJournal = journal;
+        if (message.kind() == MessageKind.CHAT && messageJournal != null) {
+            // Only queued here, the journal's own thread writes it
+            messageJournal.append(roomName, message);
+        }
+        SearchIndex index = searchIndex;
+        if (message.kind() == MessageKind.CHAT && index != null) {
+            // Likewise, the indexer thread does the work
+            index.append(roomName, message);
+        }
+        if (target == null) {
+            // Nobody on this node is in the room
+            return;
+        }
+        BroadcastShards shards = broadcastShards;
+        if (shards != null && shards.publish(target, message, sender, start)) {
+            // The shards queue it for their own members, each on its own thread
+            return;
+        }
+        List<ChatSession> slowConsumers = null;
+        int recipients = 0;
+        // Iterate through the member partitions as they are now, joins and leaves do not wait for this loop
+        ClientRegistry members = target.getMembers();
+        for (int partition = 0; partition < ClientRegistry.PARTITIONS; partition++) {
+            for (ChatSession session : members.partition(partition)) {
+                if (session == sender) {
+                    continue;
+                }
+                // Queue the message for every other client, remembering those that cannot keep up
+                if (session.enqueue(message)) {
+                    recipients++;
+                } else {
+                    if (slowConsumers == null) {
+                        slowConsumers = new ArrayList<>();
+                    }
+                    slowConsumers.add(session);
+                }
+            }
+        }
+        message.queuedFor(recipients);
+        ServerMetrics.broadcast(recipients, System.nanoTime() - start);
+        if (slowConsumers != null) {
+            // Disconnect slow consumers once the loop is done, closing broadcasts a departure of its own
+            for (ChatSession session : slowConsumers) {
+                session.closeEverything();
+            }
+        }
+    }
+
+    public void message(String user, String messageToSend) {
+        // Look the recipient up by username
+        ChatSession recipient = registry.find(user);
+        ClusterNode clusterNode = cluster;
+        if (recipient == null) {
+            String text = "Private from "+this.clientUsername+" : "+messageToSend;
+            // Not on this node, hand it to the node the user is connected to, or keep it until they are back
+            if (clusterNode == null || !clusterNode.relayPrivate(user, text)) {
+                keepForLater(user, text);
+            }
+        } else if (recipient != this
+                && !recipient.send(OutboundMessage.of(MessageKind.PRIVATE, "Private from "+this.clientUsername+" : "+messageToSend))) {
+            recipient.closeEverything();
+        }
+    }
+
+    // Put a private line in an offline user's mailbox and tell the sender
+    private void keepForLater(String user, String text) {
+        OfflineMailbox offlineMailbox = mailbox;
+        if (offlineMailbox == null) {
+            return;
+        }
+        OfflineMailbox.Result result = offlineMailbox.put(user, clientUsername, text);
+        if (result == OfflineMailbox.Result.MAILBOX_FULL) {
+            selfMessage("SERVER: " + user + " is offline and their mailbox is full, the message was not kept");
+            return;
+        }
+        if (result == OfflineMailbox.Result.SENDER_QUOTA) {
+            selfMessage("SERVER: you have too many messages waiting for offline users, the message was not kept");
+            return;
+        }
+        selfMessage("SERVER: " + user + " is offline, they will get the message when they log in");
+        // The user may have logged in, and taken its mail, since the lookup
+        ChatSession recipient = registry.find(user);
+        if (recipient != null) {
+            recipient.deliverMail();
+        }
+    }
+
+    // Send this client everything its mailbox holds, as a single message
+    private void deliverMail() {
+        OfflineMailbox offlineMailbox = mailbox;
+        if (offlineMailbox == null) {
+            return;
+        }
+        List<String> mail = offlineMailbox.take(clientUsername);
+        if (mail == null || mail.isEmpty()) {
+            return;
+        }
+        StringBuilder burst = new StringBuilder("SERVER: ").append(mail.size())
+                .append(mail.size() == 1 ? " private message" : " private messages").append(" while you were away:");
+        for (String text : mail) {
+            burst.append('\n').append(text);
+        }
+        if (!send(OutboundMessage.of(MessageKind.PRIVATE, burst.toString()))) {
+            closeEverything();
+        }
+    }
+
+    public void removeSession() {
+        // Remove this session from the registry
+        if (registry.unregister(clientUsername, this)) {
+            ClusterNode clusterNode = cluster;
+            if (clusterNode != null) {
+                clusterNode.userLeft(clientUsername);
+            }
+            Room current;
+            synchronized (this) {
+                current = room;
+                if (current != null) {
+                    // Remove this session from its room
+                    rooms.leave(current, this);
+                }
+            }
+            if (current != null && !draining) {
+                // Broadcast a message about the client's departure to the room it was in
+                broadcastMessage(current, MessageKind.SYSTEM, "SERVER: " + clientUsername + " has left the chat!");
+            }
+        }
+    }
+
+    // Stop accepting messages and close the connection once the queued ones have been written
+    protected void closeAfterFlush() {
+        outboundQueue.finish();
+        messageQueued();
+    }
+
+    public void closeEverything() {
+        // Only the first caller closes, the reader and the writer may both get here
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        ServerMetrics.connectionClosed();
+        // Discard pending output and wake up the writer
+        outboundQueue.close();
+        if (clientUsername != null) {
+            // Remove this session from the list and announce the departure
+            removeSession();
+        }
+        closeConnection();
+    }
+
+}
+
+/**
+ * ChatSession holds the chat behaviour shared by every server engine: the username handshake,
+ * the /msg, /list, /join, /leave, /rooms, /history, /search, /stats and /help commands, broadcasting and the join/leave announcements.
+ *
+ * Text clients send lines that are handled by handleMessage. A line whose first word, after the
+ * username text clients put in front, starts with a slash goes to the command of that name in the
+ * shared CommandDispatcher; any other line is chat. Binary clients send frames that
+ * handleFrame dispatches on their type byte; see BinaryProtocol. Outbound messages carry a
+ * MessageKind and are written in whichever format the recipient speaks.
+ *
+ * A binary client may ask for compression with a COMPRESS frame. Once the server has agreed, large
+ * frames are deflated in both directions, and a broadcast is compressed once for all the recipients
+ * that asked for it; see Compression.
+ *
+ * Every client is in exactly one room, #lobby after the handshake. Chat lines, /list and the
+ * announcements are scoped to the sender's room, so a broadcast only touches the members of that
+ * room; /msg still reaches any connected user.
+ *
+ * When the server keeps a MessageJournal, every chat line is appended to it as it is broadcast.
+ * Entering a room replays its last lines to the newcomer, and /history <count> asks for more.
+ * Likewise with a SearchIndex, /search <words> finds the latest lines of the room containing them.
+ *
+ * A /msg to a user who is not connected goes to the OfflineMailbox, if the server keeps one. The
+ * user gets all of it in one message right after the handshake.
+ *
+ * Sending to a client never touches its socket. Messages are encoded once into an OutboundMessage,
+ * shared by all recipients of a broadcast, and go on each session's OutboundQueue. The transport is
+ * told through messageQueued(); ClientHandler drains the queue from its own writer task and
+ * NioClientHandler from its event loop. Clients that cannot keep up are handled by the queue's
+ * back-pressure policy, and are disconnected once the broadcast loop is done. With BroadcastShards the
+ * loop runs on the shards' threads instead, each over its own partitions of the room.
+ *
+ * Each client has a RateLimiter on the lines and frames it sends. What goes over the limit is
+ * dropped, and the client is told once until it slows down. Lines and frames longer than
+ * --max-line-bytes are dropped by the transports while framing, before they are ever held whole.
+ *
+ * Either side may send a ping, answered with a pong: /ping and /pong lines, or PING and PONG frames.
+ * With an IdleReaper the server pings clients that have gone quiet and closes those that do not
+ * answer, so a connection whose client is gone does not stay in the registry. Receiving anything
+ * only records the reaper's current tick in lastActiveTick.
+ *
+ * On shutdown drainAll tells every client when to reconnect, with delays spread at random so they
+ * do not all come back at the same moment, and closes each session once its queue is written. A
+ * client whose username was refused is told not to reconnect at all.
+ *
+ * Incoming lines and broadcasts are counted in ServerMetrics, and chat lines are timed from the
+ * moment they were read until the last recipient has written them; /stats shows the numbers.
+ *
+ * With a ClusterNode the chat spans several servers. Broadcasts and private messages for users of
+ * other nodes are relayed to those nodes, which deliver them with deliverRelayed and
+ * deliverRelayedPrivate. Presence is shared too, so /list, /rooms and the username check see every
+ * user of the cluster.
+ *
+ * Registered sessions are kept in the shared ClientRegistry, which refuses duplicate usernames.
+ * Subclasses only provide the transport, so the chat works the same whichever engine accepted
+ * the connection.
+ */
@@ -1,7 +1,10 @@
 package com.myapp;
 
-import java.io.IOException; // Import the IOException class for handling input/output errors
+import java.io.IOException; // Import the IOException class for a trust store that cannot be read
+import java.nio.file.Paths; // Import Paths for the trust store given on the command line
+import java.util.Arrays; // Import the Arrays class for reading the command line
 import java.util.Scanner; // Import the Scanner class for user input
+import java.util.concurrent.CompletionException; // Import CompletionException for a failed connection
 
 public class CliClient {
 
@@ -17,20 +20,40 @@ public class CliClient {
             System.out.print("Enter your username for the group chat: ");
             String username = scanner.nextLine();
 
-            Client client = new Client(username, "localhost", 1234);
-            client.connect(); // Connect to the server
+            boolean binary = Arrays.asList(args).contains("--binary"); // Use the compact binary protocol if asked to
+            Client client = new Client(username, "localhost", 1234, binary);
+            client.setCompression(binary && Arrays.asList(args).contains("--compress")); // Deflate large messages if asked to
+            client.setTls(tls(args)); // Encrypt the connection if asked to
+            client.onMessageReceived(System.out::println); // Print messages from the server as they arrive
+            client.connect().join(); // Connect to the server and send the username
 
             while (true) {
                 System.out.print("Enter a message: ");
                 String message = scanner.nextLine();
                 if (!message.isEmpty()) {
-                    client.sendMessage(message); // Send the user's message to the server
+                    // Send the user's message to the server, without waiting for it to be written
+                    client.sendMessage(message).exceptionally(e -> {
+                        System.out.println("Could not send the message: " + e.getMessage());
+                        return null;
+                    });
                 }
             }
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace(); // The server could not be reached
         } catch (IOException e) {
-            e.printStackTrace(); // Handle and log any errors
+            e.printStackTrace(); // The trust store could not be read
         }
     }
+
+    // --tls trusts the self-signed certificate of a local server, --truststore=<file> the certificates in that PKCS12 file
+    private static TlsContext tls(String[] args) throws IOException {
+        for (String arg : args) {
+            if (arg.startsWith("--truststore=")) {
+                return TlsContext.client(Paths.get(arg.substring("--truststore=".length())), TlsContext.DEFAULT_PASSWORD);
+            }
+        }
+        return Arrays.asList(args).contains("--tls") ? TlsContext.localClient() : null;
+    }
 }
 /**
  * This is a Java client application for a group chat.
@@ -42,8 +65,13 @@ public class CliClient {
  *
  * The main method initiates the client application. It prompts the user to enter a username,
  * connects to the chat server via a socket, and initializes a Client instance.
- * The client sends the username to the server and sets up a thread pool for listening to incoming messages.
+ * The client sends the username to the server and prints incoming messages from the client's I/O thread,
+ * reconnecting on its own if the connection drops.
  * It continually prompts the user to input messages, which are sent to the server.
+ * Started with --binary, it talks to the server with the binary protocol instead of text lines.
+ * Adding --compress asks the server to compress large messages in both directions.
+ * With --tls it connects over TLS to a local server using its generated self-signed certificate, and
+ * with --truststore=<file> to any server whose certificate that PKCS12 file trusts.
  *
  * In case of an error or when the client exits, the application closes the connection and resources.
  */
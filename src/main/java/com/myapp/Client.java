@@ -1,101 +1,531 @@
 package com.myapp;
 
-import java.io.BufferedReader; // Import the BufferedReader class for reading input
-import java.io.BufferedWriter; // Import the BufferedWriter class for writing output
 import java.io.IOException; // Import the IOException class for handling input/output errors
-import java.io.InputStreamReader; // Import the InputStreamReader class for reading input
-import java.io.OutputStreamWriter; // Import the OutputStreamWriter class for writing output
-import java.net.Socket; // Import the Socket class for network communication
-import java.util.concurrent.ExecutorService; // Import ExecutorService for managing a pool of threads
-import java.util.concurrent.Executors; // Import Executors for creating ExecutorService instances
+import java.net.InetSocketAddress; // Import InetSocketAddress to resolve the server address
+import java.nio.ByteBuffer; // Import ByteBuffer for reading and writing the socket
+import java.nio.channels.SelectionKey; // Import SelectionKey to follow the channel's readiness
+import java.nio.channels.SocketChannel; // Import SocketChannel for a non-blocking connection
+import java.nio.channels.UnresolvedAddressException; // Import UnresolvedAddressException for unknown host names
+import java.nio.charset.StandardCharsets; // Import StandardCharsets to use the server's UTF-8 wire format
+import java.util.ArrayDeque; // Import ArrayDeque for the messages waiting for a connection
+import java.util.Arrays; // Import Arrays to append the compression request to the handshake
+import java.util.Deque; // Import the Deque interface for the messages waiting for a connection
+import java.util.concurrent.CompletableFuture; // Import CompletableFuture to report when a message has been sent
+import java.util.concurrent.Executor; // Import Executor to choose where the message callback runs
+import java.util.concurrent.ThreadLocalRandom; // Import ThreadLocalRandom to spread out the reconnects
+import java.util.concurrent.TimeUnit; // Import TimeUnit for the reconnect delays
+import java.util.concurrent.atomic.AtomicBoolean; // Import AtomicBoolean so a flush is only scheduled once
 import java.util.function.Consumer;
 
 public class Client {
+    // The most messages handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+    // Messages kept while the connection is down, more than this and sending fails right away
+    private static final int MAX_PENDING = 10_000;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    // No reconnect hint from the server on the current connection
+    private static final long NO_HINT = Long.MIN_VALUE;
 
-    private final Socket socket; // Socket for communication with the server
-    private final BufferedReader reader; // Read input from the server
-    private final BufferedWriter writer; // Write output to the server
     private final String username; // Store the client's username
-    private Consumer<String> onMessageReceived;
+    private final String host; // The server's host name
+    private final int port; // The server's port
+    private final boolean binary; // Use the binary protocol instead of text lines
+    private final ClientEventLoop eventLoop; // The I/O thread shared with other clients
+    private final Executor callbackExecutor; // Where onMessageReceived is called
+    private volatile Consumer<String> onMessageReceived;
+    private volatile boolean closed;
+    // Ask the server to deflate large frames, only in binary mode
+    private volatile boolean compression;
+    // Set once the server has agreed to compression on the current connection
+    private volatile boolean compressionAccepted;
+    // Encrypt the connection with TLS when set, see setTls
+    private volatile TlsContext tlsContext;
 
-    public Client(String username, String host, int port) throws IOException {
+    // Messages waiting to be written, guarded by itself
+    private final Deque<Outgoing> pending = new ArrayDeque<>();
+    // Set while a flush is waiting to run on the event loop
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
 
+    // Everything below is only used on the event loop thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    // The TLS session of the current connection, null without TLS
+    private TlsConnection tls;
+    private boolean established;
+    private boolean everConnected;
+    private long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    // When the server asked to be reconnected to, negative for never, NO_HINT if it did not say
+    private long reconnectHint = NO_HINT;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final Outgoing[] gathered = new Outgoing[MAX_GATHER];
+    private int gatherStart;
+    private int gatherEnd;
+
+    public Client(String username, String host, int port) {
+        this(username, host, port, false);
+    }
+
+    public Client(String username, String host, int port, boolean binary) {
+        this(username, host, port, binary, ClientEventLoop.shared(), Runnable::run);
+    }
+
+    // Messages are handed to onMessageReceived through callbackExecutor, by default right on the I/O thread
+    public Client(String username, String host, int port, boolean binary, ClientEventLoop eventLoop, Executor callbackExecutor) {
         this.username = username;
-        this.socket = new Socket(host, port);
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.eventLoop = eventLoop;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    // Set up a callback function for message reception
+    public void onMessageReceived(Consumer<String> onMessageReceived) {
+        this.onMessageReceived = onMessageReceived;
+    }
+
+    // Ask for large messages to be compressed in both directions, call before connect; binary mode only
+    public void setCompression(boolean compression) {
+        if (compression && !binary) {
+            throw new IllegalStateException("Compression needs the binary protocol");
+        }
+        this.compression = compression;
+    }
+
+    // Talk to the server over TLS, trusting the certificates of the given context; call before connect
+    public void setTls(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    // Connect and send the username handshake; completes once connected, or fails if the server cannot be reached
+    public CompletableFuture<Void> connect() {
+        eventLoop.execute(this::openConnection);
+        return connected;
+    }
+
+    // Queue a message for the server; completes once it has been written to the socket
+    public CompletableFuture<Void> sendMessage(String message) {
+        byte[] encoded = binary
+                ? encodeFrame(message)
+                : (username + ": " + message + "\n").getBytes(StandardCharsets.UTF_8);
+        if (compressionAccepted) {
+            encoded = BinaryProtocol.compress(encoded, Compression.DEFAULT_THRESHOLD);
+        }
+        Outgoing outgoing = new Outgoing(ByteBuffer.wrap(encoded), new CompletableFuture<>());
+        if (closed) {
+            outgoing.future.completeExceptionally(new IOException("The client is closed"));
+            return outgoing.future;
+        }
+        synchronized (pending) {
+            if (pending.size() >= MAX_PENDING) {
+                outgoing.future.completeExceptionally(new IOException("Too many messages waiting for the server"));
+                return outgoing.future;
+            }
+            pending.addLast(outgoing);
+        }
+        scheduleFlush();
+        return outgoing.future;
+    }
+
+    // Turn what the user typed into a frame, so the server never has to look for commands in the text
+    static byte[] encodeFrame(String message) {
+        if (message.startsWith("/msg ")) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) {
+                return BinaryProtocol.encodePrivate(parts[1], parts[2]);
+            }
+        }
+        if (message.equals("/list")) {
+            return BinaryProtocol.encode(BinaryProtocol.LIST, "");
+        }
+        if (message.startsWith("/")) {
+            return BinaryProtocol.encode(BinaryProtocol.COMMAND, message);
+        }
+        return BinaryProtocol.encode(BinaryProtocol.CHAT, message);
+    }
 
-        OutputStreamWriter outputWriter = new OutputStreamWriter(socket.getOutputStream());
-        InputStreamReader inputWriter = new InputStreamReader(socket.getInputStream());
+    // What the server expects first: the binary preamble and HELLO frame, or a line with the username
+    private byte[] handshake() {
+        if (!binary) {
+            return (username + ": \n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] hello = BinaryProtocol.handshake(username);
+        if (!compression) {
+            return hello;
+        }
+        // Ask for compression right after the username, the server agrees with a COMPRESS frame
+        byte[] request = BinaryProtocol.encode(BinaryProtocol.COMPRESS, Compression.DEFLATE);
+        byte[] handshake = Arrays.copyOf(hello, hello.length + request.length);
+        System.arraycopy(request, 0, handshake, hello.length, request.length);
+        return handshake;
+    }
 
-        this.reader = new BufferedReader(inputWriter);
-        this.writer = new BufferedWriter(outputWriter);
-    
+    private void scheduleFlush() {
+        // However many messages are queued meanwhile, the event loop writes them in one go
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                if (established) {
+                    flush();
+                }
+            });
+        }
     }
 
-    public void sendMessage(String message) throws IOException {
-        // Send a message to the server
-        writer.write(username + ": " + message + "\n");
-        writer.flush(); // Flush the output to ensure the message is sent
+    private void openConnection() {
+        if (closed) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            TlsContext context = tlsContext;
+            // A new engine per connection, which offers the session cached from the last one for resumption
+            tls = context == null ? null : new TlsConnection(context.clientEngine(host, port));
+            // Queued messages go out in one gathered write, so turn Nagle's algorithm off
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                key = eventLoop.register(channel, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (UnresolvedAddressException e) {
+            connectionLost(new IOException("Unknown host " + host, e));
+        } catch (IOException e) {
+            connectionLost(e);
+        }
     }
 
-    public void listenForMessages() {
+    // Called by the event loop when the channel is ready
+    void onReady(SelectionKey readyKey) {
+        if (readyKey != key) {
+            // Left over from a connection that has since been replaced
+            return;
+        }
         try {
-            String message;
-            // Continuously listen for and print messages from the server
-            while ((message = reader.readLine()) != null) {
-                System.out.println(message);
+            if (readyKey.isConnectable()) {
+                channel.finishConnect();
+                readyKey.interestOps(SelectionKey.OP_READ);
+                connected();
+                return;
+            }
+            if (readyKey.isReadable()) {
+                read();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flush();
             }
         } catch (IOException e) {
-            closeEverything(); // Handle errors and close resources
+            connectionLost(e);
         }
     }
 
-    // methods for GUI function !
-    
-    // Set up a callback function for message reception
-    public void onMessageReceived(Consumer<String> onMessageReceived) {
-        this.onMessageReceived = onMessageReceived;
+    // The socket is connected; with TLS the handshake comes first, and the connection is established once it is done
+    private void connected() {
+        if (tls == null) {
+            connectionEstablished();
+        } else {
+            // Sends the ClientHello
+            flush();
+        }
     }
 
-    // Call this method to start listening for messages
-    public void startMessageListener() throws IOException {
-        new Thread(() -> {
-            try {
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    if (onMessageReceived != null) {
-                        onMessageReceived.accept(message);
-                    }
+    private void connectionEstablished() {
+        established = true;
+        reconnectHint = NO_HINT;
+        backoffMillis = INITIAL_BACKOFF_MILLIS;
+        synchronized (pending) {
+            // The handshake goes before anything queued while the connection was down
+            pending.addFirst(new Outgoing(ByteBuffer.wrap(handshake()), null));
+        }
+        if (everConnected) {
+            deliver("CLIENT: reconnected to " + host + ":" + port);
+        }
+        everConnected = true;
+        connected.complete(null);
+        flush();
+    }
+
+    private void connectionLost(IOException cause) {
+        closeChannel();
+        tls = null;
+        established = false;
+        // The next connection negotiates again
+        compressionAccepted = false;
+        readBuffer.clear();
+        // What was being written may or may not have reached the server
+        for (int i = gatherStart; i < gatherEnd; i++) {
+            fail(gathered[i], cause);
+        }
+        clearGather();
+        if (closed) {
+            failPending(cause);
+            connected.completeExceptionally(cause);
+        } else if (!everConnected) {
+            // Never reached the server at all, let the caller decide what to do
+            closed = true;
+            failPending(cause);
+            connected.completeExceptionally(cause);
+        } else if (reconnectHint != NO_HINT && reconnectHint < 0) {
+            // The server refused this client, trying again would be refused too
+            closed = true;
+            failPending(cause);
+            deliver("CLIENT: disconnected by the server, not reconnecting");
+        } else if (reconnectHint != NO_HINT) {
+            // The server is restarting and picked the delay, so its clients do not all come back at once
+            long delay = reconnectHint;
+            reconnectHint = NO_HINT;
+            deliver("CLIENT: server restarting, reconnecting in " + delay + " ms");
+            eventLoop.schedule(this::openConnection, delay, TimeUnit.MILLISECONDS);
+        } else {
+            // Anywhere between half and all of the backoff, clients that lost the same server spread out
+            long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            deliver("CLIENT: connection lost, reconnecting in " + delay + " ms");
+            eventLoop.schedule(this::openConnection, delay, TimeUnit.MILLISECONDS);
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Remember when the server wants this client back, from a "/reconnect <millis>" line or RECONNECT frame
+    private void reconnectHint(String hint) {
+        try {
+            reconnectHint = Long.parseLong(hint.substring(hint.indexOf(' ') + 1).trim());
+        } catch (NumberFormatException e) {
+            // Not a hint this client understands, fall back to the usual backoff
+            reconnectHint = NO_HINT;
+        }
+    }
+
+    private void read() throws IOException {
+        boolean handshaking = tls != null && !tls.isHandshakeDone();
+        do {
+            readOnce();
+        } while (tls != null && tls.hasBufferedInput());
+        if (handshaking && tls.isHandshakeDone()) {
+            connectionEstablished();
+        } else if (tls != null && tls.hasPendingOutput()) {
+            // Handshake records the socket did not take yet
+            flush();
+        }
+    }
+
+    private void readOnce() throws IOException {
+        int read = tls == null ? channel.read(readBuffer) : tls.read(channel, readBuffer);
+        if (read < 0) {
+            throw new IOException("The server closed the connection");
+        }
+        readBuffer.flip();
+        if (binary) {
+            Frame frame;
+            while ((frame = BinaryProtocol.decode(readBuffer)) != null) {
+                if (frame.type() == BinaryProtocol.COMPRESS) {
+                    compressionAccepted = true;
+                } else if (frame.type() == BinaryProtocol.PING) {
+                    pong();
+                } else if (frame.type() == BinaryProtocol.PONG) {
+                    // Nothing to do, this client does not ping the server
+                } else if (frame.type() == BinaryProtocol.RECONNECT) {
+                    reconnectHint(frame.text());
+                } else {
+                    // Compressed frames may arrive ahead of the server's answer, if they were queued before it
+                    deliver(BinaryProtocol.inflate(frame).text());
                 }
-            } catch (IOException e) {
-                closeEverything();
             }
-        }).start();
+        } else {
+            readLines();
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            // A single message is larger than the buffer, make room for the rest of it
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
     }
 
-    public void closeEverything() {
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close(); // Close the socket if it is open
+    // Hand every complete line in the read buffer to the callback
+    private void readLines() {
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                String line = new String(readBuffer.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+                if (line.equals("/ping")) {
+                    pong();
+                } else if (line.startsWith("/reconnect ")) {
+                    reconnectHint(line);
+                } else if (!line.equals("/pong")) {
+                    deliver(line);
+                }
+                lineStart = i + 1;
             }
-            if (reader != null) {
-                reader.close(); // Close the input reader
+        }
+        readBuffer.position(lineStart);
+    }
+
+    // Answer the server's heartbeat, behind whatever is already waiting to be written
+    private void pong() {
+        byte[] pong = binary
+                ? BinaryProtocol.encode(BinaryProtocol.PONG, "")
+                : (username + ": /pong\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (pending) {
+            pending.addLast(new Outgoing(ByteBuffer.wrap(pong), null));
+        }
+        scheduleFlush();
+    }
+
+    private void deliver(String message) {
+        Consumer<String> callback = onMessageReceived;
+        if (callback != null) {
+            callbackExecutor.execute(() -> callback.accept(message));
+        }
+    }
+
+    // Write as many queued messages as the socket takes, with one system call per batch
+    private void flush() {
+        try {
+            if (tls != null && (!tls.flush(channel) || !tls.isHandshakeDone())) {
+                // Records the socket did not take wait for it to be writable, messages for the handshake to finish
+                key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                return;
             }
-            if (writer != null) {
-                writer.close(); // Close the output writer
+            while (true) {
+                if (gatherStart == gatherEnd && !gatherPending()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (tls == null) {
+                    channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                } else {
+                    tls.write(channel, gather, gatherStart, gatherEnd - gatherStart);
+                }
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    Outgoing done = gathered[gatherStart];
+                    if (done.future != null) {
+                        done.future.complete(null);
+                    }
+                    gather[gatherStart] = null;
+                    gathered[gatherStart++] = null;
+                }
+                if (gatherStart < gatherEnd || tls != null && tls.hasPendingOutput()) {
+                    // The socket send buffer is full, continue once it is writable again
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace(); // Handle and log any errors
+            connectionLost(e);
+        }
+    }
+
+    private boolean gatherPending() {
+        clearGather();
+        synchronized (pending) {
+            Outgoing next;
+            while (gatherEnd < MAX_GATHER && (next = pending.pollFirst()) != null) {
+                gathered[gatherEnd] = next;
+                gather[gatherEnd++] = next.buffer;
+            }
+        }
+        return gatherEnd > 0;
+    }
+
+    private void clearGather() {
+        for (int i = 0; i < MAX_GATHER; i++) {
+            gather[i] = null;
+            gathered[i] = null;
+        }
+        gatherStart = 0;
+        gatherEnd = 0;
+    }
+
+    private void failPending(IOException cause) {
+        synchronized (pending) {
+            Outgoing next;
+            while ((next = pending.pollFirst()) != null) {
+                fail(next, cause);
+            }
+        }
+    }
+
+    private static void fail(Outgoing outgoing, IOException cause) {
+        if (outgoing != null && outgoing.future != null) {
+            outgoing.future.completeExceptionally(cause);
         }
     }
 
-    public void connect() throws IOException {
-        
-        // Create a thread pool with two threads
-        ExecutorService executorService = Executors.newFixedThreadPool(2); // Create a thread pool
-        executorService.submit(this::listenForMessages); // Start a thread to listen for messages
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            if (tls != null) {
+                tls.close(channel); // Send close_notify if the socket takes it
+            }
+            try {
+                channel.close(); // Close the socket if it is open
+            } catch (IOException e) {
+                e.printStackTrace(); // Handle and log any errors
+            }
+            channel = null;
+        }
+    }
 
-        this.sendMessage("");
-        
+    // Close the connection for good, messages not written yet fail
+    public void closeEverything() {
+        closed = true;
+        eventLoop.execute(() -> connectionLost(new IOException("The client is closed")));
     }
 
+    // A message and the future to complete once it has been written, null for the handshake and pongs
+    private static final class Outgoing {
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> future;
+
+        Outgoing(ByteBuffer buffer, CompletableFuture<Void> future) {
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
 }
+
+/**
+ * Client is the connection to the chat server used by App, CliClient and the LoadGenerator.
+ *
+ * Nothing in it blocks the caller. connect() and sendMessage() return CompletableFutures, and all
+ * socket work happens on a ClientEventLoop, by default one I/O thread shared by every client in the
+ * process. Messages are encoded on the calling thread and queued. The event loop writes everything
+ * queued at that moment with a single gathering write, and completes each message's future once its
+ * bytes are in the socket. Futures complete on the I/O thread, so callers should use the async
+ * variants for anything slow.
+ *
+ * Incoming lines, or frames in binary mode, are decoded on the I/O thread and passed to the
+ * onMessageReceived callback through the executor given to the constructor.
+ *
+ * With setTls the connection is encrypted through a TlsConnection, and only counts as established,
+ * completing connect() and sending the username, once the TLS handshake is done. Each reconnect
+ * creates a new engine for the same host and port, so it resumes the session of the previous
+ * connection instead of running a full handshake, as long as the server still has it.
+ *
+ * In binary mode, setCompression(true) asks the server to compress large frames. Once it has agreed,
+ * messages of Compression.DEFAULT_THRESHOLD bytes or more are also sent deflated, and compressed
+ * frames from the server are inflated before they reach the callback.
+ *
+ * The server pings a client that has been quiet for a while and disconnects it if it does not
+ * answer. Pings are answered on the I/O thread and never reach the callback, so an idle user stays
+ * connected.
+ *
+ * If an established connection drops, the client reconnects on its own. It waits 100 ms at first and
+ * doubles the delay up to 10 seconds, each time picking a random delay between half and all of it so
+ * the clients of a crashed server do not reconnect in lockstep. A server that shuts down gracefully
+ * sends a reconnect hint with the delay to use instead, and one that refused the username sends a
+ * hint not to reconnect at all. It then sends the username handshake again before anything
+ * queued in the meantime. Messages that were being written when the connection dropped fail, as they
+ * may or may not have reached the server. The callback is told about the reconnection with lines
+ * starting with "CLIENT:". A first connection that fails is not retried: connect() fails instead.
+ */
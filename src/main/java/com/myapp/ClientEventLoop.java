@@ -0,0 +1,140 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ClientEventLoop {
+    private static ClientEventLoop shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    // Work handed over by other threads, run on the loop thread before the next select
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Delayed work such as reconnect attempts, only touched by the loop thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+    public ClientEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        // The loop never keeps the application alive on its own
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // The loop used by every Client that is not given one of its own
+    public static synchronized ClientEventLoop shared() {
+        if (shared == null) {
+            try {
+                shared = new ClientEventLoop("client-io");
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the client selector", e);
+            }
+        }
+        return shared;
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Run a task on the loop thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Run a task on the loop thread once the delay has passed
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = System.nanoTime() + unit.toNanos(delay);
+        execute(() -> timers.add(new Timer(due, task)));
+    }
+
+    // Called on the loop thread, the attachment is told when the channel is ready
+    SelectionKey register(SelectableChannel channel, int ops, Client client) throws IOException {
+        return channel.register(selector, ops, client);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                long timeout = nextTimeoutMillis();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        ((Client) key.attachment()).onReady(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+                runTasks();
+                runTimers();
+            } catch (IOException | RuntimeException e) {
+                // One broken client must not stop the loop for all the others
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // How long select may block: 0 for no limit, -1 when something is already due
+    private long nextTimeoutMillis() {
+        if (!tasks.isEmpty()) {
+            return -1;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+        return millis <= 0 ? -1 : millis;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+            timers.poll().task.run();
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long due;
+        final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+}
+
+/**
+ * ClientEventLoop is the selector thread behind Client. A single loop can serve any number of
+ * clients: it connects their channels, reads and decodes what the server sends, writes their queued
+ * messages and runs their reconnect timers. Other threads only hand it tasks.
+ *
+ * Clients share one daemon loop unless they are given their own, so an App or CliClient uses a single
+ * I/O thread and the LoadGenerator drives thousands of users without a thread for each.
+ */
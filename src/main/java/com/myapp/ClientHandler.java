@@ -1,152 +1,224 @@
 package com.myapp;
 
-import java.io.BufferedReader; // Import the BufferedReader class for reading input
-import java.io.BufferedWriter; // Import the BufferedWriter class for writing output
+import java.io.BufferedInputStream; // Import the BufferedInputStream class for peeking at the protocol
+import java.io.BufferedOutputStream; // Import the BufferedOutputStream class for writing encoded output
+import java.io.EOFException; // Import the EOFException class for a client that leaves during the handshake
 import java.io.IOException; // Import the IOException class for handling input/output errors
-import java.io.InputStreamReader; // Import the InputStreamReader class for reading input
-import java.io.OutputStreamWriter; // Import the OutputStreamWriter class for writing output
 import java.net.Socket; // Import the Socket class for network communication
-import java.util.ArrayList; // Import the ArrayList class for storing client handlers
-import java.util.List; // Import the List interface for managing a list of client handlers
+import java.util.ArrayList; // Import the ArrayList class for the lines waiting to be flushed
+import java.util.List; // Import the List interface for the lines waiting to be flushed
+import java.util.concurrent.TimeUnit; // Import TimeUnit for the flush delay
 
-public class ClientHandler implements Runnable {
-    // Declare a list to store all client handlers
-    public static final List<ClientHandler> clientHandlers = new ArrayList<>();
+public class ClientHandler extends ChatSession implements Runnable {
     // Declare a socket to handle communication with a client
     private final Socket socket;
-    // Declare a reader to read input from the client
-    private final BufferedReader bufferedReader;
-    // Declare a writer to send output to the client
-    private final BufferedWriter bufferedWriter;
-    // Store the client's username
-    private final String clientUsername;
+    // Declare a stream to read input from the client
+    private final BufferedInputStream inputStream;
+    // Declare a reader to read lines from a text client, null for a binary client
+    private final LineReader lineReader;
+    // Declare a stream to send already encoded output to the client
+    private final BufferedOutputStream outputStream;
+    // Flush once this many bytes are buffered, even if more lines are queued
+    private final int flushBytes;
+    // How long to wait for more lines before flushing what is buffered
+    private final long flushDelayNanos;
+    // Lines written into the output buffer since the last flush, only used by the writer task
+    private final List<OutboundMessage> unflushed = new ArrayList<>();
 
     public ClientHandler(Socket socket) throws IOException {
+        this(socket, new ServerConfig());
+    }
+
+    public ClientHandler(Socket socket, ServerConfig config) throws IOException {
+        super(config);
         this.socket = socket;
-        // Initialize a reader to read input from the client
-        this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        // Initialize a writer to send output to the client
-        this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        // Read the client's username
-        String firstMessage = bufferedReader.readLine();
-        this.clientUsername = firstMessage.split(":")[0];
-        System.out.println("username logged as : " + clientUsername);
-        // Add this client handler to the list of handlers
-        clientHandlers.add(this);
-        // Broadcast a message about the client's entry
-        broadcastMessage("SERVER: " + clientUsername + " has entered the chat!");
+        // Initialize a stream to read input from the client
+        this.inputStream = new BufferedInputStream(ServerMetrics.counting(socket.getInputStream()));
+        // Initialize a stream to send output to the client
+        this.flushBytes = config.getFlushBytes();
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getFlushDelayMicros());
+        this.outputStream = new BufferedOutputStream(WriteStats.counting(socket.getOutputStream()), flushBytes);
+        // A client that connects and says nothing must not hold the handshake forever
+        socket.setSoTimeout((int) config.getHandshakeTimeoutMillis());
+        // A binary client starts with a zero byte, anything else is the first line of a text client
+        inputStream.mark(1);
+        if (inputStream.read() == 0) {
+            BinaryProtocol.readPreamble(inputStream);
+            this.binary = true;
+            this.lineReader = null;
+            // Read the client's username from its HELLO frame, join the chat and announce it
+            Frame hello = BinaryProtocol.read(inputStream, maxLineBytes);
+            if (hello == null || hello.type() != BinaryProtocol.HELLO) {
+                throw new IOException("Expected a HELLO frame");
+            }
+            if (!isValidUsername(hello.text())) {
+                throw new IOException("Expected a username in the HELLO frame");
+            }
+            register(hello.text());
+        } else {
+            inputStream.reset();
+            // Lines are read up to the configured limit, a client cannot make the server buffer more
+            this.lineReader = new LineReader(inputStream, maxLineBytes);
+            // Read the client's username, join the chat and announce it
+            String firstLine = lineReader.readLine();
+            if (firstLine == null) {
+                throw new EOFException("Connection closed before the handshake");
+            }
+            String username = usernameFromHandshake(firstLine);
+            if (username == null) {
+                throw new IOException("Expected a username in the first line");
+            }
+            register(username);
+        }
+        // From now on the IdleReaper keeps an eye on the connection
+        socket.setSoTimeout(0);
     }
 
     @Override
     public void run() {
-        String messageFromClient;
+        // This thread reads for this client only, so BLOCK may make it wait for a slow recipient
+        OutboundQueue.allowBlocking(true);
         try {
-            // Continuously check for new messages from the client as long as the socket is open
-            while (!socket.isClosed()) {
-                // Read a message from the client
-                messageFromClient = bufferedReader.readLine();
-                // This should be starts with
-                if (messageFromClient.contains("/msg")) {
-                    
-                    String [] splitMessage = messageFromClient.split(" ", 4);
-                    String user = splitMessage[2];
-                    String messageString = splitMessage[3];
-
-                    selfMessage("Messaged "+user+" : "+messageString);
-                    message(user, messageString);
-
-                } else if (messageFromClient.contains("/list")) {
-
-                    selfMessage("Users:");
-                    for (ClientHandler clientHandler : clientHandlers) {
-                        selfMessage(clientHandler.clientUsername);
-                    }
+            if (binary) {
+                readFrames();
+            } else {
+                readLines();
+            }
+        } finally {
+            OutboundQueue.allowBlocking(false);
+        }
+    }
 
-                } else if (messageFromClient != null) {
-                    // Broadcast the message to all clients
-                    broadcastMessage(messageFromClient);
+    private void readLines() {
+        String messageFromClient;
+        try {
+            // Continuously check for new messages from the client as long as the socket is open,
+            // a client whose username was refused only waits for the writer to close the connection
+            while (!socket.isClosed() && isRegistered()) {
+                try {
+                    // Read a message from the client
+                    messageFromClient = lineReader.readLine();
+                } catch (MessageTooLargeException e) {
+                    // The line has been skipped, carry on with the next one
+                    messageTooLarge(e.getSize());
+                    continue;
+                }
+                if (messageFromClient == null) {
+                    // The client closed the connection
+                    closeEverything();
+                    return;
                 }
+                // Run the command or broadcast the message
+                handleMessage(messageFromClient);
             }
         } catch (IOException e) {
             // Handle errors and close resources
             closeEverything();
+        } catch (RuntimeException e) {
+            // A bad frame or a bug must not leave the session registered with nobody reading it
+            e.printStackTrace();
+            closeEverything();
         }
     }
 
-    public void selfMessage(String message) throws IOException {
-
-        // Write the error message to the client
-        this.bufferedWriter.write(message + "\n");
-        // Flush the output to ensure the message is sent
-        this.bufferedWriter.flush();
-
-    }
-
-    public void broadcastMessage(String messageToSend) {
-        // Synchronize access to the list of client handlers
-        synchronized (clientHandlers) {
-            // Iterate through all client handlers in the list
-            for (ClientHandler clientHandler : clientHandlers) {
-                if (!clientHandler.equals(this)) {
-                    try {
-                        // Write the message to the output of another client handler
-                        clientHandler.bufferedWriter.write(messageToSend + "\n");
-                        // Flush the output to ensure the message is sent
-                        clientHandler.bufferedWriter.flush();
-                    } catch (IOException e) {
-                        // Handle errors and close resources for the other client handler
-                        clientHandler.closeEverything();
-                    }
+    private void readFrames() {
+        try {
+            // Handle frames until the client closes the connection,
+            // a client whose username was refused only waits for the writer to close the connection
+            while (isRegistered()) {
+                Frame frame;
+                try {
+                    frame = BinaryProtocol.read(inputStream, maxLineBytes);
+                } catch (MessageTooLargeException e) {
+                    // The payload has been skipped, the next frame starts right after it
+                    messageTooLarge(e.getSize());
+                    continue;
+                }
+                if (frame == null) {
+                    // The client closed the connection
+                    closeEverything();
+                    return;
                 }
+                handleFrame(frame);
             }
+        } catch (IOException e) {
+            // Handle errors and close resources
+            closeEverything();
+        } catch (RuntimeException e) {
+            // A bad frame or a bug must not leave the session registered with nobody reading it
+            e.printStackTrace();
+            closeEverything();
         }
     }
 
-    public void message(String user, String messageToSend) {
-        // Synchronize access to the list of client handlers
-        synchronized (clientHandlers) {
-            // Iterate through all client handlers in the list
-            for (ClientHandler clientHandler : clientHandlers) {
-                if (!clientHandler.equals(this)) {
-
-                    if (clientHandler.clientUsername.equals(user)) {
-                        try {
-                            // Write the message to the output of another client handler
-                            clientHandler.bufferedWriter.write("Private from "+this.clientUsername+" : "+messageToSend + "\n");
-                            // Flush the output to ensure the message is sent
-                            clientHandler.bufferedWriter.flush();
-                        } catch (IOException e) {
-                            // Handle errors and close resources for the other client handler
-                            clientHandler.closeEverything();
-                        }
+    // The writer task: write queued lines to the client until the session is closed
+    public void writeMessages() {
+        try {
+            OutboundMessage message;
+            // Wait for the next queued line, take() returns null once the queue is closed
+            while ((message = outboundQueue.take()) != null) {
+                int buffered = 0;
+                long flushDeadline = System.nanoTime() + flushDelayNanos;
+                // Keep buffering while lines are queued, then flush them with a single write
+                do {
+                    // Write the encoded message into the buffer
+                    message.writeTo(this.outputStream, binary, compressed);
+                    buffered += message.length(binary, compressed);
+                    unflushed.add(message);
+                    if (buffered >= flushBytes) {
+                        // Enough for a full write, do not wait for the queue to drain
+                        flush();
+                        buffered = 0;
+                        flushDeadline = System.nanoTime() + flushDelayNanos;
                     }
-                }
+                } while ((message = nextQueued(flushDeadline)) != null);
+                // Flush the output to ensure the messages are sent
+                flush();
             }
+            // The queue was closed, or finished and fully written
+            closeEverything();
+        } catch (IOException e) {
+            // Handle errors and close resources
+            closeEverything();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeEverything();
         }
     }
 
+    // Write out the buffered lines and let them know they have been written
+    private void flush() throws IOException {
+        this.outputStream.flush();
+        WriteStats.messagesWritten(unflushed.size());
+        for (OutboundMessage written : unflushed) {
+            written.written();
+        }
+        unflushed.clear();
+    }
 
-
-    public void removeClientHandler() {
-        // Synchronize access to the list of client handlers
-        synchronized (clientHandlers) {
-            // Remove this client handler from the list
-            clientHandlers.remove(this);
+    // The next queued line, waiting until the flush deadline when a flush delay is configured
+    private OutboundMessage nextQueued(long flushDeadline) throws InterruptedException {
+        OutboundMessage message = outboundQueue.poll();
+        if (message == null && flushDelayNanos > 0) {
+            message = outboundQueue.poll(flushDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
         }
-        // Broadcast a message about the client's departure
-        broadcastMessage("SERVER: " + clientUsername + " has left the chat!");
+        return message;
     }
 
-    public void closeEverything() {
-        // Remove this client handler from the list and announce their departure
-        removeClientHandler();
+    @Override
+    protected void messageQueued() {
+        // Nothing to do, the writer task is waiting on the queue
+    }
+
+    @Override
+    protected void closeConnection() {
         try {
             // Close the client's socket
             socket.close();
-            // Close the input reader
-            bufferedReader.close();
-            // Close the output writer
-            bufferedWriter.close();
+            // Close the input stream
+            inputStream.close();
+            // Close the output stream
+            outputStream.close();
         } catch (IOException e) {
             e.printStackTrace(); // Handle and log any errors
         }
@@ -158,23 +230,24 @@ public class ClientHandler implements Runnable {
  * The ClientHandler class represents a server-side client handler in a chat application.
  * It imports necessary libraries for network communication and handling client connections.
  *
- * ClientHandler maintains a list of active client handlers, each of which communicates with a client
- * over a network socket. It provides methods for sending and receiving messages, as well as managing clients.
+ * ClientHandler is the blocking, thread-per-connection engine: each instance communicates with a client
+ * over a network socket from its own thread. The chat behaviour itself (commands, broadcasting and the registry
+ * of active sessions) is inherited from ChatSession, which it shares with NioClientHandler.
  *
  * In the constructor, a new ClientHandler is created for each client's connection, with each instance
- * maintaining a unique client socket, input reader, and output writer. Upon connection, the client's username
- * is read, the ClientHandler is added to the list of active handlers, and a message is broadcasted
+ * maintaining a unique client socket, input stream, and output stream. Upon connection, the first byte tells
+ * whether the client speaks the text or the binary protocol, the client's username is read, the ClientHandler is added to the registry of active sessions, and a message is broadcasted
  * to notify other clients of the new arrival.
  *
- * The run method continuously listens for messages from the client and broadcasts them to other clients.
+ * The run method continuously listens for messages from the client and hands them to handleMessage,
+ * or to handleFrame for a binary client, and closes the session when the client closes its end. Lines are read with a LineReader and frames with a payload
+ * limit, so a line or frame longer than --max-line-bytes is skipped rather than buffered.
  * It operates as long as the client's socket remains open.
  *
- * The broadcastMessage method is used to send a message to all clients except the sender. It synchronizes
- * access to the list of client handlers to ensure thread safety.
- *
- * The removeClientHandler method removes a client handler from the list when the client disconnects
- * and broadcasts a departure message to other clients.
+ * The writeMessages method is the writer task, run on a second thread next to run. It takes lines from
+ * the outbound queue and writes them to the socket, so a slow client only ever blocks its own writer.
+ * Lines that are already queued are coalesced into one flush, up to the configured flush size.
  *
- * The closeEverything method is called to handle resource cleanup. It closes the client's socket,
- * input reader, and output writer and handles any potential exceptions.
+ * The closeConnection method is called from closeEverything to handle resource cleanup. It closes the
+ * client's socket, input stream, and output stream and handles any potential exceptions.
  */
@@ -0,0 +1,111 @@
+package com.myapp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ClientRegistry {
+    private static final ChatSession[] EMPTY = new ChatSession[0];
+    // Sessions are spread over this many partitions, so broadcast shards can each take their share
+    public static final int PARTITIONS = 64;
+
+    // Username to session, used to route private messages without scanning
+    private final ConcurrentMap<String, ChatSession> sessionsByName = new ConcurrentHashMap<>();
+    // Guards the copy-on-write of the partitions, only taken by joins and leaves
+    private final Object partitionLock = new Object();
+    // The sessions by ChatSession.partition(), each array replaced as a whole on every change and
+    // never modified in place, so a join or leave copies only the partition it touches
+    private final AtomicReferenceArray<ChatSession[]> partitions = emptyPartitions();
+    // How many sessions the partitions hold, written under the partition lock
+    private volatile int size;
+
+    private static AtomicReferenceArray<ChatSession[]> emptyPartitions() {
+        ChatSession[][] empty = new ChatSession[PARTITIONS][];
+        Arrays.fill(empty, EMPTY);
+        return new AtomicReferenceArray<>(empty);
+    }
+
+    // Register a session under its username, returns false if the name is already taken
+    public boolean register(String username, ChatSession session) {
+        if (sessionsByName.putIfAbsent(username, session) != null) {
+            return false;
+        }
+        int index = session.partition();
+        synchronized (partitionLock) {
+            ChatSession[] partition = partitions.get(index);
+            ChatSession[] updated = Arrays.copyOf(partition, partition.length + 1);
+            updated[partition.length] = session;
+            partitions.set(index, updated);
+            size++;
+        }
+        return true;
+    }
+
+    // Remove a session, returns false if it was not registered under that username
+    public boolean unregister(String username, ChatSession session) {
+        if (!sessionsByName.remove(username, session)) {
+            return false;
+        }
+        int index = session.partition();
+        synchronized (partitionLock) {
+            ChatSession[] partition = partitions.get(index);
+            for (int i = 0; i < partition.length; i++) {
+                if (partition[i] == session) {
+                    ChatSession[] updated = new ChatSession[partition.length - 1];
+                    System.arraycopy(partition, 0, updated, 0, i);
+                    System.arraycopy(partition, i + 1, updated, i, partition.length - i - 1);
+                    partitions.set(index, updated);
+                    size--;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    public ChatSession find(String username) {
+        return sessionsByName.get(username);
+    }
+
+    // A copy of every registered session, gathered partition by partition, so it costs a full
+    // walk; the frequent paths iterate partition() instead
+    public ChatSession[] snapshot() {
+        ChatSession[] all = new ChatSession[size];
+        int count = 0;
+        for (int index = 0; index < PARTITIONS; index++) {
+            ChatSession[] partition = partitions.get(index);
+            if (count + partition.length > all.length) {
+                // Someone joined while we were walking
+                all = Arrays.copyOf(all, count + partition.length);
+            }
+            System.arraycopy(partition, 0, all, count, partition.length);
+            count += partition.length;
+        }
+        return count == all.length ? all : Arrays.copyOf(all, count);
+    }
+
+    // The sessions of one partition at the time of the call; the array must not be modified
+    public ChatSession[] partition(int index) {
+        return partitions.get(index);
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * ClientRegistry keeps track of the sessions that completed the username handshake.
+ *
+ * Private messages are routed through a concurrent username map in constant time. The sessions are
+ * kept in PARTITIONS immutable arrays by their ChatSession.partition(), which never changes, and
+ * broadcasts walk those arrays without taking any lock; each BroadcastShards worker walks only the
+ * partitions it owns. Joins and leaves copy the one array they touch under a lock of their own, so
+ * they never wait for a broadcast in progress, a broadcast never waits for them, and a connect storm
+ * copies about a sixty-fourth of the members per login instead of all of them. Usernames are
+ * unique: registering a name that is already in use is refused.
+ *
+ * snapshot() gathers every partition into a fresh array and is meant for the rare whole-server
+ * walks, such as the shutdown drain and the metrics report.
+ */
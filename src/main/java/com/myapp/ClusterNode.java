@@ -0,0 +1,358 @@
+package com.myapp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClusterNode {
+    // A peer that has not even sent a PING for this long is taken for gone
+    private static final int PEER_TIMEOUT_MILLIS = 5000;
+
+    private final String nodeId;
+    private final ServerSocket serverSocket;
+    private final List<PeerLink> links = new ArrayList<>();
+    // Links that are up, by the node id of their peer
+    private final ConcurrentMap<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    // What each connected peer told us about its users, by node id
+    private final ConcurrentMap<String, Presence> presenceByNode = new ConcurrentHashMap<>();
+    private final LongAdder recordsRelayed = new LongAdder();
+    private final LongAdder bytesRelayed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder recordsDropped = new LongAdder();
+    private final LongAdder recordsReceived = new LongAdder();
+    private final LongAdder peersRefused = new LongAdder();
+
+    private ClusterNode(String nodeId, ServerSocket serverSocket) {
+        this.nodeId = nodeId;
+        this.serverSocket = serverSocket;
+    }
+
+    // Listen on the cluster port and start linking to every peer
+    public static ClusterNode start(ServerConfig config) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(config.getClusterBindAddress(), config.getClusterPort()));
+        ClusterNode node = new ClusterNode(config.getNodeId(), serverSocket);
+        for (String peer : config.getPeers().split(",")) {
+            if (!peer.isBlank()) {
+                node.links.add(new PeerLink(peer.trim(), node, config));
+            }
+        }
+        Thread acceptor = new Thread(node::acceptPeers, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : node.links) {
+            link.start();
+        }
+        System.out.println("cluster: node " + node.nodeId + " listening on "
+                + config.getClusterBindAddress() + ":" + config.getClusterPort());
+        return node;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Tell every peer where a local user is, after the handshake and after every change of room
+    public void userJoined(String username, String room) {
+        relayToAll(RelayProtocol.encode(RelayProtocol.USER, username, room));
+    }
+
+    public void userLeft(String username) {
+        relayToAll(RelayProtocol.encode(RelayProtocol.GONE, username));
+    }
+
+    // Relay a line broadcast to a room, only to the nodes that have users in that room
+    public void relayBroadcast(String room, MessageKind kind, String text) {
+        byte[] record = null;
+        for (PeerLink link : linksByNode.values()) {
+            Presence presence = presenceByNode.get(link.getPeerNodeId());
+            if (presence != null && presence.hasMembers(room)) {
+                if (record == null) {
+                    // Encoded once for all the nodes that need it
+                    record = RelayProtocol.encode(RelayProtocol.ROOM, room, kind.name(), text);
+                }
+                relay(link, record);
+            }
+        }
+    }
+
+    // Relay a private line to the node the user is on, returns false if no node has that user
+    public boolean relayPrivate(String username, String text) {
+        for (Map.Entry<String, Presence> entry : presenceByNode.entrySet()) {
+            if (entry.getValue().roomOf(username) != null) {
+                PeerLink link = linksByNode.get(entry.getKey());
+                return link != null && relay(link, RelayProtocol.encode(RelayProtocol.PRIVATE, username, text));
+            }
+        }
+        return false;
+    }
+
+    public boolean isRemoteUser(String username) {
+        for (Presence presence : presenceByNode.values()) {
+            if (presence.roomOf(username) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The users of other nodes in a room
+    public List<String> remoteMembers(String room) {
+        List<String> members = new ArrayList<>();
+        for (Presence presence : presenceByNode.values()) {
+            presence.collectMembers(room, members);
+        }
+        members.sort(null);
+        return members;
+    }
+
+    // How many users of other nodes are in each room
+    public Map<String, Integer> remoteRoomSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Presence presence : presenceByNode.values()) {
+            presence.roomSizes.forEach((room, size) -> sizes.merge(room, size, Integer::sum));
+        }
+        return sizes;
+    }
+
+    // A USER record for every local user, the first thing a new link sends
+    List<byte[]> localPresence() {
+        List<byte[]> records = new ArrayList<>();
+        for (ChatSession session : ChatSession.registry.snapshot()) {
+            Room room = session.getRoom();
+            if (room != null) {
+                records.add(RelayProtocol.encode(RelayProtocol.USER, session.getClientUsername(), room.getName()));
+            }
+        }
+        return records;
+    }
+
+    void linkUp(PeerLink link) {
+        linksByNode.put(link.getPeerNodeId(), link);
+        System.out.println("cluster: linked to " + link.getPeerNodeId() + " at " + link.getAddress());
+    }
+
+    void linkDown(PeerLink link) {
+        linksByNode.remove(link.getPeerNodeId(), link);
+    }
+
+    void batchWritten(int records, int bytes) {
+        batches.increment();
+        recordsRelayed.add(records);
+        bytesRelayed.add(bytes);
+    }
+
+    private void relayToAll(byte[] record) {
+        for (PeerLink link : linksByNode.values()) {
+            relay(link, record);
+        }
+    }
+
+    private boolean relay(PeerLink link, byte[] record) {
+        if (link.offer(record)) {
+            return true;
+        }
+        recordsDropped.increment();
+        return false;
+    }
+
+    private void acceptPeers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket peer = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(peer), "cluster-peer-" + peer.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Apply the records a peer sends until its link closes, then forget its users
+    private void readPeer(Socket peer) {
+        String peerNodeId = null;
+        Presence presence = new Presence();
+        try (Socket socket = peer) {
+            if (!isPeer(socket.getInetAddress())) {
+                // Whoever connects here can inject lines and presence, so only the configured peers may
+                peersRefused.increment();
+                System.out.println("cluster: refused " + socket.getRemoteSocketAddress() + ", not one of --peers");
+                return;
+            }
+            socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            RelayProtocol.Record hello = RelayProtocol.read(in);
+            if (hello == null || hello.type() != RelayProtocol.NODE) {
+                throw new IOException("Expected a NODE record");
+            }
+            peerNodeId = hello.field(0);
+            OutputStream out = socket.getOutputStream();
+            out.write(RelayProtocol.encode(RelayProtocol.NODE, nodeId));
+            out.flush();
+            // A reconnecting peer replaces what its previous connection told us
+            presenceByNode.put(peerNodeId, presence);
+            RelayProtocol.Record record;
+            while ((record = RelayProtocol.read(in)) != null) {
+                if (record.type() != RelayProtocol.PING) {
+                    recordsReceived.increment();
+                }
+                apply(record, presence);
+            }
+        } catch (IOException e) {
+            if (peerNodeId != null) {
+                System.out.println("cluster: " + peerNodeId + " disconnected: " + e.getMessage());
+            }
+        } finally {
+            if (peerNodeId != null) {
+                presenceByNode.remove(peerNodeId, presence);
+            }
+        }
+    }
+
+    // Whether a connection comes from one of the hosts in --peers, looked up again each time in case they moved
+    private boolean isPeer(InetAddress address) {
+        for (PeerLink link : links) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(link.getHost())) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Cannot be this peer then, try the others
+            }
+        }
+        return false;
+    }
+
+    private void apply(RelayProtocol.Record record, Presence presence) throws IOException {
+        switch (record.type()) {
+            case RelayProtocol.USER:
+                presence.userIn(record.field(0), record.field(1));
+                break;
+            case RelayProtocol.GONE:
+                presence.userGone(record.field(0));
+                break;
+            case RelayProtocol.ROOM:
+                MessageKind kind;
+                try {
+                    kind = MessageKind.valueOf(record.field(1));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown message kind " + record.field(1));
+                }
+                ChatSession.deliverRelayed(record.field(0), kind, record.field(2));
+                break;
+            case RelayProtocol.PRIVATE:
+                ChatSession.deliverRelayedPrivate(record.field(0), record.field(1));
+                break;
+            case RelayProtocol.PING:
+                break;
+            default:
+                throw new IOException("Unknown relay record type " + record.type());
+        }
+    }
+
+    // A line for /stats
+    public String report() {
+        long batchCount = batches.sum();
+        int users = 0;
+        for (Presence presence : presenceByNode.values()) {
+            users += presence.roomByUser.size();
+        }
+        return String.format("cluster: node %s, %d of %d peers linked, %d remote users, relayed %d records"
+                        + " (%d bytes) in %d batches, %.1f per batch, %d dropped, %d received, %d connections refused",
+                nodeId, linksByNode.size(), links.size(), users, recordsRelayed.sum(), bytesRelayed.sum(),
+                batchCount, batchCount == 0 ? 0.0 : (double) recordsRelayed.sum() / batchCount,
+                recordsDropped.sum(), recordsReceived.sum(), peersRefused.sum());
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+    }
+
+    // The users of one peer and the rooms they are in, written by that peer's reader thread only
+    private static final class Presence {
+        private final ConcurrentMap<String, String> roomByUser = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Integer> roomSizes = new ConcurrentHashMap<>();
+
+        void userIn(String username, String room) {
+            String previous = roomByUser.put(username, room);
+            if (previous != null) {
+                leave(previous);
+            }
+            roomSizes.merge(room, 1, Integer::sum);
+        }
+
+        void userGone(String username) {
+            String previous = roomByUser.remove(username);
+            if (previous != null) {
+                leave(previous);
+            }
+        }
+
+        private void leave(String room) {
+            roomSizes.computeIfPresent(room, (name, size) -> size == 1 ? null : size - 1);
+        }
+
+        String roomOf(String username) {
+            return roomByUser.get(username);
+        }
+
+        boolean hasMembers(String room) {
+            return roomSizes.containsKey(room);
+        }
+
+        void collectMembers(String room, List<String> members) {
+            roomByUser.forEach((username, userRoom) -> {
+                if (userRoom.equals(room)) {
+                    members.add(username);
+                }
+            });
+        }
+    }
+}
+
+/**
+ * ClusterNode lets several chat servers act as one, with each user connected to any of them.
+ *
+ * Every node listens on its cluster port and keeps a PeerLink to each of the others, so the nodes
+ * form a full mesh. A link only ever carries records one way; what a peer sends comes in on the
+ * connection that peer opened. Nodes tell each other about their users (USER when a user arrives or
+ * changes room, GONE when it leaves), and every node keeps that presence view of the others to answer
+ * /list and /rooms, to refuse usernames taken elsewhere and to route relayed lines.
+ *
+ * A broadcast is delivered locally as usual and relayed once to each node that has users in the
+ * room, which delivers it to its own members and journals chat lines. A private message for a user
+ * of another node is relayed to that node only. Relayed lines are never relayed again.
+ *
+ * The cluster port has no authentication of its own: it listens on loopback unless configured
+ * otherwise and only reads from hosts listed in --peers. Peers are told apart by address alone, so
+ * on a shared host or network that is only as good as that network, keep the port firewalled.
+ *
+ * The view is eventually consistent. Two users may grab the same name on two nodes at the same
+ * moment, and lines relayed while a link is down are lost. When a peer's connection drops its users
+ * disappear from the view, and the snapshot it sends on reconnecting brings them back.
+ */
@@ -0,0 +1,64 @@
+package com.myapp;
+
+public final class CommandArgs {
+    private String line;
+    // Where the next token starts, or the line's length once everything has been taken
+    private int position;
+
+    // Point at the arguments of a command, from the given offset of the line
+    void reset(String line, int offset) {
+        this.line = line;
+        this.position = offset;
+        skipSpaces();
+    }
+
+    public boolean isEmpty() {
+        return position >= line.length();
+    }
+
+    // The next space separated word, or an empty string if there is none
+    public String next() {
+        int start = position;
+        int end = line.indexOf(' ', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        position = end;
+        skipSpaces();
+        return line.substring(start, end);
+    }
+
+    // Everything not taken yet, with the trailing spaces removed
+    public String rest() {
+        int end = line.length();
+        while (end > position && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        String rest = line.substring(position, end);
+        position = line.length();
+        return rest;
+    }
+
+    // The next word as a number, or the default if there is none; NumberFormatException if it is not a number
+    public int nextInt(int defaultValue) {
+        if (isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(next());
+    }
+
+    private void skipSpaces() {
+        while (position < line.length() && line.charAt(position) == ' ') {
+            position++;
+        }
+    }
+}
+
+/**
+ * CommandArgs is a cursor over the arguments of one command line. Handlers take words with next(),
+ * numbers with nextInt() or the rest of the line, as a private message's text, with rest().
+ *
+ * It never splits the line: each word is one substring of the original, taken only when a handler
+ * asks for it. Every session reuses one CommandArgs for all of its commands, since only the thread
+ * reading that session dispatches them.
+ */
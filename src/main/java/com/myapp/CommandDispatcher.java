@@ -0,0 +1,122 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CommandDispatcher {
+    // Command names start with a printable ASCII character, which indexes the table
+    private static final int TABLE_SIZE = 128;
+
+    // Commands by the first character of their name, null where there are none; replaced as a whole on
+    // every registration and never modified in place
+    private volatile Entry[][] table = new Entry[TABLE_SIZE][];
+    // Guards the copy-on-write of the table, only taken by registrations
+    private final Object tableLock = new Object();
+
+    // Add a command, or replace the handler of a command by that name; the name is given without its slash
+    public void register(String name, CommandHandler handler) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("A command needs a name");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= TABLE_SIZE - 1 || c == '/') {
+                throw new IllegalArgumentException("Command names are printable ASCII without slashes: " + name);
+            }
+        }
+        synchronized (tableLock) {
+            Entry[][] updated = table.clone();
+            Entry[] bucket = updated[name.charAt(0)];
+            if (bucket == null) {
+                bucket = new Entry[0];
+            }
+            int index = 0;
+            while (index < bucket.length && !bucket[index].name.equals(name)) {
+                index++;
+            }
+            bucket = Arrays.copyOf(bucket, Math.max(bucket.length, index + 1));
+            bucket[index] = new Entry(name, handler);
+            updated[name.charAt(0)] = bucket;
+            table = updated;
+        }
+    }
+
+    // The handler of the command named by line[start, end), or null if there is none
+    public CommandHandler find(String line, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return null;
+        }
+        char first = line.charAt(start);
+        if (first >= TABLE_SIZE) {
+            return null;
+        }
+        Entry[] bucket = table[first];
+        if (bucket == null) {
+            return null;
+        }
+        // Only the commands sharing the first character, compared in place without cutting the name out
+        for (Entry entry : bucket) {
+            if (entry.name.length() == length && line.regionMatches(start, entry.name, 0, length)) {
+                return entry.handler;
+            }
+        }
+        return null;
+    }
+
+    // Run the command at offset in the line, where the slash is; returns false if there is no such command
+    public boolean dispatch(ChatSession session, String line, int offset, CommandArgs args) {
+        int nameStart = offset + 1;
+        int nameEnd = line.indexOf(' ', nameStart);
+        if (nameEnd < 0) {
+            nameEnd = line.length();
+        }
+        CommandHandler handler = find(line, nameStart, nameEnd);
+        if (handler == null) {
+            return false;
+        }
+        args.reset(line, nameEnd);
+        handler.handle(session, args);
+        return true;
+    }
+
+    // Every registered command name, sorted
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Entry[] bucket : table) {
+            if (bucket != null) {
+                for (Entry entry : bucket) {
+                    names.add(entry.name);
+                }
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private static final class Entry {
+        final String name;
+        final CommandHandler handler;
+
+        Entry(String name, CommandHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+}
+
+/**
+ * CommandDispatcher maps slash commands to their CommandHandlers. ChatSession registers the built-in
+ * ones (/msg, /list, /join and so on) in ChatSession.commands, and anything else can add or replace
+ * commands there at any time.
+ *
+ * Only the first word of a line is looked at, and only if the line starts with a slash, so a chat
+ * line that merely mentions "/msg" is still a chat line. The name is never cut out of the line: the
+ * table is indexed by its first character, and the few commands sharing it are compared in place
+ * with regionMatches. Dispatching a command therefore allocates nothing by itself; the handler takes
+ * only the arguments it needs from CommandArgs.
+ *
+ * The table is copy-on-write, like ClientRegistry's partitions, so lookups from every reader thread
+ * never take a lock.
+ */
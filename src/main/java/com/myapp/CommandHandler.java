@@ -0,0 +1,13 @@
+package com.myapp;
+
+@FunctionalInterface
+public interface CommandHandler {
+
+    // Run the command for the session that sent it, args holds whatever followed the command's name
+    void handle(ChatSession session, CommandArgs args);
+}
+
+/**
+ * CommandHandler is one slash command, registered by name with a CommandDispatcher. It runs on the
+ * thread reading the sender's connection, and pulls its arguments from CommandArgs as it needs them.
+ */
@@ -0,0 +1,139 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class Compression {
+    // The only algorithm supported, named in the COMPRESS frames of the handshake
+    public static final String DEFLATE = "deflate";
+    // Payloads shorter than this are sent as they are, deflate has little to work with
+    public static final int DEFAULT_THRESHOLD = 256;
+    // A compressed payload may not inflate to more than this, so a tiny frame cannot exhaust memory
+    public static final int MAX_INFLATED_BYTES = 1024 * 1024;
+
+    // Preset dictionary shared by both ends, so even a single short line finds earlier strings to refer
+    // to. Deflate prefers the end of the dictionary, the most common strings come last. Changing it
+    // breaks every client built with the old one.
+    private static final byte[] DICTIONARY = (
+            "    at java.base/java.lang.Thread.run(Thread.java:)\n"
+            + "    at java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:)\n"
+            + "Caused by: java.lang.NullPointerException: Cannot invoke \"\" because \"\" is null\n"
+            + "Exception in thread \"main\" java.lang.IllegalStateException: \n"
+            + " DEBUG  INFO  WARN  ERROR [main] 2026-01-01T00:00:00.000Z "
+            + "import java.util.List;\nimport java.util.Map;\n"
+            + "    public static void main(String[] args) {\n"
+            + "    private final String name;\n    @Override\n    public String toString() {\n"
+            + "        return null;\n    }\n}\n"
+            + "        if (x == null) {\n            throw new IllegalArgumentException(\"\");\n        }\n"
+            + "        for (int i = 0; i < n; i++) {\n"
+            + "def __init__(self): return self. function const let var => { } ( ) ; [ ] </div> <div class=\"\">"
+            + "```\n"
+            + "https://www. http:// .com/ .org/ "
+            + "SERVER: you are now in #lobby SERVER: usage /history <count> Messaged  : Private from  : "
+            + "SERVER:  has left the chat! SERVER:  has entered the chat! "
+            + "the to and of a in is it you that for was on are with this have be not but what can just "
+            + "like so do if about all at they we your there know think there's don't I'm it's that's "
+            + "would could should because anyone does did thanks please yes no ok lol : "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // Payload size from which compression pays off, set by the server from its configuration
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+
+    // Deflaters hold a few hundred KB of native memory each, so they are pooled instead of kept per
+    // connection or per thread; the pools only grow to the number of threads compressing at once
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    public static int threshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int payloadBytes) {
+        if (payloadBytes < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        threshold = payloadBytes;
+    }
+
+    // Deflate part of an array, returns null unless the result is smaller than the input
+    public static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            // Raw deflate, the zlib header and checksum would cost six bytes on every frame. The fastest level
+            // loses a few percent of ratio but deflates large pastes several times faster.
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // Output that does not fit in fewer bytes than the input is not worth sending
+            byte[] output = new byte[length];
+            int size = deflater.deflate(output);
+            if (!deflater.finished() || size == length) {
+                return null;
+            }
+            return Arrays.copyOf(output, size);
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    // Inflate a payload produced by deflate
+    public static byte[] inflate(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data, offset, length);
+            byte[] output = new byte[Math.min(Math.max(length * 4, 256), MAX_INFLATED_BYTES)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (output.length == MAX_INFLATED_BYTES) {
+                        throw new IOException("Compressed payload inflates to more than " + MAX_INFLATED_BYTES + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_INFLATED_BYTES));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                size += inflated;
+            }
+            return size == output.length ? output : Arrays.copyOf(output, size);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed payload", e);
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+}
+
+/**
+ * Compression is the optional deflate step of the binary protocol.
+ *
+ * A binary client asks for it with a COMPRESS frame naming "deflate" right after its HELLO, and the
+ * server answers with a COMPRESS frame of its own if it agrees. From then on either side may send any
+ * frame with a payload of at least the threshold deflated, marked by the COMPRESSED bit of its type
+ * byte; see BinaryProtocol.compress. The text protocol is never compressed, its lines are framed by
+ * newlines that deflated bytes would contain.
+ *
+ * Every payload is deflated on its own, against a preset dictionary of common chat, log and code
+ * strings known to both ends, rather than as part of a stream per connection. That costs some ratio
+ * on long conversations, but a broadcast can then be compressed once and the same bytes written to
+ * every recipient, which is what OutboundMessage does.
+ */
@@ -0,0 +1,222 @@
+package com.myapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConnectionLoadTest {
+
+    private final ServerConfig config;
+    private final int connections;
+    private final int probes;
+    // Clients that connect first and never send their username
+    private final int silent;
+
+    public ConnectionLoadTest(ServerConfig config, int connections, int probes) {
+        this(config, connections, probes, 0);
+    }
+
+    public ConnectionLoadTest(ServerConfig config, int connections, int probes, int silent) {
+        this.config = config;
+        this.connections = connections;
+        this.probes = probes;
+        this.silent = silent;
+    }
+
+    public void run() throws Exception {
+        Thread serverThread = new Thread(() -> {
+            try {
+                Server.run(config);
+            } catch (IOException e) {
+                throw new IllegalStateException("The server could not be started", e);
+            }
+        }, "load-test-server");
+        serverThread.setDaemon(true);
+        // There is nothing to measure without a server, stop instead of waiting for sessions forever
+        serverThread.setUncaughtExceptionHandler((thread, e) -> {
+            e.printStackTrace();
+            System.exit(1);
+        });
+        serverThread.start();
+        Thread.sleep(500);
+
+        long baseline = usedMemory();
+        // Left open until the process exits, each of them holds a handshake until it times out
+        List<Socket> silentClients = new ArrayList<>();
+        for (int i = 0; i < silent; i++) {
+            silentClients.add(new Socket("localhost", config.getPort()));
+        }
+        // The connect storm of a restart: every client connects and sends its username at once
+        long stormStart = System.nanoTime();
+        openIdleClients();
+        waitForSessions(connections);
+        double stormSeconds = (System.nanoTime() - stormStart) / 1e9;
+        long loaded = usedMemory();
+        double bytesPerConnection = (double) (loaded - baseline) / connections;
+
+        long[] latencies = measureBroadcastLatency();
+        Arrays.sort(latencies);
+
+        System.out.printf("mode=%s connections=%d threads=%d%n",
+                config.getMode().name().toLowerCase(), connections, Thread.activeCount());
+        System.out.printf("connect storm: %d clients registered in %.0f ms, %.0f connects/s, %d silent clients, handshake p99=%.1f ms%n",
+                connections, stormSeconds * 1000, connections / stormSeconds, silentClients.size(),
+                ServerMetrics.handshakeTime().valueAtPercentile(0.99) / 1e6);
+        System.out.printf("memory per connection: %.1f KB, connections per GB: %.0f%n",
+                bytesPerConnection / 1024, (1024.0 * 1024 * 1024) / bytesPerConnection);
+        System.out.printf("broadcast latency to %d recipients: p50=%.3f ms p99=%.3f ms max=%.3f ms%n",
+                connections + 1, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                latencies[latencies.length - 1] / 1_000_000.0);
+        System.out.println("socket writes: " + WriteStats.summary());
+    }
+
+    // Open the idle connections without a thread each; a single selector discards whatever they receive
+    private List<SocketChannel> openIdleClients() throws IOException {
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", config.getPort()));
+            channel.write(ByteBuffer.wrap(("idle" + i + ": \n").getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            channels.add(channel);
+        }
+        Thread drainer = new Thread(() -> {
+            ByteBuffer discard = ByteBuffer.allocate(64 * 1024);
+            try {
+                for (SocketChannel channel : channels) {
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                while (selector.isOpen()) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        discard.clear();
+                        if (((SocketChannel) key.channel()).read(discard) < 0) {
+                            key.cancel();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "load-test-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        return channels;
+    }
+
+    private long[] measureBroadcastLatency() throws IOException, InterruptedException {
+        // The receiver joins last, so each probe has gone through every other recipient before reaching it
+        Socket receiverSocket = new Socket("localhost", config.getPort());
+        BufferedReader receiver = new BufferedReader(
+                new InputStreamReader(receiverSocket.getInputStream(), StandardCharsets.UTF_8));
+        writeLine(receiverSocket, "receiver: ");
+        waitForSessions(connections + 1);
+
+        Socket senderSocket = new Socket("localhost", config.getPort());
+        writeLine(senderSocket, "sender: ");
+        waitForSessions(connections + 2);
+
+        long[] latencies = new long[probes];
+        for (int i = 0; i < probes; i++) {
+            writeLine(senderSocket, "sender: probe " + i + " " + System.nanoTime());
+            String line;
+            while ((line = receiver.readLine()) != null) {
+                if (line.startsWith("sender: probe " + i + " ")) {
+                    long sentAt = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                    latencies[i] = System.nanoTime() - sentAt;
+                    break;
+                }
+            }
+        }
+        senderSocket.close();
+        receiverSocket.close();
+        return latencies;
+    }
+
+    private static void writeLine(Socket socket, String line) throws IOException {
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        writer.write(line + "\n");
+        writer.flush();
+    }
+
+    private static void waitForSessions(int expected) throws InterruptedException {
+        while (ChatSession.registry.size() < expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    // Resident set size of this process, which includes thread stacks; falls back to the heap elsewhere
+    private static long usedMemory() throws IOException, InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        Path status = Paths.get("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    // Usage: ConnectionLoadTest --mode=virtual --port=1234 [--connections=10000] [--probes=200] [--silent=0]
+    public static void main(String[] args) throws Exception {
+        int connections = 10_000;
+        int probes = 200;
+        int silent = 0;
+        // The probes go out back to back from one client, only rate-limit them if asked to
+        List<String> serverArgs = new ArrayList<>(Arrays.asList("--rate-limit-messages=0", "--rate-limit-bytes=0"));
+        for (String arg : args) {
+            if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--probes=")) {
+                probes = Integer.parseInt(arg.substring("--probes=".length()));
+            } else if (arg.startsWith("--silent=")) {
+                silent = Integer.parseInt(arg.substring("--silent=".length()));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        new ConnectionLoadTest(config, connections, probes, silent).run();
+        System.exit(0);
+    }
+}
+
+/**
+ * ConnectionLoadTest compares the footprint and broadcast latency of the server engines.
+ *
+ * It starts a server in this process with the given mode, opens the requested number of idle
+ * connections and reports the memory each one costs (as connections per GB of resident memory),
+ * then times how long a broadcast takes to reach the last recipient. Running it once with
+ * --mode=blocking and once with --mode=virtual on Java 21 shows the difference between
+ * platform and virtual threads for the same ClientHandler code.
+ *
+ * Opening the connections is also timed, as connects per second until every client is registered,
+ * the storm a server sees when it restarts. With --silent=N that many clients connect first and never
+ * send a username, which must not slow the others down beyond taking N handshake threads.
+ */
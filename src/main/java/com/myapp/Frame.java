@@ -0,0 +1,71 @@
+package com.myapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Frame {
+    private final byte type;
+    private final byte[] payload;
+
+    public Frame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    // True if the payload is deflated, see BinaryProtocol.inflate
+    public boolean isCompressed() {
+        return (type & BinaryProtocol.COMPRESSED) != 0;
+    }
+
+    public byte[] payload() {
+        return payload;
+    }
+
+    // The whole payload as UTF-8 text
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    // True if the payload has a CR or LF byte; neither appears inside a multi-byte UTF-8 character
+    public boolean containsLineBreak() {
+        for (byte b : payload) {
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The recipient of a PRIVATE frame, stored as a length-prefixed string before the text
+    public String privateTarget() {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int length = recipientLength(buffer);
+        return new String(payload, buffer.position(), length, StandardCharsets.UTF_8);
+    }
+
+    // The text of a PRIVATE frame, everything after the recipient
+    public String privateText() {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int length = recipientLength(buffer);
+        int start = buffer.position() + length;
+        return new String(payload, start, payload.length - start, StandardCharsets.UTF_8);
+    }
+
+    // Read the recipient's length prefix, checked against what the payload holds
+    private int recipientLength(ByteBuffer buffer) {
+        int length = BinaryProtocol.readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed PRIVATE frame");
+        }
+        return length;
+    }
+}
+
+/**
+ * Frame is one decoded message of the binary protocol: its type and raw payload. Payloads are
+ * only turned into strings by the accessor that matches the type.
+ */
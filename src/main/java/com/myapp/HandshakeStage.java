@@ -0,0 +1,149 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLSocket;
+
+public class HandshakeStage {
+    private final ServerConfig config;
+    private final long timeoutMillis;
+    // Runs the handshakes, at most --handshake-threads at a time with up to --handshake-queue waiting
+    private final ThreadPoolExecutor pool;
+    // Closes the sockets of handshakes that are not done by their deadline
+    private final ScheduledExecutorService deadlines;
+    // Takes over every connection whose handshake succeeded
+    private final Consumer<ClientHandler> handoff;
+
+    public HandshakeStage(ServerConfig config, Consumer<ClientHandler> handoff) {
+        this.config = config;
+        this.timeoutMillis = config.getHandshakeTimeoutMillis();
+        this.handoff = handoff;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(config.getHandshakeThreads(), config.getHandshakeThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getHandshakeQueue()), runnable -> {
+                    Thread thread = new Thread(runnable, "handshake-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handshake-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called by the acceptor: run the handshake of a new connection on the pool, never waits
+    public void submit(Socket socket) {
+        if (pool.isShutdown()) {
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            pool.execute(new Handshake(socket, System.nanoTime()));
+        } catch (RejectedExecutionException e) {
+            // As many handshakes as allowed are running or waiting, better to refuse this one at once
+            ServerMetrics.handshakeRejected();
+            closeQuietly(socket);
+        }
+    }
+
+    // Stop taking connections and close those still in their handshake
+    public void close() {
+        for (Runnable waiting : pool.shutdownNow()) {
+            // Never started, nobody else will close them
+            closeQuietly(((Handshake) waiting).socket);
+        }
+        // Every pending deadline closes the socket of a handshake still running, run them all now
+        for (Runnable deadline : deadlines.shutdownNow()) {
+            deadline.run();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more can be done with a socket that failed to close
+        }
+    }
+
+    // The handshake of one accepted connection, run on a pool thread
+    private final class Handshake implements Runnable {
+        final Socket socket;
+        final long acceptedAt;
+
+        Handshake(Socket socket, long acceptedAt) {
+            this.socket = socket;
+            this.acceptedAt = acceptedAt;
+        }
+
+        @Override
+        public void run() {
+            // The deadline runs from here rather than from the accept: clients waiting behind silent
+            // ones must not run out of time before they get a thread, the bounded queue limits the wait
+            ScheduledFuture<?> deadline = timeoutMillis == 0 ? null
+                    : deadlines.schedule(() -> closeQuietly(socket), timeoutMillis, TimeUnit.MILLISECONDS);
+            ClientHandler handler;
+            try {
+                // The writer task flushes whole batches, a short one should go out without waiting for an ACK
+                socket.setTcpNoDelay(true);
+                if (socket instanceof SSLSocket) {
+                    shakeHandsTls((SSLSocket) socket);
+                }
+                // Reads the username or HELLO frame and registers the session
+                handler = new ClientHandler(socket, config);
+            } catch (IOException | RuntimeException e) {
+                // Left before the handshake, sent something else, or closed by its deadline;
+                // anything unexpected fails this handshake too rather than the pool thread
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                ServerMetrics.handshakeFailed();
+                closeQuietly(socket);
+                return;
+            }
+            if (deadline != null && !deadline.cancel(false)) {
+                // The deadline closed the socket right after the handshake, the session finds out on its first read
+                ServerMetrics.handshakeFailed();
+            } else {
+                ServerMetrics.handshakeCompleted(System.nanoTime() - acceptedAt);
+            }
+            handoff.accept(handler);
+        }
+
+        // The TLS handshake, before anything is read, so its cost is measured on its own
+        private void shakeHandsTls(SSLSocket sslSocket) throws IOException {
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            sslSocket.startHandshake();
+            ServerMetrics.tlsHandshake(System.nanoTime() - start, TlsContext.resumed(sslSocket.getSession(), startMillis));
+        }
+    }
+}
+
+/**
+ * HandshakeStage runs the username handshake of the blocking engines, between the acceptor and the
+ * ClientHandler threads. Server's accept loop only accepts and submits the socket here. One of
+ * --handshake-threads pool threads then builds the ClientHandler, whose constructor reads the first
+ * line or HELLO frame and registers the session, and hands the handler over to be run. On a TLS
+ * socket it runs the TLS handshake first, within the same deadline.
+ *
+ * A client that connects and says nothing, or trickles its first line a byte at a time, only ties up
+ * one pool thread for --handshake-timeout-millis, after which its socket is closed. The clock starts
+ * when a thread takes the connection, so clients queued behind silent ones still get their full time
+ * once a thread frees up. The acceptor itself never waits for a client, so it keeps accepting at full
+ * speed through a connection storm. When all pool threads are busy and --handshake-queue connections
+ * are already waiting, a new connection is closed straight away instead of waiting behind them.
+ * ServerMetrics counts the handshakes completed, failed and refused, and how long they took from the
+ * accept, queueing included.
+ */
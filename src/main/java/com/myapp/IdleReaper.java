@@ -0,0 +1,193 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class IdleReaper {
+    // How often the wheel turns, the precision of every timeout
+    static final long TICK_MILLIS = 250;
+    // Slots in the wheel, a power of two; timeouts longer than one turn wait out the extra turns in their slot
+    private static final int WHEEL_SIZE = 512;
+
+    // Ticks of silence before a session is pinged, 0 to never ping
+    private final long heartbeatTicks;
+    // Ticks of silence before a session is closed, 0 to never close one
+    private final long timeoutTicks;
+    // Ticks a new session has to complete its handshake, 0 to give it the idle timeout
+    private final long handshakeTicks;
+    // Sessions by the tick they are due to be checked at, modulo the wheel size
+    private final Queue<ChatSession>[] wheel;
+    private final ScheduledExecutorService timer;
+    // The current tick, read by every session on every message it receives
+    private volatile long tick;
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder sessionsReaped = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    private IdleReaper(long heartbeatMillis, long timeoutMillis, long handshakeMillis) {
+        this.heartbeatTicks = toTicks(heartbeatMillis);
+        this.timeoutTicks = toTicks(timeoutMillis);
+        this.handshakeTicks = toTicks(handshakeMillis);
+        this.wheel = (Queue<ChatSession>[]) new Queue<?>[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Start turning the wheel, or return null if the configuration neither pings nor closes any session
+    public static IdleReaper start(ServerConfig config) {
+        if (config.getHeartbeatSeconds() == 0 && config.getIdleTimeoutSeconds() == 0
+                && config.getHandshakeTimeoutMillis() == 0) {
+            return null;
+        }
+        IdleReaper reaper = new IdleReaper(TimeUnit.SECONDS.toMillis(config.getHeartbeatSeconds()),
+                TimeUnit.SECONDS.toMillis(config.getIdleTimeoutSeconds()), config.getHandshakeTimeoutMillis());
+        reaper.timer.scheduleAtFixedRate(reaper::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        return reaper;
+    }
+
+    private static long toTicks(long millis) {
+        return millis == 0 ? 0 : Math.max(1, (millis + TICK_MILLIS - 1) / TICK_MILLIS);
+    }
+
+    public long currentTick() {
+        return tick;
+    }
+
+    // Start watching a new session, it counts as active from now on
+    public void watch(ChatSession session) {
+        long now = tick;
+        session.lastActiveTick = now;
+        if (!session.isRegistered() && handshakeTicks != 0) {
+            // The NIO engine hands sessions over before their handshake
+            schedule(session, now + handshakeTicks);
+        } else if (firstCheck() != 0) {
+            schedule(session, now + firstCheck());
+        }
+    }
+
+    // Ticks after the last activity at which a session is first looked at
+    private long firstCheck() {
+        return heartbeatTicks != 0 ? heartbeatTicks : timeoutTicks;
+    }
+
+    private void schedule(ChatSession session, long dueTick) {
+        // Never into the slot being processed, or a slot already passed
+        long due = Math.max(dueTick, tick + 1);
+        session.idleCheckTick = due;
+        wheel[(int) (due & (WHEEL_SIZE - 1))].add(session);
+    }
+
+    // Called every tick on the timer thread: check the sessions due now
+    private void advance() {
+        long now = tick + 1;
+        tick = now;
+        Queue<ChatSession> slot = wheel[(int) (now & (WHEEL_SIZE - 1))];
+        List<ChatSession> later = null;
+        ChatSession session;
+        while ((session = slot.poll()) != null) {
+            if (session.closed.get()) {
+                // Closed some other way since it was scheduled, just forget it
+                continue;
+            }
+            if (session.idleCheckTick > now) {
+                // Due on a later turn of the wheel, put back once the slot is drained
+                if (later == null) {
+                    later = new ArrayList<>();
+                }
+                later.add(session);
+                continue;
+            }
+            try {
+                check(session, now);
+            } catch (RuntimeException e) {
+                // One broken session must not stop the wheel
+                e.printStackTrace();
+            }
+        }
+        if (later != null) {
+            slot.addAll(later);
+        }
+    }
+
+    // Reschedule a session that has been active, ping one that has gone quiet and close one that stayed quiet
+    private void check(ChatSession session, long now) {
+        long last = session.lastActiveTick;
+        long idle = now - last;
+        if (!session.isRegistered() && handshakeTicks != 0 && idle >= handshakeTicks) {
+            // Lines count as activity, so this is a client that has not sent a single complete one
+            ServerMetrics.handshakeFailed();
+            System.out.println("closing connection: no handshake");
+            session.closeEverything();
+        } else if (firstCheck() == 0) {
+            // Registered in time, and idle sessions are left alone
+        } else if (timeoutTicks != 0 && idle >= timeoutTicks) {
+            sessionsReaped.increment();
+            System.out.println("closing idle connection: "
+                    + (session.isRegistered() ? session.getClientUsername() : "no handshake"));
+            session.closeEverything();
+        } else if (heartbeatTicks != 0 && idle >= heartbeatTicks && session.isRegistered()) {
+            pingsSent.increment();
+            session.ping();
+            // Give it until the timeout to answer, or check again after another heartbeat without one
+            schedule(session, last + (timeoutTicks != 0 ? timeoutTicks : idle + heartbeatTicks));
+        } else if (idle >= firstCheck()) {
+            // Quiet but not pinged, a client still in its handshake: only the timeout applies
+            schedule(session, last + (timeoutTicks != 0 ? timeoutTicks : idle + firstCheck()));
+        } else {
+            // Heard from since it was scheduled, only the timestamp moved so this is the first look since
+            schedule(session, last + firstCheck());
+        }
+    }
+
+    // A line for /stats
+    public String report() {
+        return String.format("heartbeat: %d pings sent, %d idle connections closed",
+                pingsSent.sum(), sessionsReaped.sum());
+    }
+
+    public long pingsSent() {
+        return pingsSent.sum();
+    }
+
+    public long sessionsReaped() {
+        return sessionsReaped.sum();
+    }
+
+    public void close() {
+        timer.shutdownNow();
+    }
+}
+
+/**
+ * IdleReaper finds the connections that have gone silent: it pings a session after --heartbeat-seconds
+ * without a line or frame from it, and closes it after --idle-timeout-seconds. That catches half-open
+ * connections whose client vanished without a FIN, which no read would ever notice. Closing goes
+ * through closeEverything, so the session leaves the registry and its room and stops costing a queue
+ * slot on every broadcast. Any line or frame a client sends counts as a sign of life. Both timeouts
+ * are off unless configured, since a text client that predates the heartbeat never answers a ping.
+ *
+ * It is a hashed timer wheel rather than a timer per socket. Sessions sit in one of 512 slots, by the
+ * tick of a quarter second at which they are next due, and each tick looks at one slot only. Receiving
+ * a message never touches the wheel: the session just copies the current tick into a field. When a
+ * session comes up it is put back at its last activity plus the heartbeat if it has been heard from,
+ * pinged, or closed. So the wheel does work per silent session and per heartbeat interval, not per
+ * message, whether it watches a hundred connections or a hundred thousand.
+ *
+ * The NIO engine starts watching a session before its handshake, which it has --handshake-timeout-millis
+ * to complete; the blocking engines time their handshakes in HandshakeStage instead.
+ *
+ * Timeouts are only as precise as the tick. Timeouts longer than a turn of the wheel (128 seconds)
+ * leave the session in its slot for the extra turns.
+ */
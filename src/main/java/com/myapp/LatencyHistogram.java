@@ -0,0 +1,138 @@
+package com.myapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    // Each power of two is split into this many linear buckets, so a bucket is at most ~3% wide
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this get a bucket of their own
+    private static final int EXACT_LIMIT = SUB_BUCKETS * 2;
+    private static final int BUCKETS = EXACT_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+    // A set of counts per stripe, about one per core, so threads recording similar values rarely share a counter
+    private static final int STRIPES =
+            Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    // Record one value, from any thread; negative values count as zero
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        stripe().incrementAndGet(bucket(clamped));
+        total.increment();
+        sum.add(clamped);
+    }
+
+    // The calling thread's stripe, picked by a hash of its id so consecutive ids spread out
+    private AtomicLongArray stripe() {
+        long id = Thread.currentThread().getId();
+        return stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1)];
+    }
+
+    // The count of one bucket, summed over the stripes
+    private long count(int bucket) {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            count += stripe.get(bucket);
+        }
+        return count;
+    }
+
+    private static int bucket(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return EXACT_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    // The largest value that falls into a bucket
+    private static long highestValue(int bucket) {
+        if (bucket < EXACT_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - EXACT_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long mantissa = (bucket - EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // The value below which the given fraction of the recorded values fall, e.g. 0.99 for p99
+    public long valueAtPercentile(double percentile) {
+        long count = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = count(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (count(i) != 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    // Forget everything recorded so far; values recorded while this runs may or may not be kept
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        total.reset();
+        sum.reset();
+    }
+
+    // The usual percentiles of values recorded in nanoseconds, in milliseconds
+    public String summaryMillis() {
+        return String.format("count=%d mean=%.3f p50=%.3f p99=%.3f p999=%.3f max=%.3f ms",
+                count(), mean() / 1e6, valueAtPercentile(0.50) / 1e6, valueAtPercentile(0.99) / 1e6,
+                valueAtPercentile(0.999) / 1e6, max() / 1e6);
+    }
+}
+
+/**
+ * LatencyHistogram records a distribution of latencies (or any non-negative values) in fixed memory.
+ *
+ * Buckets follow the HDR histogram layout: values up to 63 are counted exactly, and above that every
+ * power of two is split into 32 linear buckets, so a reported percentile is never more than about 3%
+ * above the true value, from nanoseconds to hours. Recording is a few atomic increments and is safe
+ * from any number of threads. The bucket counts are striped, a copy per stripe of about one per
+ * core, and a thread always records into the stripe its id hashes to: samples of similar latency
+ * from several event loops or shards would otherwise all increment the same counter. Reading sums
+ * the stripes, so percentiles are read from a snapshot of the merged counts.
+ */
@@ -0,0 +1,88 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class LineReader {
+    private final InputStream in;
+    private final int maxLineBytes;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    // The line being read, grown as needed up to the limit
+    private byte[] line = new byte[256];
+
+    public LineReader(InputStream in, int maxLineBytes) {
+        this.in = in;
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    // The next line without its line terminator, or null at the end of the stream
+    public String readLine() throws IOException {
+        int length = 0;
+        long skipped = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (skipped > 0) {
+                    throw new MessageTooLargeException(skipped, maxLineBytes);
+                }
+                // A last line without a newline still counts
+                return length == 0 ? null : decode(length);
+            }
+            int end = position;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            int chunk = end - position;
+            if (skipped > 0 || length + chunk > maxLineBytes) {
+                // Too long: drop it, bytes already read included, and keep reading up to its end
+                skipped += length + chunk;
+                length = 0;
+            } else {
+                if (length + chunk > line.length) {
+                    line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + chunk), maxLineBytes));
+                }
+                System.arraycopy(buffer, position, line, length, chunk);
+                length += chunk;
+            }
+            if (end < limit) {
+                // Found the newline
+                position = end + 1;
+                if (skipped > 0) {
+                    throw new MessageTooLargeException(skipped, maxLineBytes);
+                }
+                return decode(length);
+            }
+            position = limit;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private String decode(int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * LineReader reads newline separated UTF-8 lines from a blocking stream, for ClientHandler's text
+ * clients, without ever holding more than --max-line-bytes of one line.
+ *
+ * BufferedReader.readLine keeps collecting characters until it sees a newline, so a client that
+ * never sends one can fill the server's heap. Here a line that grows past the limit is dropped as
+ * it arrives, and the reader skips ahead to its end and throws a MessageTooLargeException. The next
+ * readLine carries on with the line after it.
+ */
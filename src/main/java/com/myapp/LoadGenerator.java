@@ -0,0 +1,286 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    // Marks the lines sent by the generator, followed by the time the line was due to be sent
+    private static final String MARKER = "#lg ";
+    private static final int MAX_SIZE = 16 * 1024;
+
+    private String host = "localhost";
+    // One port, or several cluster nodes' ports separated by commas to spread the users over
+    private String ports = "1234";
+    private int users = 100;
+    private int rooms = 1;
+    private double rate = 100;
+    private int senderThreads = 4;
+    private long warmupSeconds = 5;
+    private long durationSeconds = 30;
+    private String sizes = "fixed:64";
+    private double privateRatio = 0.05;
+    private double listRatio = 0.01;
+    private boolean binary;
+    private boolean compression;
+    private boolean tls;
+
+    private final List<Client> clients = new ArrayList<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder chatSent = new LongAdder();
+    private final LongAdder privateSent = new LongAdder();
+    private final LongAdder listSent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private volatile boolean running = true;
+
+    public void run() throws Exception {
+        connectUsers();
+        // Give the server time to register everyone and deliver the join announcements
+        Thread.sleep(1000);
+
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < senderThreads; i++) {
+            int first = i;
+            Thread sender = new Thread(() -> sendLoop(first), "load-sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        resetCounters();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        printReport(elapsed);
+        running = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        for (Client client : clients) {
+            client.closeEverything();
+        }
+    }
+
+    private void connectUsers() throws IOException {
+        List<CompletableFuture<Void>> connections = new ArrayList<>();
+        // Shared by every user, so all but the first resume the first one's TLS session
+        TlsContext tlsContext = tls ? TlsContext.localClient() : null;
+        for (int i = 0; i < users; i++) {
+            String[] nodePorts = ports.split(",");
+            int port = Integer.parseInt(nodePorts[i % nodePorts.length].trim());
+            Client client = new Client("user" + i, host, port, binary);
+            client.setCompression(compression);
+            client.setTls(tlsContext);
+            client.onMessageReceived(this::messageReceived);
+            connections.add(client.connect());
+            if (rooms > 1) {
+                // Queued behind the handshake
+                client.sendMessage("/join room" + i % rooms);
+            }
+            clients.add(client);
+        }
+        CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[0])).join();
+        System.out.printf("connected %d users to %s:%s%n", users, host, ports);
+    }
+
+    // Called on the listener thread of every simulated user
+    private void messageReceived(String message) {
+        received.increment();
+        int marker = message.indexOf(MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int start = marker + MARKER.length();
+        int end = message.indexOf(' ', start);
+        try {
+            long dueAt = Long.parseLong(end < 0 ? message.substring(start) : message.substring(start, end));
+            latencies.record(System.nanoTime() - dueAt);
+        } catch (NumberFormatException e) {
+            // Not one of ours after all
+        }
+    }
+
+    // Each sender thread drives every senderThreads-th user, at its share of the total rate
+    private void sendLoop(int first) {
+        long interval = (long) (1e9 * senderThreads / rate);
+        long due = System.nanoTime();
+        int next = first;
+        while (running) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            send(next, due);
+            next += senderThreads;
+            if (next >= clients.size()) {
+                next = first;
+            }
+            // Open loop: the schedule does not slow down when the server does
+            due += interval;
+        }
+    }
+
+    private void send(int user, long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double action = random.nextDouble();
+        // Timestamp with when the line was due rather than when it went out, so a sender that falls behind shows up as latency
+        String body = MARKER + due + " " + padding(messageSize(random));
+        CompletableFuture<Void> sent;
+        if (action < listRatio) {
+            sent = clients.get(user).sendMessage("/list");
+            listSent.increment();
+        } else if (action < listRatio + privateRatio && clients.size() > 1) {
+            int recipient = random.nextInt(clients.size() - 1);
+            if (recipient >= user) {
+                recipient++;
+            }
+            sent = clients.get(user).sendMessage("/msg user" + recipient + " " + body);
+            privateSent.increment();
+        } else {
+            sent = clients.get(user).sendMessage(body);
+            chatSent.increment();
+        }
+        sent.whenComplete((result, error) -> {
+            if (error != null) {
+                sendErrors.increment();
+            }
+        });
+    }
+
+    // Draw a message size from the --sizes distribution: fixed:n, uniform:min:max or exponential:mean
+    private int messageSize(ThreadLocalRandom random) {
+        String[] parts = sizes.split(":");
+        switch (parts[0]) {
+            case "fixed":
+                return Integer.parseInt(parts[1]);
+            case "uniform":
+                return random.nextInt(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) + 1);
+            case "exponential":
+                double mean = Double.parseDouble(parts[1]);
+                return (int) Math.min(MAX_SIZE, -mean * Math.log(1 - random.nextDouble()));
+            default:
+                throw new IllegalArgumentException("Unknown size distribution " + sizes);
+        }
+    }
+
+    private static String padding(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+
+    private void resetCounters() {
+        latencies.reset();
+        chatSent.reset();
+        privateSent.reset();
+        listSent.reset();
+        received.reset();
+        sendErrors.reset();
+    }
+
+    private void printReport(double elapsed) {
+        long sent = chatSent.sum() + privateSent.sum() + listSent.sum();
+        System.out.printf("users=%d rooms=%d protocol=%s target rate=%.0f/s sizes=%s duration=%.1fs%n",
+                users, rooms, binary ? (compression ? "binary+deflate" : "binary") : "text", rate, sizes, elapsed);
+        System.out.printf("sent: %d (%.0f/s) chat=%d private=%d list=%d errors=%d%n",
+                sent, sent / elapsed, chatSent.sum(), privateSent.sum(), listSent.sum(), sendErrors.sum());
+        System.out.printf("received: %d lines (%.0f/s)%n", received.sum(), received.sum() / elapsed);
+        System.out.println("send to receive latency: " + latencies.summaryMillis());
+    }
+
+    // Usage: LoadGenerator [--host=localhost] [--port=1234[,1235...]] [--users=100] [--rooms=1] [--rate=100]
+    //        [--sender-threads=4] [--warmup-seconds=5] [--duration-seconds=30] [--sizes=fixed:64]
+    //        [--private-ratio=0.05] [--list-ratio=0.01] [--binary=false] [--compression=false] [--tls=false]
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host":
+                    generator.host = value;
+                    break;
+                case "port":
+                    generator.ports = value;
+                    break;
+                case "users":
+                    generator.users = Integer.parseInt(value);
+                    break;
+                case "rooms":
+                    generator.rooms = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    generator.rate = Double.parseDouble(value);
+                    break;
+                case "sender-threads":
+                    generator.senderThreads = Integer.parseInt(value);
+                    break;
+                case "warmup-seconds":
+                    generator.warmupSeconds = Long.parseLong(value);
+                    break;
+                case "duration-seconds":
+                    generator.durationSeconds = Long.parseLong(value);
+                    break;
+                case "sizes":
+                    generator.sizes = value;
+                    break;
+                case "private-ratio":
+                    generator.privateRatio = Double.parseDouble(value);
+                    break;
+                case "list-ratio":
+                    generator.listRatio = Double.parseDouble(value);
+                    break;
+                case "binary":
+                    generator.binary = Boolean.parseBoolean(value);
+                    break;
+                case "compression":
+                    generator.compression = Boolean.parseBoolean(value);
+                    break;
+                case "tls":
+                    generator.tls = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (generator.compression && !generator.binary) {
+            throw new IllegalArgumentException("--compression=true needs --binary=true");
+        }
+        generator.senderThreads = Math.max(1, Math.min(generator.senderThreads, generator.users));
+        generator.messageSize(ThreadLocalRandom.current()); // fail early on a bad --sizes
+        generator.run();
+        System.exit(0);
+    }
+}
+
+/**
+ * LoadGenerator drives a running chat server with many simulated users, to find out how much load
+ * it can take over loopback before latency suffers.
+ *
+ * Every user is a Client of its own, text, binary or binary with --compression, optionally spread
+ * over --rooms rooms, and over TLS with --tls=true against a local server's self-signed certificate;
+ * they all share the clients' single I/O thread. Given several ports, the users are also spread
+ * over those cluster nodes in turn. A few sender threads share the users and send on a fixed
+ * schedule adding up to --rate lines per second, whether or not the server keeps up. Most lines are
+ * chat lines; a fraction are private messages to a random user or /list requests. Message sizes
+ * follow the --sizes distribution.
+ *
+ * Each chat and private line carries the time it was scheduled to be sent. Whenever a simulated
+ * user receives one, the time since then goes into a LatencyHistogram, so a broadcast to a room of
+ * n users gives n-1 samples. Measuring from the schedule rather than from the actual write avoids
+ * hiding stalls of the generator itself. After --warmup-seconds the counters start over, and after
+ * --duration-seconds the tool prints throughput and the p50/p99/p999 latencies.
+ */
@@ -0,0 +1,447 @@
+package com.myapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class MessageJournal implements Closeable {
+    // A record is the length of its body, then the body: timestamp, room name length, room name, text
+    private static final int LENGTH_BYTES = 4;
+    private static final int BODY_HEADER = 8 + 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Appends waiting for the writer thread, more than this and new ones are dropped
+    private static final int PENDING_CAPACITY = 64 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long fsyncNanos;
+    private final int historyLimit;
+    private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<>(PENDING_CAPACITY);
+    // Recent offsets of every room, so history never scans the segments
+    private final ConcurrentMap<String, RoomIndex> roomIndexes = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    // Oldest first, the last one is written to; replaced as a whole by the writer thread
+    private volatile Segment[] segments;
+    // Every record below this offset is complete and may be read
+    private volatile long nextOffset;
+    private volatile boolean closed;
+
+    private MessageJournal(Path directory, ServerConfig config) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = config.getJournalSegmentBytes();
+        this.maxSegments = config.getJournalMaxSegments();
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(config.getJournalFsyncMillis());
+        this.historyLimit = config.getHistoryLimit();
+        recover();
+        this.writer = new Thread(this::writeBehind, "journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // Open the journal in the configured directory, picking up whatever an earlier run left there
+    public static MessageJournal open(ServerConfig config) throws IOException {
+        Path directory = Paths.get(config.getJournalDir());
+        Files.createDirectories(directory);
+        MessageJournal journal = new MessageJournal(directory, config);
+        journal.writer.start();
+        return journal;
+    }
+
+    // Rebuild the offset and room indexes from the segments on disk
+    private void recover() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(MessageJournal::isSegment).sorted().collect(Collectors.toList());
+        }
+        List<Segment> recovered = new ArrayList<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(path, baseOffset, segmentBytes);
+            segment.recover(this::indexRoom);
+            recovered.add(segment);
+        }
+        if (recovered.isEmpty()) {
+            recovered.add(Segment.open(segmentPath(0), 0, segmentBytes));
+        }
+        Segment last = recovered.get(recovered.size() - 1);
+        segments = recovered.toArray(new Segment[0]);
+        nextOffset = last.baseOffset + last.count;
+        if (nextOffset > 0) {
+            System.out.println("journal: recovered " + (nextOffset - segments[0].baseOffset) + " messages from " + directory);
+        }
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseOffset, SEGMENT_SUFFIX));
+    }
+
+    private void indexRoom(String room, long offset) {
+        roomIndexes.computeIfAbsent(room, name -> new RoomIndex(historyLimit)).add(offset);
+    }
+
+    // Hand a broadcast line to the writer thread, never waits; the line is dropped if the writer is too far behind
+    public void append(String room, OutboundMessage message) {
+        if (closed || !pending.offer(new Entry(room, message, System.currentTimeMillis()))) {
+            dropped.increment();
+        }
+    }
+
+    // The last lines written to a room, oldest first, read straight from the mapped segments
+    public List<OutboundMessage> history(String room, int count) {
+        RoomIndex index = roomIndexes.get(room);
+        if (index == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        long[] offsets = index.last(Math.min(count, historyLimit));
+        Segment[] current = segments;
+        List<OutboundMessage> messages = new ArrayList<>(offsets.length);
+        for (long offset : offsets) {
+            Segment segment = find(current, offset);
+            if (segment != null) {
+                messages.add(segment.read(offset));
+            }
+        }
+        return messages;
+    }
+
+    // The segment holding an offset, null once retention deleted it
+    private static Segment find(Segment[] segments, long offset) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments[middle].baseOffset <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high < 0 ? null : segments[high];
+    }
+
+    public int getHistoryLimit() {
+        return historyLimit;
+    }
+
+    // How many lines have been written since the journal was created
+    public long size() {
+        return nextOffset;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    // The writer thread: drain pending appends in batches and force them to disk on the fsync schedule
+    private void writeBehind() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        long lastForce = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (!closed || !pending.isEmpty()) {
+                Entry first = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH_SIZE - 1);
+                    for (Entry entry : batch) {
+                        write(entry);
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+                if (dirty && System.nanoTime() - lastForce >= fsyncNanos) {
+                    activeSegment().buffer.force();
+                    lastForce = System.nanoTime();
+                    dirty = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Without a segment to write to the journal stops, the chat itself goes on
+            e.printStackTrace();
+            closed = true;
+        } finally {
+            activeSegment().buffer.force();
+        }
+    }
+
+    private Segment activeSegment() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = BODY_HEADER + room.length + entry.message.textLength();
+        int recordLength = LENGTH_BYTES + bodyLength;
+        if (room.length > Short.MAX_VALUE || recordLength > segmentBytes) {
+            dropped.increment();
+            return;
+        }
+        Segment segment = activeSegment();
+        if (segment.writePosition + recordLength > segment.buffer.capacity()) {
+            segment = roll();
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.position(position + LENGTH_BYTES);
+        buffer.putLong(entry.timestamp).putShort((short) room.length).put(room);
+        entry.message.copyTextTo(buffer);
+        int end = position + recordLength;
+        if (end + LENGTH_BYTES <= buffer.capacity()) {
+            // Mark the end of the journal after this record, in case the segment is reused from an earlier run
+            buffer.putInt(end, 0);
+        }
+        // The length goes in last, so a record cut short by a crash reads as the end of the journal
+        buffer.putInt(position, bodyLength);
+        segment.writePosition = end;
+        long offset = nextOffset;
+        segment.addPosition(position);
+        nextOffset = offset + 1;
+        indexRoom(entry.room, offset);
+    }
+
+    // Start a new segment at the next offset, deleting the oldest ones beyond the retention limit
+    private Segment roll() throws IOException {
+        Segment[] current = segments;
+        current[current.length - 1].buffer.force();
+        long baseOffset = nextOffset;
+        Segment next = Segment.open(segmentPath(baseOffset), baseOffset, segmentBytes);
+        int keep = Math.min(current.length, maxSegments - 1);
+        Segment[] updated = new Segment[keep + 1];
+        System.arraycopy(current, current.length - keep, updated, 0, keep);
+        updated[keep] = next;
+        segments = updated;
+        for (int i = 0; i < current.length - keep; i++) {
+            // Readers still holding the old array keep a valid mapping until they let go of it
+            current[i].delete();
+        }
+        if (keep < current.length) {
+            // Forget the rooms with nothing left on disk, or every room ever named would keep its index
+            long oldest = updated[0].baseOffset;
+            roomIndexes.values().removeIf(index -> index.newest() < oldest);
+        }
+        return next;
+    }
+
+    // Write out what is pending, force it to disk and stop the writer thread
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments) {
+            segment.closeChannel();
+        }
+    }
+
+    // A line waiting for the writer thread
+    private static final class Entry {
+        final String room;
+        final OutboundMessage message;
+        final long timestamp;
+
+        Entry(String room, OutboundMessage message, long timestamp) {
+            this.room = room;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Receives each record found while recovering a segment
+    private interface RecordVisitor {
+        void record(String room, long offset);
+    }
+
+    // One memory-mapped file of records, with the position of each record within it
+    private static final class Segment {
+        final Path path;
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // Position of each record, indexed by offset minus baseOffset; replaced when it grows
+        volatile int[] positions = new int[1024];
+        // Only touched by the writer thread, and by recover before it starts
+        int count;
+        int writePosition;
+
+        private Segment(Path path, long baseOffset, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, long baseOffset, int segmentBytes) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // A segment written with a larger size by an earlier run is mapped as a whole
+            long size = Math.max(channel.size(), segmentBytes);
+            return new Segment(path, baseOffset, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        // Walk the records written by an earlier run, stopping at the first incomplete one
+        void recover(RecordVisitor visitor) {
+            int capacity = buffer.capacity();
+            int position = 0;
+            while (position + LENGTH_BYTES + BODY_HEADER <= capacity) {
+                int bodyLength = buffer.getInt(position);
+                if (bodyLength < BODY_HEADER || position + LENGTH_BYTES + bodyLength > capacity) {
+                    break;
+                }
+                int roomLength = buffer.getShort(position + LENGTH_BYTES + 8);
+                if (roomLength < 0 || BODY_HEADER + roomLength > bodyLength) {
+                    break;
+                }
+                byte[] room = new byte[roomLength];
+                ByteBuffer view = buffer.duplicate();
+                view.position(position + LENGTH_BYTES + BODY_HEADER);
+                view.get(room);
+                visitor.record(new String(room, StandardCharsets.UTF_8), baseOffset + count);
+                addPosition(position);
+                position += LENGTH_BYTES + bodyLength;
+            }
+            writePosition = position;
+        }
+
+        void addPosition(int position) {
+            int[] current = positions;
+            if (count == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[count++] = position;
+            positions = current;
+        }
+
+        // Copy the text of a record into a line ready to be queued, without decoding it
+        OutboundMessage read(long offset) {
+            int position = positions[(int) (offset - baseOffset)];
+            ByteBuffer view = buffer.duplicate();
+            int bodyLength = view.getInt(position);
+            int roomLength = view.getShort(position + LENGTH_BYTES + 8);
+            int textLength = bodyLength - BODY_HEADER - roomLength;
+            byte[] line = new byte[textLength + 1];
+            view.position(position + LENGTH_BYTES + BODY_HEADER + roomLength);
+            view.get(line, 0, textLength);
+            line[textLength] = '\n';
+            return OutboundMessage.ofEncodedLine(MessageKind.CHAT, line);
+        }
+
+        void delete() {
+            closeChannel();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The most recent offsets written to one room, in a ring of up to historyLimit entries
+    private static final class RoomIndex {
+        // A room that only ever sees a few lines should not cost a full ring
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final int capacity;
+        private long[] offsets;
+        private int next;
+        private int size;
+
+        RoomIndex(int capacity) {
+            this.capacity = capacity;
+            this.offsets = new long[Math.min(capacity, INITIAL_CAPACITY)];
+        }
+
+        synchronized void add(long offset) {
+            if (next == offsets.length && offsets.length < capacity) {
+                // Not wrapped yet, so the entries are in order from the start and the ring can simply grow
+                offsets = Arrays.copyOf(offsets, Math.min(capacity, offsets.length * 2));
+            }
+            offsets[next] = offset;
+            next = (next + 1) % offsets.length;
+            if (size < offsets.length) {
+                size++;
+            }
+        }
+
+        // The last offset written to the room
+        synchronized long newest() {
+            return offsets[Math.floorMod(next - 1, offsets.length)];
+        }
+
+        // The last count offsets, oldest first
+        synchronized long[] last(int count) {
+            int n = Math.min(count, size);
+            long[] result = new long[n];
+            int start = next - n;
+            for (int i = 0; i < n; i++) {
+                result[i] = offsets[Math.floorMod(start + i, offsets.length)];
+            }
+            return result;
+        }
+    }
+}
+
+/**
+ * MessageJournal is the server's persistent, append-only log of chat lines.
+ *
+ * Lines are written to a directory of fixed-size segment files, each one memory-mapped and named
+ * after the offset of its first record. Offsets number every line ever written and keep counting
+ * across segments and restarts. A record holds the time it was written, the room it was sent to
+ * and the UTF-8 text exactly as it went on the wire.
+ *
+ * Broadcasting only offers the already encoded OutboundMessage to a bounded queue; a single writer
+ * thread copies the lines into the mapped segment in batches, so disk latency never reaches the
+ * chat. The mapping is forced to disk every --journal-fsync-millis, when the segment rolls over and
+ * on close. If the writer falls far enough behind, lines are dropped from the journal (and counted)
+ * rather than slowing down the broadcast.
+ *
+ * Each segment keeps the position of its records, and each room a ring of its most recent offsets,
+ * so history is looked up without scanning. A ring starts small and grows up to --history-limit, and
+ * is dropped once retention has deleted the room's last line, so rooms named once and abandoned do
+ * not pile up. Reading history copies the text straight out of the
+ * mapped file into an OutboundMessage, without decoding it to a String. Both indexes are rebuilt by
+ * walking the segments when the journal is opened; a record whose length was never written is taken
+ * as the end of the journal, so a crash at most loses the lines that were not yet forced.
+ */
@@ -0,0 +1,28 @@
+package com.myapp;
+
+public enum MessageKind {
+    CHAT(BinaryProtocol.CHAT), // a chat line from another user
+    PRIVATE(BinaryProtocol.PRIVATE), // a private message for this user
+    LIST(BinaryProtocol.LIST), // the answer to a /list or /rooms request
+    SYSTEM(BinaryProtocol.SYSTEM), // a notice from the server
+    COMPRESS(BinaryProtocol.COMPRESS), // the server agrees to compress, only sent to binary clients that asked
+    PING(BinaryProtocol.PING), // the server checks an idle client is still there, the client answers with a pong
+    PONG(BinaryProtocol.PONG), // the answer to a client's ping
+    RECONNECT(BinaryProtocol.RECONNECT); // the server is closing the connection, "/reconnect <millis>", -1 for never
+
+    private final byte frameType;
+
+    MessageKind(byte frameType) {
+        this.frameType = frameType;
+    }
+
+    public byte frameType() {
+        return frameType;
+    }
+}
+
+/**
+ * MessageKind tells what an outbound line is. The text protocol ignores it; the binary protocol
+ * sends it as the frame type, so clients can tell chat, private messages, lists and server notices
+ * apart without looking at the text.
+ */
@@ -0,0 +1,25 @@
+package com.myapp;
+
+import java.io.IOException;
+
+public class MessageTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long size;
+
+    public MessageTooLargeException(long size, int limit) {
+        super("Message of " + size + " bytes is over the limit of " + limit);
+        this.size = size;
+    }
+
+    // How large the message was, or at least how much of it was read before giving up
+    public long getSize() {
+        return size;
+    }
+}
+
+/**
+ * MessageTooLargeException is thrown by the blocking readers when a line or frame is longer than
+ * --max-line-bytes. The message has been skipped by then, so the stream is still in step and the
+ * caller can tell the client and go on reading.
+ */
@@ -0,0 +1,360 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioClientHandler extends ChatSession {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8192;
+    // The most lines handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Encrypts and decrypts everything on the channel, null for a plaintext connection
+    private final TlsConnection tls;
+    private final NioEventLoop eventLoop;
+    // Bytes read from the client that do not form a complete line yet
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    // Set once the first bytes told whether this is a text or a binary client
+    private boolean protocolDetected;
+    // Set once the first line or HELLO frame, the username handshake, has been handled
+    private boolean handshakeReceived;
+    // Bytes of an oversized line dropped so far, set while dropping the rest of it up to its newline
+    private long discarded;
+    private boolean discarding;
+    // Bytes of an oversized frame still to be skipped
+    private long skipBytes;
+    // Lines gathered for the next socket write, kept when the socket could only take part of them
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    // The messages the gathered buffers belong to
+    private final OutboundMessage[] gatherMessages = new OutboundMessage[MAX_GATHER];
+    private int gatherStart;
+    private int gatherEnd;
+    // Stop gathering once this many bytes are pending
+    private final int flushBytes;
+    // Set while this handler waits in its event loop's flush queue
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // When the event loop took the connection over, right after the accept
+    private final long connectedAt = System.nanoTime();
+
+    public NioClientHandler(SocketChannel channel, SelectionKey key, TlsConnection tls, NioEventLoop eventLoop, ServerConfig config) {
+        super(config);
+        this.channel = channel;
+        this.key = key;
+        this.tls = tls;
+        this.eventLoop = eventLoop;
+        this.flushBytes = config.getFlushBytes();
+    }
+
+    // Called by the event loop when the channel has data to read
+    void onReadable() {
+        boolean handshaking = tls != null && !tls.isHandshakeDone();
+        do {
+            if (!readOnce()) {
+                return;
+            }
+        } while (tls != null && tls.hasBufferedInput());
+        if (tls != null && (tls.hasPendingOutput() || handshaking && tls.isHandshakeDone())) {
+            // Handshake records the socket did not take, or lines queued while the handshake ran
+            eventLoop.scheduleFlush(this);
+        }
+    }
+
+    // Read and handle what the channel has, false once the connection is closed
+    private boolean readOnce() {
+        int read;
+        try {
+            read = tls == null ? channel.read(readBuffer) : tls.read(channel, readBuffer);
+        } catch (IOException e) {
+            closeEverything();
+            return false;
+        }
+        if (read < 0) {
+            // The client closed its side of the connection
+            closeEverything();
+            return false;
+        }
+        ServerMetrics.bytesReceived(read);
+        readBuffer.flip();
+        if (!protocolDetected) {
+            detectProtocol();
+        }
+        if (protocolDetected) {
+            if (binary) {
+                processFrames();
+            } else {
+                processLines();
+            }
+        }
+        if (closed.get()) {
+            return false;
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            // A single line is larger than the buffer, make room for the rest of it
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        return true;
+    }
+
+    // A binary client starts with the protocol preamble, anything else is the first line of a text client
+    private void detectProtocol() {
+        if (!readBuffer.hasRemaining()) {
+            return;
+        }
+        if (readBuffer.get(readBuffer.position()) != 0) {
+            protocolDetected = true;
+            return;
+        }
+        if (readBuffer.remaining() < BinaryProtocol.PREAMBLE.length) {
+            // Wait for the rest of the preamble
+            return;
+        }
+        for (byte expected : BinaryProtocol.PREAMBLE) {
+            if (readBuffer.get() != expected) {
+                closeEverything();
+                return;
+            }
+        }
+        binary = true;
+        protocolDetected = true;
+    }
+
+    // Decode every complete frame in the readable bytes and handle it
+    private void processFrames() {
+        while (true) {
+            if (skipBytes > 0) {
+                // Drop the rest of an oversized frame as it arrives
+                int skipped = (int) Math.min(skipBytes, readBuffer.remaining());
+                readBuffer.position(readBuffer.position() + skipped);
+                skipBytes -= skipped;
+                if (skipBytes > 0) {
+                    return;
+                }
+            }
+            Frame frame;
+            try {
+                if (skipOversizedFrame()) {
+                    continue;
+                }
+                frame = BinaryProtocol.decode(readBuffer);
+            } catch (IllegalArgumentException e) {
+                // A length no frame could have, the stream cannot be trusted any more
+                closeEverything();
+                return;
+            }
+            if (frame == null || closed.get()) {
+                return;
+            }
+            if (!handshakeReceived) {
+                handshakeReceived = true;
+                if (frame.type() != BinaryProtocol.HELLO || !isValidUsername(frame.text())) {
+                    ServerMetrics.handshakeFailed();
+                    closeEverything();
+                    return;
+                }
+                register(frame.text());
+                ServerMetrics.handshakeCompleted(System.nanoTime() - connectedAt);
+            } else if (isRegistered()) {
+                // Frames after a refused handshake are ignored until the connection is closed
+                handleFrame(frame);
+            }
+            if (closed.get()) {
+                return;
+            }
+        }
+    }
+
+    // Start skipping the frame at the buffer's position if its payload is over the limit, before it is buffered
+    private boolean skipOversizedFrame() {
+        int start = readBuffer.position();
+        if (readBuffer.remaining() < 2) {
+            return false;
+        }
+        readBuffer.get();
+        int length = BinaryProtocol.readVarint(readBuffer);
+        if (length <= maxLineBytes) {
+            // Small enough, or the header is not complete yet
+            readBuffer.position(start);
+            return false;
+        }
+        skipBytes = length;
+        tooLarge(length);
+        return true;
+    }
+
+    // Drop an oversized line or frame, a client that starts with one is disconnected
+    private void tooLarge(long size) {
+        if (handshakeReceived && isRegistered()) {
+            messageTooLarge(size);
+        } else {
+            closeEverything();
+        }
+    }
+
+    // Split the readable bytes into newline terminated lines and handle each complete one
+    private void processLines() {
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && readBuffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                if (discarding || lineEnd - lineStart > maxLineBytes) {
+                    // The end of a line that was too long, drop it and carry on after it
+                    long size = discarded + lineEnd - lineStart;
+                    discarding = false;
+                    discarded = 0;
+                    lineStart = i + 1;
+                    readBuffer.position(lineStart);
+                    tooLarge(size);
+                    if (closed.get()) {
+                        return;
+                    }
+                    continue;
+                }
+                String line = new String(readBuffer.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                readBuffer.position(lineStart);
+                if (!handshakeReceived) {
+                    handshakeReceived = true;
+                    String username = usernameFromHandshake(line);
+                    if (username == null) {
+                        // Nobody to register, only this connection goes
+                        ServerMetrics.handshakeFailed();
+                        closeEverything();
+                        return;
+                    }
+                    register(username);
+                    ServerMetrics.handshakeCompleted(System.nanoTime() - connectedAt);
+                } else if (isRegistered()) {
+                    // Lines after a refused handshake are ignored until the connection is closed
+                    handleMessage(line);
+                }
+                if (closed.get()) {
+                    return;
+                }
+            }
+        }
+        if (discarding || readBuffer.limit() - lineStart > maxLineBytes) {
+            // No newline yet and already too long, stop buffering the line and drop it as it arrives
+            discarding = true;
+            discarded += readBuffer.limit() - lineStart;
+            readBuffer.position(readBuffer.limit());
+        }
+    }
+
+    @Override
+    protected void messageQueued() {
+        eventLoop.scheduleFlush(this);
+    }
+
+    // Returns true for the caller that has to put this handler on the flush queue
+    boolean markFlushScheduled() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    // Called on the event loop thread to write as much of the queue as the socket accepts
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get()) {
+            return;
+        }
+        try {
+            if (tls != null && (!tls.flush(channel) || !tls.isHandshakeDone())) {
+                // Records the socket did not take wait for it to be writable, queued lines for the handshake to finish
+                key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                return;
+            }
+            while (true) {
+                if (gatherStart == gatherEnd && !gatherQueued()) {
+                    if (outboundQueue.isFinished()) {
+                        // Everything queued before closeAfterFlush has been written
+                        closeEverything();
+                        return;
+                    }
+                    break;
+                }
+                if (tls == null) {
+                    // Write every gathered line with a single system call
+                    long written = channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                    WriteStats.writeCall(written);
+                } else {
+                    // Wrapped into as few records as fit, which are counted as they are written
+                    tls.write(channel, gather, gatherStart, gatherEnd - gatherStart);
+                }
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    gatherMessages[gatherStart].written();
+                    gatherMessages[gatherStart] = null;
+                    gather[gatherStart++] = null;
+                    WriteStats.messagesWritten(1);
+                }
+                if (gatherStart < gatherEnd || tls != null && tls.hasPendingOutput()) {
+                    // The socket send buffer is full, continue when the selector says it is writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeEverything();
+        }
+    }
+
+    // Move queued lines into the gather array, returns false if there were none
+    private boolean gatherQueued() {
+        gatherStart = 0;
+        gatherEnd = 0;
+        int gathered = 0;
+        OutboundMessage message;
+        while (gatherEnd < MAX_GATHER && gathered < flushBytes && (message = outboundQueue.poll()) != null) {
+            gatherMessages[gatherEnd] = message;
+            gather[gatherEnd++] = message.payload(binary, compressed);
+            gathered += message.length(binary, compressed);
+        }
+        return gatherEnd > 0;
+    }
+
+    @Override
+    protected void closeConnection() {
+        if (tls != null && eventLoop.inEventLoop()) {
+            // Say goodbye properly if the socket takes it; from another thread the engine is not ours to touch
+            tls.close(channel);
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
+
+/**
+ * NioClientHandler is the per-connection state of the non-blocking engine.
+ *
+ * It keeps a read buffer in which incoming bytes are framed into lines, or decoded into frames for
+ * a client that opened with the binary protocol preamble, and drains the session's outbound queue
+ * into the socket. All socket operations run on the owning NioEventLoop; messages may be queued
+ * from any thread, which then only schedules a flush. Queued lines are gathered into
+ * a single write of up to the configured flush size. When the socket cannot take everything,
+ * OP_WRITE is registered and the rest is written once the client catches up, so a slow reader
+ * never blocks an event loop.
+ *
+ * A line or frame longer than --max-line-bytes is never buffered whole. Once a line without a
+ * newline outgrows the limit its bytes are dropped as they arrive, up to its end, and a frame whose
+ * header announces too long a payload is skipped; either way the client is told and reading goes on.
+ *
+ * With --tls every read and write goes through a TlsConnection instead of the channel itself. The
+ * handshake happens as the first bytes are read, still on the event loop, and lines queued before it
+ * finishes are flushed as soon as it does.
+ */
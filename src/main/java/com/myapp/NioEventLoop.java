@@ -0,0 +1,170 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final ServerConfig config;
+    // Null for plaintext connections
+    private final TlsContext tls;
+    private final Thread thread;
+    // Channels accepted by the server that still have to be registered with the selector
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    // Handlers with newly queued lines that need their queue flushed here
+    private final Queue<NioClientHandler> pendingFlushes = new ConcurrentLinkedQueue<>();
+    // Set while a wakeup is already on its way, so a burst of writes costs a single wakeup
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public NioEventLoop(String name, ServerConfig config, TlsContext tls) throws IOException {
+        this.selector = Selector.open();
+        this.config = config;
+        this.tls = tls;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        wakeup();
+    }
+
+    // Flush the handler at the end of the current loop iteration, so lines queued meanwhile share a write
+    public void scheduleFlush(NioClientHandler handler) {
+        if (handler.markFlushScheduled()) {
+            pendingFlushes.add(handler);
+            if (!inEventLoop()) {
+                wakeup();
+            }
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                wakeupPending.set(false);
+                registerPending();
+                processSelectedKeys();
+                flushPending();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                // Lines leave in gathered writes already, small ones must not wait for the previous ACK
+                channel.socket().setTcpNoDelay(true);
+                TlsConnection connection = tls == null ? null : new TlsConnection(tls.serverEngine());
+                NioClientHandler handler = new NioClientHandler(channel, key, connection, this, config);
+                key.attach(handler);
+                ServerMetrics.connectionOpened();
+                handler.startIdleTimer();
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioClientHandler handler;
+        while ((handler = pendingFlushes.poll()) != null) {
+            try {
+                handler.flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                handler.closeEverything();
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioClientHandler handler = (NioClientHandler) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    handler.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.flush();
+                }
+            } catch (CancelledKeyException e) {
+                // The handler was closed while its events were being processed
+                handler.closeEverything();
+            } catch (RuntimeException e) {
+                // A bug or a bad client must only cost its own connection, never the loop's other clients
+                e.printStackTrace();
+                handler.closeEverything();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((NioClientHandler) key.attachment()).closeEverything();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with a channel that failed to close
+        }
+    }
+}
+
+/**
+ * NioEventLoop owns one Selector and the thread that polls it.
+ *
+ * Connections are handed over through register() and from then on every read, command and write for
+ * them happens on this thread. Other threads (for example an event loop broadcasting a message) only
+ * queue lines on a NioClientHandler and ask for a flush, which is picked up on the next wakeup.
+ * Flushes are deferred to the end of each iteration, so everything a handler receives while the
+ * selected keys are processed goes out in one write.
+ */
@@ -0,0 +1,86 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServer {
+    private final ServerSocketChannel serverChannel; // the listening channel, accepted in blocking mode
+    private final NioEventLoop[] eventLoops; // the selector threads that serve the accepted connections
+    private int nextEventLoop; // round-robin position used to spread new connections
+
+    public NioServer(ServerSocketChannel serverChannel, ServerConfig config) throws IOException {
+        this.serverChannel = serverChannel;
+        this.eventLoops = new NioEventLoop[config.getEventLoops()];
+        TlsContext tls = TlsContext.server(config); // null unless --tls is on
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i, config, tls);
+        }
+    }
+
+    public static NioServer open(ServerConfig config) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if (config.isReusePort()) {
+            if (!serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            // Share the port with the server that is about to drain
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+        return new NioServer(serverChannel, config);
+    }
+
+    public void startServer() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        try {
+            while (serverChannel.isOpen()) {
+                // Accept on this thread and hand the connection to the next event loop
+                SocketChannel channel = serverChannel.accept();
+                ServerMetrics.connectionAccepted();
+                System.out.println("a new client has connected!");
+                channel.configureBlocking(false);
+                eventLoops[nextEventLoop].register(channel);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Close the listening channel, connections already accepted are left alone
+    public void stopAccepting() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        stopAccepting();
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
+
+/**
+ * NioServer is the non-blocking engine of the chat server, selected with --mode=nio.
+ *
+ * Instead of a thread per connection it runs a small fixed set of NioEventLoop threads, one per core
+ * by default. The calling thread accepts connections and assigns them round-robin to the event loops,
+ * which then do all reading, line framing and writing for those connections. The handshake is just
+ * the first line an event loop reads, so a silent client costs no thread; the IdleReaper closes it
+ * once --handshake-timeout-millis have passed. With --tls the event loops also run the TLS handshake,
+ * through a TlsConnection per client, so it costs no thread either.
+ *
+ * Server.run stops it in two steps on shutdown: stopAccepting() first, so the sessions can drain,
+ * then close() for the event loops and whatever connections are left.
+ */
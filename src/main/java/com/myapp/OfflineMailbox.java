@@ -0,0 +1,296 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class OfflineMailbox {
+    // The file mail spills to once the memory budget is spent, in --mailbox-dir
+    static final String SPILL_FILE = "mailbox.spill";
+    // Roughly what a queued String costs besides its characters
+    private static final int MESSAGE_OVERHEAD = 56;
+
+    public enum Result { QUEUED, MAILBOX_FULL, SENDER_QUOTA }
+
+    private final int perUser;
+    private final int perSender;
+    private final long ttlNanos;
+    private final long memoryBytes;
+    private final long spillBytes;
+    // Null when mail that does not fit in memory is refused
+    private final FileChannel spill;
+    // Username to its mail, least recently written first so expired boxes are found at the head; guarded by this
+    private final LinkedHashMap<String, Box> boxes = new LinkedHashMap<>();
+    // Lines waiting in any box by who sent them, so no one sender can fill the mailbox
+    private final Map<String, Integer> pendingBySender = new HashMap<>();
+    private long bytesInMemory;
+    private long spillEnd;
+    private int spilledMessages;
+    private int queuedMessages;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    OfflineMailbox(int perUser, int perSender, long ttlMillis, long memoryBytes, long spillBytes, FileChannel spill) {
+        this.perUser = perUser;
+        this.perSender = perSender;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.memoryBytes = memoryBytes;
+        this.spillBytes = spillBytes;
+        this.spill = spill;
+    }
+
+    // Open the mailbox as configured, null if --mailbox-per-user turns it off; mail left by an earlier run is discarded
+    public static OfflineMailbox open(ServerConfig config) throws IOException {
+        if (config.getMailboxPerUser() == 0) {
+            return null;
+        }
+        FileChannel spill = null;
+        if (config.getMailboxDir() != null) {
+            Path directory = Paths.get(config.getMailboxDir());
+            Files.createDirectories(directory);
+            spill = FileChannel.open(directory.resolve(SPILL_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return new OfflineMailbox(config.getMailboxPerUser(), config.getMailboxPerSender(),
+                TimeUnit.MINUTES.toMillis(config.getMailboxTtlMinutes()), config.getMailboxMemoryBytes(),
+                config.getMailboxSpillBytes(), spill);
+    }
+
+    // Keep a private line for a user who is not connected, until they next log in or the box expires;
+    // the sender is charged for it, a null sender (a line relayed by another node) is not
+    public synchronized Result put(String username, String sender, String text) {
+        long now = System.nanoTime();
+        expire(now);
+        Box box = boxes.get(username);
+        if (box != null && box.size() >= perUser) {
+            refused.increment();
+            return Result.MAILBOX_FULL;
+        }
+        if (sender != null && perSender != 0 && pendingBySender.getOrDefault(sender, 0) >= perSender) {
+            refused.increment();
+            return Result.SENDER_QUOTA;
+        }
+        if (box == null) {
+            box = new Box();
+        } else {
+            // Written to again, so it moves to the back of the expiry order
+            boxes.remove(username);
+        }
+        boxes.put(username, box);
+        long cost = MESSAGE_OVERHEAD + 2L * text.length();
+        // Once a user's mail has spilled, the rest follows it to disk, so what is in memory is always older
+        if (box.spilledCount == 0 && bytesInMemory + cost <= memoryBytes) {
+            box.inMemory.add(text);
+            bytesInMemory += cost;
+        } else if (!spillToDisk(box, text)) {
+            refused.increment();
+            if (box.size() == 0) {
+                boxes.remove(username);
+            }
+            return Result.MAILBOX_FULL;
+        }
+        box.lastWritten = now;
+        box.senders.add(sender);
+        if (sender != null) {
+            pendingBySender.merge(sender, 1, Integer::sum);
+        }
+        queuedMessages++;
+        return Result.QUEUED;
+    }
+
+    // Drop the boxes nobody has written to for the time to live, mail for names that never log in
+    private void expire(long now) {
+        if (ttlNanos == 0) {
+            return;
+        }
+        Iterator<Box> iterator = boxes.values().iterator();
+        while (iterator.hasNext()) {
+            Box box = iterator.next();
+            if (now - box.lastWritten < ttlNanos) {
+                // The rest were written more recently
+                return;
+            }
+            iterator.remove();
+            expired.add(box.size());
+            release(box);
+        }
+    }
+
+    // Append a line to the spill file and index it in the user's box, false if there is no room on disk either
+    private boolean spillToDisk(Box box, String text) {
+        if (spill == null) {
+            return false;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (spillEnd + bytes.length > spillBytes) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = spillEnd;
+            while (buffer.hasRemaining()) {
+                position += spill.write(buffer, position);
+            }
+        } catch (IOException e) {
+            System.out.println("mailbox: could not spill to disk: " + e.getMessage());
+            return false;
+        }
+        box.spill(spillEnd, bytes.length);
+        spillEnd += bytes.length;
+        spilledMessages++;
+        return true;
+    }
+
+    // Remove and return all of a user's mail, oldest first; only that user's index is touched
+    public synchronized List<String> take(String username) {
+        Box box = boxes.remove(username);
+        if (box == null) {
+            return null;
+        }
+        List<String> mail = new ArrayList<>(box.size());
+        mail.addAll(box.inMemory);
+        for (int i = 0; i < box.spilledCount; i++) {
+            String text = readSpilled(box.offsets[i], box.lengths[i]);
+            if (text != null) {
+                mail.add(text);
+            }
+        }
+        release(box);
+        delivered.add(mail.size());
+        return mail;
+    }
+
+    // Give back what a box taken out of the map held: its memory, its senders' quota and its part of the spill file
+    private void release(Box box) {
+        for (String text : box.inMemory) {
+            bytesInMemory -= MESSAGE_OVERHEAD + 2L * text.length();
+        }
+        for (String sender : box.senders) {
+            if (sender != null) {
+                pendingBySender.computeIfPresent(sender, (name, count) -> count == 1 ? null : count - 1);
+            }
+        }
+        queuedMessages -= box.size();
+        spilledMessages -= box.spilledCount;
+        if (spilledMessages == 0 && spillEnd > 0) {
+            // Nothing on disk is wanted any more, start the file over
+            spillEnd = 0;
+            try {
+                spill.truncate(0);
+            } catch (IOException e) {
+                System.out.println("mailbox: could not truncate the spill file: " + e.getMessage());
+            }
+        }
+    }
+
+    private String readSpilled(long offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int read = spill.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("spill file ends at " + position);
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            System.out.println("mailbox: lost a spilled message: " + e.getMessage());
+            return null;
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    public synchronized int queued() {
+        return queuedMessages;
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    // A line for /stats
+    public synchronized String report() {
+        expire(System.nanoTime());
+        return String.format("mailbox: %d messages for %d users, %d spilled in %d bytes, %d delivered, %d refused,"
+                        + " %d expired",
+                queuedMessages, boxes.size(), spilledMessages, spillEnd, delivered.sum(), refused.sum(), expired.sum());
+    }
+
+    public synchronized void close() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.out.println("mailbox: " + e.getMessage());
+            }
+        }
+    }
+
+    // One user's mail: what is held in memory, then what spilled to disk, by offset and length in the spill file
+    private static final class Box {
+        long[] offsets;
+        int[] lengths;
+        int spilledCount;
+        final ArrayDeque<String> inMemory = new ArrayDeque<>();
+        // Who sent each line, to give the sender's quota back when the box is taken or expires
+        final List<String> senders = new ArrayList<>();
+        long lastWritten;
+
+        void spill(long offset, int length) {
+            if (offsets == null) {
+                offsets = new long[4];
+                lengths = new int[4];
+            } else if (spilledCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, spilledCount * 2);
+                lengths = Arrays.copyOf(lengths, spilledCount * 2);
+            }
+            offsets[spilledCount] = offset;
+            lengths[spilledCount] = length;
+            spilledCount++;
+        }
+
+        int size() {
+            return spilledCount + inMemory.size();
+        }
+    }
+}
+
+/**
+ * OfflineMailbox keeps the private messages sent to users who are not connected, and hands them over
+ * when the user next completes the handshake; see ChatSession.register.
+ *
+ * Mail is indexed by username, so queueing a line and delivering a user's mail only touch that
+ * user's box, however many others are waiting. A user may have up to --mailbox-per-user lines
+ * waiting, after which the sender is told the mailbox is full.
+ *
+ * Lines are held in memory up to --mailbox-memory-bytes in all. Past that, with --mailbox-dir set,
+ * they are appended to a spill file there of at most --mailbox-spill-bytes, and the box only keeps
+ * their offsets and lengths. Once a user's mail has spilled, the rest of it spills too, so the part
+ * in memory is always the older one and the mail is delivered in order. The file is started over
+ * whenever no spilled line is left; it is not an archive, and mail does not survive a restart.
+ *
+ * Mail for a name that never logs in must not hold on to the budget, since anyone can /msg a made-up
+ * name. Each sender may have --mailbox-per-sender lines waiting in all boxes together, and a box
+ * nobody has written to for --mailbox-ttl-minutes is dropped. Boxes are kept in the order they were
+ * last written, so the expired ones are always at the front and are removed as new mail comes in.
+ * A line relayed by another node has no sender here, only the per-user limit and the expiry apply.
+ *
+ * Mail is kept on the node it was sent to, so in a cluster a user gets it by logging in there.
+ */
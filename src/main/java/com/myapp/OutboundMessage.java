@@ -0,0 +1,212 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+public final class OutboundMessage {
+    private static final AtomicIntegerFieldUpdater<OutboundMessage> PENDING_WRITES =
+            AtomicIntegerFieldUpdater.newUpdater(OutboundMessage.class, "pendingWrites");
+
+    private final MessageKind kind;
+    // Decoded on first use for messages built from bytes read back from the journal
+    private volatile String text;
+    // The UTF-8 encoded line including its trailing newline, never modified after construction
+    private final byte[] bytes;
+    private final ByteBuffer payload;
+    // The binary frame, encoded by the first binary recipient and shared with the others
+    private volatile byte[] frame;
+    private volatile ByteBuffer framePayload;
+    // The frame with its payload deflated, or the plain frame when that does not pay off; built once
+    private volatile byte[] compressedFrame;
+    private volatile ByteBuffer compressedPayload;
+    // Set before the message is queued when its delivery is timed, see trackDelivery
+    private boolean tracked;
+    private long receivedAt;
+    // Recipients that have not written the message yet, minus those that wrote it before they were counted
+    private volatile int pendingWrites;
+
+    private OutboundMessage(MessageKind kind, String text, byte[] bytes) {
+        this.kind = kind;
+        this.text = text;
+        this.bytes = bytes;
+        this.payload = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Encode a chat line once, so it can be handed to any number of recipients
+    public static OutboundMessage of(String text) {
+        return of(MessageKind.CHAT, text);
+    }
+
+    public static OutboundMessage of(MessageKind kind, String text) {
+        return new OutboundMessage(kind, text, encodeLine(text));
+    }
+
+    // Wrap a line that is already UTF-8 encoded and ends with a newline, the array is not copied
+    public static OutboundMessage ofEncodedLine(MessageKind kind, byte[] line) {
+        return new OutboundMessage(kind, null, line);
+    }
+
+    private static byte[] encodeLine(String text) {
+        int length = text.length();
+        byte[] line = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Not plain ASCII, let the charset encoder handle it
+                byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+                line = new byte[encoded.length + 1];
+                System.arraycopy(encoded, 0, line, 0, encoded.length);
+                break;
+            }
+            line[i] = (byte) c;
+        }
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    private byte[] frame() {
+        byte[] encoded = frame;
+        if (encoded == null) {
+            // Two recipients may race to build it, they produce the same bytes
+            encoded = BinaryProtocol.encode(kind.frameType(), bytes, 0, bytes.length - 1);
+            framePayload = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+            frame = encoded;
+        }
+        return encoded;
+    }
+
+    private byte[] compressedFrame() {
+        byte[] encoded = compressedFrame;
+        if (encoded == null) {
+            // Deflating costs far more than framing, so recipients wait for the first one instead of racing it
+            synchronized (this) {
+                encoded = compressedFrame;
+                if (encoded == null) {
+                    encoded = frame();
+                    int threshold = Compression.threshold();
+                    if (textLength() >= threshold) {
+                        long start = System.nanoTime();
+                        encoded = BinaryProtocol.compress(encoded, threshold);
+                        ServerMetrics.compressed(System.nanoTime() - start);
+                    }
+                    compressedPayload = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+                    compressedFrame = encoded;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    // The encoded message as a recipient of the given protocol receives it
+    private byte[] encoded(boolean binary, boolean compressed) {
+        if (!binary) {
+            return bytes;
+        }
+        return compressed ? compressedFrame() : frame();
+    }
+
+    // Count what a compressed recipient did not have to be sent
+    private void countSaved(boolean binary, boolean compressed) {
+        if (binary && compressed) {
+            int saved = frame().length - compressedFrame().length;
+            if (saved > 0) {
+                ServerMetrics.compressedWrite(saved);
+            }
+        }
+    }
+
+    public MessageKind kind() {
+        return kind;
+    }
+
+    public String text() {
+        String decoded = text;
+        if (decoded == null) {
+            decoded = new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+            text = decoded;
+        }
+        return decoded;
+    }
+
+    // The length of the UTF-8 encoded text, without the newline
+    public int textLength() {
+        return bytes.length - 1;
+    }
+
+    // Copy the UTF-8 encoded text, without the newline, into a buffer
+    public void copyTextTo(ByteBuffer target) {
+        target.put(bytes, 0, bytes.length - 1);
+    }
+
+    // Time this broadcast from the moment its line was read, call before queueing it for anyone
+    public void trackDelivery(long receivedAtNanos) {
+        this.receivedAt = receivedAtNanos;
+        this.tracked = true;
+    }
+
+    // Called once the broadcast loop is done with the number of recipients it was queued for
+    public void queuedFor(int recipients) {
+        if (tracked && recipients > 0 && PENDING_WRITES.addAndGet(this, recipients) == 0) {
+            // Every recipient wrote it before the loop was over
+            ServerMetrics.delivered(System.nanoTime() - receivedAt);
+        }
+    }
+
+    // Called by a transport once this message has been written to its socket
+    public void written() {
+        if (tracked && PENDING_WRITES.decrementAndGet(this) == 0) {
+            ServerMetrics.delivered(System.nanoTime() - receivedAt);
+        }
+    }
+
+    // The encoded length for a text or binary recipient, compressed if it negotiated compression
+    public int length(boolean binary, boolean compressed) {
+        return encoded(binary, compressed).length;
+    }
+
+    // A read-only view of the encoded message with its own position, the bytes themselves are shared
+    public ByteBuffer payload(boolean binary, boolean compressed) {
+        if (!binary) {
+            return payload.duplicate();
+        }
+        countSaved(true, compressed);
+        if (compressed) {
+            compressedFrame();
+            return compressedPayload.duplicate();
+        }
+        frame();
+        return framePayload.duplicate();
+    }
+
+    public void writeTo(OutputStream out, boolean binary, boolean compressed) throws IOException {
+        countSaved(binary, compressed);
+        out.write(encoded(binary, compressed));
+    }
+}
+
+/**
+ * OutboundMessage is a chat line that has already been encoded for the wire.
+ *
+ * A broadcast encodes its text to UTF-8 with the newline framing exactly once, and every recipient
+ * queues the same instance. Recipients using the binary protocol share a frame built from those
+ * bytes on first use. Non-blocking sessions write a duplicate of the shared read-only buffer,
+ * blocking sessions copy the bytes straight into their socket stream, so there is no per-recipient
+ * char-to-byte conversion or string concatenation.
+ *
+ * Binary recipients that negotiated compression get a third form: the frame with its payload
+ * deflated, if it is over the Compression threshold and actually shrinks. It is built by the first
+ * such recipient while the others wait for it, so a broadcast is compressed at most once however
+ * many recipients it has.
+ *
+ * The MessageJournal stores those same encoded bytes, and history read back from it is wrapped
+ * with ofEncodedLine without going through a String at all.
+ *
+ * A broadcast can also time its own delivery. The broadcaster adds the number of recipients once
+ * its loop is done, and every transport subtracts one after writing the message. Writers may get
+ * there first and take the count below zero. Whoever brings it back to exactly zero was the last,
+ * and records the time since the line was read in ServerMetrics. Lines dropped from a full queue
+ * are never written, so their broadcast is not recorded.
+ */
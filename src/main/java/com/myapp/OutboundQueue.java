@@ -0,0 +1,229 @@
+package com.myapp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class OutboundQueue {
+
+    // What to do when a message arrives for a client whose queue is already full
+    public enum BackpressurePolicy {
+        DROP_OLDEST, // discard the oldest queued message to make room
+        DISCONNECT, // treat the client as a slow consumer and disconnect it
+        BLOCK // make the sender wait for room, up to the configured timeout, then disconnect
+    }
+
+    // Set on the threads that read for a single client, the only senders BLOCK may make wait
+    private static final ThreadLocal<Boolean> senderMayBlock = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    // Totals across every queue in the server
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalDisconnected = new LongAdder();
+
+    private final ArrayDeque<OutboundMessage> messages;
+    private final int capacity;
+    private final BackpressurePolicy policy;
+    private final long blockTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long dropped;
+    private int maxDepth;
+    private boolean closed;
+    private boolean finished;
+
+    public OutboundQueue(int capacity, BackpressurePolicy policy, long blockTimeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.messages = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    // Queue a message, returns false when the client is too slow and should be disconnected
+    public boolean offer(OutboundMessage message) {
+        lock.lock();
+        try {
+            if (closed || finished) {
+                return true;
+            }
+            if (messages.size() >= capacity && !makeRoom()) {
+                totalDisconnected.increment();
+                return false;
+            }
+            messages.addLast(message);
+            maxDepth = Math.max(maxDepth, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held and the queue full
+    private boolean makeRoom() {
+        switch (policy) {
+            case DROP_OLDEST:
+                messages.pollFirst();
+                dropped++;
+                totalDropped.increment();
+                return true;
+            case BLOCK:
+                if (!senderMayBlock.get()) {
+                    // An event loop, a shard or a timer serves many clients, waiting would stall all of them
+                    return false;
+                }
+                long remaining = blockTimeoutNanos;
+                try {
+                    while (messages.size() >= capacity && !closed && remaining > 0) {
+                        remaining = notFull.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return messages.size() < capacity || closed;
+            default:
+                return false;
+        }
+    }
+
+    // Let the calling thread wait under BLOCK from now on, or no longer; for the blocking engines' readers
+    public static void allowBlocking(boolean allowed) {
+        senderMayBlock.set(allowed);
+    }
+
+    // Wait for the next message, returns null once the queue has been closed or finished and drained
+    public OutboundMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !finished) {
+                notEmpty.await();
+            }
+            return closed || messages.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Take the next message without waiting, returns null when there is none
+    public OutboundMessage poll() {
+        lock.lock();
+        try {
+            return messages.isEmpty() || closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait up to the given time for the next message, returns null if none arrived
+    public OutboundMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !finished && remaining > 0) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return messages.isEmpty() || closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OutboundMessage removeFirst() {
+        OutboundMessage message = messages.pollFirst();
+        notFull.signal();
+        return message;
+    }
+
+    // Accept no more messages but let the ones already queued be written
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once finish() was called and everything queued before it has been taken
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return finished && messages.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Discard whatever is queued and wake up anyone waiting on this queue
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int maxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static long totalDropped() {
+        return totalDropped.sum();
+    }
+
+    public static long totalDisconnected() {
+        return totalDisconnected.sum();
+    }
+}
+
+/**
+ * OutboundQueue is the bounded queue of encoded lines waiting to be written to one client.
+ *
+ * Broadcasting only puts messages on the recipients' queues; each session drains its own queue
+ * (a writer task for ClientHandler, the event loop for NioClientHandler), so a client with a full
+ * TCP window can no longer stall everyone else. When a queue is full the BackpressurePolicy decides
+ * between dropping the oldest message, disconnecting the slow client, or making the sender wait.
+ * Only a thread that reads for a single client may wait: the readers of the blocking engines, which
+ * call allowBlocking. Anywhere else, an NIO event loop, a broadcast shard, the idle reaper or a
+ * cluster link, BLOCK disconnects the slow client as DISCONNECT would, since waiting there would stall
+ * every other connection that thread serves, possibly the very one that would make room.
+ *
+ * A queue can also be finished: it then refuses new messages, and the session closes its connection
+ * once the lines queued before have been written.
+ *
+ * Each queue tracks its current and maximum depth and how many messages it dropped; the static
+ * totals cover drops and slow-consumer disconnects across the whole server.
+ */
@@ -0,0 +1,180 @@
+package com.myapp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PeerLink implements Runnable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // A link with nothing to send writes a PING this often, a write is the only way to find the peer gone
+    private static final long PING_INTERVAL_MILLIS = 1000;
+    private static final byte[] PING = RelayProtocol.encode(RelayProtocol.PING);
+
+    private final String host;
+    private final int port;
+    private final ClusterNode node;
+    // Encoded records waiting to be written to the peer
+    private final BlockingQueue<byte[]> queue;
+    // Write out a batch once this many bytes are buffered
+    private final int batchBytes;
+    // How long to wait for more records before writing a batch
+    private final long delayNanos;
+    private final Thread thread;
+    // The peer's node id, set once it has answered the NODE record
+    private volatile String peerNodeId;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    public PeerLink(String address, ClusterNode node, ServerConfig config) {
+        this.host = address.substring(0, address.lastIndexOf(':'));
+        this.port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        this.node = node;
+        this.queue = new ArrayBlockingQueue<>(config.getRelayQueueCapacity());
+        this.batchBytes = config.getRelayBatchBytes();
+        this.delayNanos = TimeUnit.MICROSECONDS.toNanos(config.getRelayDelayMicros());
+        this.thread = new Thread(this, "cluster-link-" + address);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public String getPeerNodeId() {
+        return peerNodeId;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    // Queue an encoded record for the peer, returns false if the link is down or the queue is full
+    public boolean offer(byte[] record) {
+        return connected && queue.offer(record);
+    }
+
+    @Override
+    public void run() {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (!closed) {
+            try (Socket peer = new Socket()) {
+                socket = peer;
+                peer.setTcpNoDelay(true);
+                peer.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                BufferedOutputStream out = new BufferedOutputStream(peer.getOutputStream(), batchBytes);
+                out.write(RelayProtocol.encode(RelayProtocol.NODE, node.getNodeId()));
+                out.flush();
+                RelayProtocol.Record answer = RelayProtocol.read(new DataInputStream(peer.getInputStream()));
+                if (answer == null || answer.type() != RelayProtocol.NODE) {
+                    throw new IOException("Peer " + getAddress() + " did not answer with its node id");
+                }
+                peerNodeId = answer.field(0);
+                // Records queued while the link was down are stale, the presence snapshot replaces them
+                queue.clear();
+                connected = true;
+                node.linkUp(this);
+                backoffMillis = INITIAL_BACKOFF_MILLIS;
+                for (byte[] user : node.localPresence()) {
+                    out.write(user);
+                }
+                out.flush();
+                writeRecords(out);
+            } catch (IOException e) {
+                if (connected) {
+                    System.out.println("cluster: lost " + peerNodeId + " at " + getAddress() + ": " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (connected) {
+                    connected = false;
+                    node.linkDown(this);
+                }
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Write queued records until the link fails, everything queued at once goes out in one write
+    private void writeRecords(BufferedOutputStream out) throws IOException, InterruptedException {
+        while (!closed) {
+            byte[] record = queue.poll(PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (record == null) {
+                out.write(PING);
+                out.flush();
+                continue;
+            }
+            int buffered = 0;
+            int records = 0;
+            long deadline = System.nanoTime() + delayNanos;
+            do {
+                out.write(record);
+                buffered += record.length;
+                records++;
+                if (buffered >= batchBytes) {
+                    break;
+                }
+            } while ((record = nextQueued(deadline)) != null);
+            out.flush();
+            node.batchWritten(records, buffered);
+        }
+    }
+
+    private byte[] nextQueued(long deadline) throws InterruptedException {
+        byte[] record = queue.poll();
+        if (record == null && delayNanos > 0) {
+            record = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return record;
+    }
+
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * PeerLink is the outgoing half of the connection to one other node of the cluster.
+ *
+ * Its thread connects to the peer's cluster port, introduces this node with a NODE record and waits
+ * for the peer's own, then sends a USER record for every local user so the peer's presence view
+ * starts out complete. From then on it drains its queue of encoded records. Whatever is queued when
+ * it wakes up, up to the batch size, is written with a single flush, so relaying under load costs a
+ * fraction of a system call per record. With a relay delay it also waits that long for a batch to
+ * fill, at the cost of the same delay on every relayed line. An idle link sends a PING every second,
+ * so a peer that went away is noticed by a failing write even when there is nothing to relay.
+ *
+ * Records are only queued while the link is up, and a full queue drops them. When the connection
+ * fails the link retries with a backoff from 100 ms to 5 seconds. The peer sees the connection drop
+ * and forgets this node's users until the next snapshot arrives.
+ */
@@ -0,0 +1,76 @@
+package com.myapp;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // Nanoseconds of budget one message costs, 0 when messages are not limited
+    private final long nanosPerMessage;
+    // How far ahead of the clock the message schedule may run, that is the burst
+    private final long messageTolerance;
+    private final long bytesPerSecond;
+    private final long byteTolerance;
+    // When the bucket would be empty again if nothing else was sent, one per limit
+    private long messageSchedule;
+    private long byteSchedule;
+
+    public RateLimiter(int messagesPerSecond, int burst, int bytesPerSecond, int maxMessageBytes) {
+        this.nanosPerMessage = messagesPerSecond == 0 ? 0 : NANOS_PER_SECOND / messagesPerSecond;
+        this.messageTolerance = nanosPerMessage * burst;
+        this.bytesPerSecond = bytesPerSecond;
+        // A burst of one second's worth of bytes, but never less than the largest message allowed
+        this.byteTolerance = bytesPerSecond == 0 ? 0
+                : Math.max(NANOS_PER_SECOND, maxMessageBytes * NANOS_PER_SECOND / bytesPerSecond);
+        // Start with full buckets
+        this.messageSchedule = System.nanoTime();
+        this.byteSchedule = messageSchedule;
+    }
+
+    public static RateLimiter of(ServerConfig config) {
+        return new RateLimiter(config.getRateLimitMessages(), config.getRateLimitBurst(),
+                config.getRateLimitBytes(), config.getMaxLineBytes());
+    }
+
+    // Take one message of the given size from the buckets, returns false if either is empty
+    public boolean tryAcquire(int bytes) {
+        if (nanosPerMessage == 0 && bytesPerSecond == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        // How far ahead of now each schedule would be after this message
+        long nextMessageSchedule = 0;
+        if (nanosPerMessage != 0) {
+            // An idle client has its full burst back, never more
+            nextMessageSchedule = Math.max(messageSchedule - now, 0) + nanosPerMessage;
+            if (nextMessageSchedule > messageTolerance) {
+                return false;
+            }
+        }
+        long nextByteSchedule = 0;
+        if (bytesPerSecond != 0) {
+            nextByteSchedule = Math.max(byteSchedule - now, 0) + bytes * NANOS_PER_SECOND / bytesPerSecond;
+            if (nextByteSchedule > byteTolerance) {
+                return false;
+            }
+        }
+        // Both buckets had enough, only now take from either
+        messageSchedule = now + nextMessageSchedule;
+        byteSchedule = now + nextByteSchedule;
+        return true;
+    }
+}
+
+/**
+ * RateLimiter is the pair of token buckets that keeps one connection from flooding the server:
+ * one for lines or frames per second and one for bytes per second.
+ *
+ * Rather than topping up token counts on a timer, each bucket keeps the time at which it would be
+ * full again, as in the generic cell rate algorithm. A message pushes that time ahead by its cost and
+ * is allowed as long as it stays within the burst of the clock. That is a clock read, a few
+ * additions and one division per message, with no timer thread.
+ *
+ * Each session has its own limiter and only the thread reading that connection uses it, so there is
+ * nothing to share and no lock or atomic operation either. ChatSession drops what goes over the
+ * limit and tells the client once, until it slows down.
+ */
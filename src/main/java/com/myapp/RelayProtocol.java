@@ -0,0 +1,97 @@
+package com.myapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public final class RelayProtocol {
+    // Record types
+    public static final byte NODE = 1; // the sending node's id, first on a link in both directions
+    public static final byte USER = 2; // a user of the sending node and the room it is in
+    public static final byte GONE = 3; // a user that left the sending node
+    public static final byte ROOM = 4; // a line for the members of a room: room, kind and text
+    public static final byte PRIVATE = 5; // a line for one user of the receiving node: username and text
+    public static final byte PING = 6; // sent on an idle link so a dead peer is noticed, ignored by the receiver
+
+    // Longest field accepted from a peer, a chat line is far smaller
+    private static final int MAX_FIELD_BYTES = 16 * 1024 * 1024;
+
+    private RelayProtocol() {
+    }
+
+    // Encode a record: the type byte, the number of fields, then each field as a length and UTF-8 bytes
+    public static byte[] encode(byte type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeByte(fields.length);
+            for (String field : fields) {
+                byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+        } catch (IOException e) {
+            // Never thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Read the next record, returns null at the end of the stream
+    public static Record read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        try {
+            String[] fields = new String[in.readUnsignedByte()];
+            for (int i = 0; i < fields.length; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FIELD_BYTES) {
+                    throw new IOException("Relay field of " + length + " bytes");
+                }
+                byte[] encoded = new byte[length];
+                in.readFully(encoded);
+                fields[i] = new String(encoded, StandardCharsets.UTF_8);
+            }
+            return new Record((byte) type, fields);
+        } catch (EOFException e) {
+            throw new EOFException("Peer closed the connection inside a record");
+        }
+    }
+
+    public static final class Record {
+        private final byte type;
+        private final String[] fields;
+
+        Record(byte type, String[] fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        // A field of the record, failing on records sent with fewer fields than their type needs
+        public String field(int index) throws IOException {
+            if (index >= fields.length) {
+                throw new IOException("Relay record of type " + type + " is missing field " + index);
+            }
+            return fields[index];
+        }
+    }
+}
+
+/**
+ * RelayProtocol is what the nodes of a cluster say to each other, see ClusterNode.
+ *
+ * A link carries a stream of records, each a type byte followed by its string fields. There is no
+ * framing beyond that: a batch is simply every record queued for the peer written out in one go.
+ * Records are encoded once by the thread that produced them and the same bytes are queued for every
+ * peer that needs them.
+ */
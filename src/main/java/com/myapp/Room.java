@@ -0,0 +1,30 @@
+package com.myapp;
+
+public class Room {
+    private final String name;
+    // The sessions currently in this room, indexed by username
+    private final ClientRegistry members = new ClientRegistry();
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ClientRegistry getMembers() {
+        return members;
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
+
+/**
+ * Room is a named channel and the sessions that are in it.
+ *
+ * Membership is a ClientRegistry of its own, so a room-scoped broadcast iterates only the members'
+ * partitions and its cost grows with the size of the room rather than with the whole server.
+ */
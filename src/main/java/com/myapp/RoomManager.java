@@ -0,0 +1,51 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class RoomManager {
+    // The room every client is in after the handshake and returns to with /leave
+    public static final String DEFAULT_ROOM = "lobby";
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // Add a session to a room, creating the room if it does not exist yet
+    public Room join(String roomName, ChatSession session) {
+        // Done inside compute so the room cannot be removed between its lookup and the join
+        return rooms.compute(roomName, (name, room) -> {
+            Room joined = room != null ? room : new Room(name);
+            joined.getMembers().register(session.getClientUsername(), session);
+            return joined;
+        });
+    }
+
+    // Remove a session from a room, dropping the room once its last member is gone
+    public void leave(Room room, ChatSession session) {
+        rooms.computeIfPresent(room.getName(), (name, current) -> {
+            current.getMembers().unregister(session.getClientUsername(), session);
+            return current.size() == 0 ? null : current;
+        });
+    }
+
+    public Room find(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    // The current rooms sorted by name
+    public List<Room> rooms() {
+        List<Room> sorted = new ArrayList<>(rooms.values());
+        sorted.sort(Comparator.comparing(Room::getName));
+        return sorted;
+    }
+}
+
+/**
+ * RoomManager holds the rooms of the server, keyed by name.
+ *
+ * Rooms are created by the first /join and removed when their last member leaves. Joining and
+ * leaving run atomically against the room map, so a client can never end up in a room that has
+ * just been discarded.
+ */
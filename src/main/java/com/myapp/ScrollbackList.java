@@ -0,0 +1,75 @@
+package com.myapp;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScrollbackList extends ObservableListBase<String> {
+    private final String[] lines;
+    // Index of the oldest line in the ring
+    private int head;
+    private int size;
+
+    public ScrollbackList(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.lines = new String[capacity];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    // Add a batch of lines at the end, dropping the oldest ones beyond the capacity, as a single change
+    public void appendAll(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // Only the newest lines of an oversized batch would survive anyway
+        List<String> added = batch.size() > lines.length ? batch.subList(batch.size() - lines.length, batch.size()) : batch;
+        int overflow = Math.max(0, size + added.size() - lines.length);
+        beginChange();
+        try {
+            if (overflow > 0) {
+                List<String> removed = new ArrayList<>(overflow);
+                for (int i = 0; i < overflow; i++) {
+                    removed.add(lines[head]);
+                    lines[head] = null;
+                    head = (head + 1) % lines.length;
+                }
+                size -= overflow;
+                nextRemove(0, removed);
+            }
+            int from = size;
+            for (String line : added) {
+                lines[(head + size) % lines.length] = line;
+                size++;
+            }
+            nextAdd(from, size);
+        } finally {
+            endChange();
+        }
+    }
+}
+
+/**
+ * ScrollbackList is the chat history shown by the App: an ObservableList over a fixed-size ring of
+ * lines. Once it is full every new line replaces the oldest one, so the client's memory stays flat
+ * however long it runs. Lines are added in batches, each reported to the ListView as one change, and
+ * the ListView only creates cells for the lines on screen.
+ */
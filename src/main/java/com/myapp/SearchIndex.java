@@ -0,0 +1,354 @@
+package com.myapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SearchIndex {
+    // Lines waiting for the indexer thread, more than this and new ones are not indexed
+    private static final int PENDING_CAPACITY = 64 * 1024;
+    // Lines indexed per write lock, small enough that a search never waits long
+    private static final int BATCH_SIZE = 256;
+    private static final long POLL_MILLIS = 100;
+    // Words shorter than this are not indexed, nor searched for
+    private static final int MIN_TERM_LENGTH = 2;
+    // Longer words are cut, nobody searches for a URL's full query string
+    private static final int MAX_TERM_LENGTH = 32;
+    // Room names are indexed as a term of their own, a character no word contains keeps them apart
+    private static final char ROOM_TERM = '#';
+    // Sweep the terms whose lines have all been evicted after this many new lines
+    private static final int SWEEP_INTERVAL = 64 * 1024;
+
+    private final int capacity;
+    private final long retentionMillis;
+    private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<>(PENDING_CAPACITY);
+    // The indexer thread writes, searches read
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // The retained lines by id modulo the capacity, with when they were said
+    private final String[] texts;
+    private final long[] times;
+    // Term to the ids of the lines containing it, in increasing order
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // The id the next line gets, and the oldest id still retained
+    private int nextId;
+    private int oldestId;
+    private int sinceSweep;
+    private final LongAdder dropped = new LongAdder();
+    private final LatencyHistogram searchTime = new LatencyHistogram();
+    private final Thread indexer;
+    private volatile boolean closed;
+
+    SearchIndex(int capacity, long retentionMillis) {
+        this.capacity = capacity;
+        this.retentionMillis = retentionMillis;
+        this.texts = new String[capacity];
+        this.times = new long[capacity];
+        this.indexer = new Thread(this::indexBehind, "search-indexer");
+        this.indexer.setDaemon(true);
+    }
+
+    // Start indexing as configured, null if --search-capacity turns the index off
+    public static SearchIndex start(ServerConfig config) {
+        if (config.getSearchCapacity() == 0) {
+            return null;
+        }
+        SearchIndex index = new SearchIndex(config.getSearchCapacity(),
+                TimeUnit.MINUTES.toMillis(config.getSearchRetentionMinutes()));
+        index.indexer.start();
+        return index;
+    }
+
+    // Hand a broadcast line to the indexer thread, never waits; the line is not indexed if the indexer is too far behind
+    public void append(String room, OutboundMessage message) {
+        if (closed || !pending.offer(new Entry(room, message, System.currentTimeMillis()))) {
+            dropped.increment();
+        }
+    }
+
+    // The indexer thread: index pending lines in batches, each under the write lock
+    private void indexBehind() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> terms = new ArrayList<>();
+        try {
+            while (!closed) {
+                Entry first = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    // Nothing new, but lines may still have outlived the retention
+                    lock.writeLock().lock();
+                    try {
+                        evict(System.currentTimeMillis());
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, BATCH_SIZE - 1);
+                lock.writeLock().lock();
+                try {
+                    for (Entry entry : batch) {
+                        String text = entry.message.text();
+                        terms.clear();
+                        tokenize(text, terms);
+                        index(entry.room, text, entry.time, terms);
+                    }
+                    evict(System.currentTimeMillis());
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Index one line under its room, called with the write lock held or before any search
+    void index(String room, String text, long time, List<String> terms) {
+        if (nextId - oldestId == capacity) {
+            // Full, the oldest line makes room
+            texts[slot(oldestId)] = null;
+            oldestId++;
+        }
+        int id = nextId++;
+        texts[slot(id)] = text;
+        times[slot(id)] = time;
+        for (String term : terms) {
+            postings.computeIfAbsent(term, key -> new PostingList()).add(id, oldestId);
+        }
+        postings.computeIfAbsent(ROOM_TERM + room, key -> new PostingList()).add(id, oldestId);
+        if (++sinceSweep >= SWEEP_INTERVAL) {
+            sweep();
+        }
+    }
+
+    // Tokenize and index a line right away, for loading and benchmarks
+    void indexNow(String room, String text, long time) {
+        List<String> terms = new ArrayList<>();
+        tokenize(text, terms);
+        lock.writeLock().lock();
+        try {
+            index(room, text, time, terms);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Forget the lines said before the retention period
+    private void evict(long now) {
+        long cutoff = now - retentionMillis;
+        while (oldestId < nextId && times[slot(oldestId)] < cutoff) {
+            texts[slot(oldestId)] = null;
+            oldestId++;
+        }
+    }
+
+    // Drop the terms that only point at evicted lines, the posting lists themselves shrink as they grow
+    private void sweep() {
+        sinceSweep = 0;
+        Iterator<PostingList> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            if (lists.next().lastId() < oldestId) {
+                lists.remove();
+            }
+        }
+    }
+
+    private int slot(int id) {
+        return Integer.remainderUnsigned(id, capacity);
+    }
+
+    // The most recent lines of a room containing every word of the query, oldest first
+    public List<String> search(String room, String query, int limit) {
+        long start = System.nanoTime();
+        List<String> terms = new ArrayList<>();
+        tokenize(query, terms);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        terms.add(ROOM_TERM + room);
+        List<String> results = new ArrayList<>(limit);
+        lock.readLock().lock();
+        try {
+            PostingList[] lists = new PostingList[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = postings.get(terms.get(i));
+                if (lists[i] == null) {
+                    return Collections.emptyList();
+                }
+            }
+            // Walk the shortest list from its newest id and look the others up, stopping at the limit
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+            int[] upper = new int[lists.length];
+            for (int i = 0; i < lists.length; i++) {
+                upper[i] = lists[i].end;
+            }
+            PostingList shortest = lists[0];
+            for (int i = shortest.end - 1; i >= shortest.start && results.size() < limit; i--) {
+                int id = shortest.ids[i];
+                if (id < oldestId) {
+                    break;
+                }
+                if (inAll(lists, upper, id)) {
+                    results.add(texts[slot(id)]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+            searchTime.record(System.nanoTime() - start);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    // Whether every list but the first holds the id; ids only decrease, so each search starts below the last one
+    private static boolean inAll(PostingList[] lists, int[] upper, int id) {
+        for (int i = 1; i < lists.length; i++) {
+            PostingList list = lists[i];
+            int found = Arrays.binarySearch(list.ids, list.start, upper[i], id);
+            if (found >= 0) {
+                upper[i] = found;
+            } else {
+                upper[i] = -found - 1;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Lower-cased runs of letters and digits, each word once
+    static void tokenize(String text, List<String> terms) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start >= MIN_TERM_LENGTH) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase();
+                if (!terms.contains(term)) {
+                    terms.add(term);
+                }
+            }
+        }
+    }
+
+    // How many lines are retained
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nextId - oldestId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long searches() {
+        return searchTime.count();
+    }
+
+    // How many lines were not indexed because the indexer was too far behind
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    // A line for /stats
+    public String report() {
+        int terms;
+        int retained;
+        lock.readLock().lock();
+        try {
+            terms = postings.size();
+            retained = nextId - oldestId;
+        } finally {
+            lock.readLock().unlock();
+        }
+        return String.format("search: %d lines retained of %d, %d terms, %d not indexed, %d searches p50=%.3f p99=%.3f ms",
+                retained, capacity, terms, dropped(), searches(),
+                searchTime.valueAtPercentile(0.50) / 1e6, searchTime.valueAtPercentile(0.99) / 1e6);
+    }
+
+    public void close() {
+        closed = true;
+        indexer.interrupt();
+    }
+
+    // The ids of the lines containing one term, in increasing order; evicted ids are dropped as the list grows
+    private static final class PostingList {
+        int[] ids = new int[4];
+        int start;
+        int end;
+
+        void add(int id, int oldestId) {
+            if (end > start && ids[end - 1] == id) {
+                // The word appears twice in the line
+                return;
+            }
+            if (end == ids.length) {
+                while (start < end && ids[start] < oldestId) {
+                    start++;
+                }
+                int live = end - start;
+                // Reuse the array if eviction freed half of it, otherwise grow it
+                int[] target = live * 2 <= ids.length ? ids : new int[ids.length * 2];
+                System.arraycopy(ids, start, target, 0, live);
+                ids = target;
+                start = 0;
+                end = live;
+            }
+            ids[end++] = id;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        int lastId() {
+            return ids[end - 1];
+        }
+    }
+
+    private static final class Entry {
+        final String room;
+        final OutboundMessage message;
+        final long time;
+
+        Entry(String room, OutboundMessage message, long time) {
+            this.room = room;
+            this.message = message;
+            this.time = time;
+        }
+    }
+}
+
+/**
+ * SearchIndex is the in-memory full-text index behind /search. It keeps the last --search-capacity
+ * chat lines (100000 by default) that are younger than --search-retention-minutes, and an
+ * inverted index from every word to the ids of the lines containing it.
+ *
+ * Broadcasting only queues the line, like MessageJournal.append. A single indexer thread splits lines
+ * into lower-cased words and appends their ids to the words' posting lists, in small batches under a
+ * write lock. Ids grow with every line, so a posting list is a plain int array in increasing order;
+ * evicting a line only moves the oldest retained id, and lists drop the evicted ids the next time they
+ * need room. Words whose lines are all gone are swept out now and then.
+ *
+ * A search looks for lines containing every word, in the asker's room, which is indexed as one more
+ * term. It walks the shortest posting list from the newest id down and binary-searches the others
+ * below the last hit, stopping as soon as it has enough lines. Its cost follows the rarest word, not
+ * the size of the index, which keeps lookups well under a millisecond on a full index; /stats shows
+ * the percentiles.
+ */
@@ -1,45 +1,149 @@
 package com.myapp;
 
 import java.io.IOException; // import the IOException class for error handling.
+import java.net.InetSocketAddress; // import InetSocketAddress to bind the port.
 import java.net.ServerSocket; // import ServerSocket for server initialization.
 import java.net.Socket; // import Socket for client-server communication.
+import java.net.StandardSocketOptions; // import StandardSocketOptions for SO_REUSEPORT.
+import java.util.concurrent.Executor; // import Executor to run the client handlers.
 
 public class Server { // create a class named 'Server' for our server application.
     private ServerSocket serverSocket; // declare a ServerSocket instance for managing connections.
-    public ClientHandler clientHandler;
+    private final Executor executor; // runs each ClientHandler, on a platform or a virtual thread.
+    private final ServerConfig config; // the options handed to every ClientHandler.
+    private final HandshakeStage handshakes; // reads the usernames, so the accept loop never waits for a client.
     public Server(ServerSocket serverSocket) { // constructor for the 'Server' class.
+        this(serverSocket, ServerExecutors.platformThreadPerTask()); // keep one platform thread per client by default.
+    }
+
+    public Server(ServerSocket serverSocket, Executor executor) { // constructor with an injected executor.
+        this(serverSocket, executor, new ServerConfig()); // use the default options.
+    }
+
+    public Server(ServerSocket serverSocket, Executor executor, ServerConfig config) { // constructor with explicit options.
         this.serverSocket = serverSocket; // assign the passed-in ServerSocket to the class instance.
+        this.executor = executor; // assign the executor that will run the client handlers.
+        this.config = config; // assign the options for the client handlers.
+        this.handshakes = new HandshakeStage(config, this::startSession); // run the handshakes on their own pool.
     }
 
     public void startServer() { // method for starting the server.
         try {
             while (!serverSocket.isClosed()) { // run a loop while the server is open.
-                   Socket socket = serverSocket.accept(); // accept incoming client connections.
-                System.out.println("a new client has connected!"); // print a welcoming message.
-                this.clientHandler = new ClientHandler(socket); // create a handler for the connected client.
-                Thread thread = new Thread(this.clientHandler); // create a new thread for client handling.
-                thread.start(); // start the client handling thread.
+                Socket socket = serverSocket.accept(); // accept incoming client connections.
+                ServerMetrics.connectionAccepted(); // count it towards the connects per second.
+                handshakes.submit(socket); // the handshake stage reads its username, this thread goes back to accepting.
             }
         } catch (IOException e) { // catch any potential IOExceptions.
-            e.printStackTrace(); // print the error message (improvement opportunity: log the error properly).
+            if (!serverSocket.isClosed()) { // closing the socket to stop accepting is not an error.
+                e.printStackTrace(); // print the error message (improvement opportunity: log the error properly).
+            }
         }
     }
 
+    private void startSession(ClientHandler clientHandler) { // called by the handshake stage once a client is registered.
+        System.out.println("a new client has connected!"); // print a welcoming message.
+        ServerMetrics.connectionOpened(); // count it until the session closes.
+        clientHandler.startIdleTimer(); // close it if it goes quiet for too long.
+        executor.execute(clientHandler); // run the client handler on its own thread.
+        executor.execute(clientHandler::writeMessages); // and its writer task on another one.
+    }
+
     public void close() { // method to close the server.
         try {
             if (serverSocket != null) { // check if the serverSocket exists.
                 serverSocket.close(); // close the serverSocket.
             }
+            handshakes.close(); // clients still in their handshake are disconnected, they have not joined anything yet.
         } catch (IOException e) { // handle potential IOException.
             e.printStackTrace(); // show the error message.
         }
     }
 
+    public static void run(ServerConfig config) throws IOException { // start the configured engine, blocks while it runs.
+        ServerMetrics.register(); // publish the metrics over JMX.
+        Compression.setThreshold(config.getCompressionThreshold()); // the smallest message worth deflating.
+        if (config.getJournalDir() != null) { // keep a persistent history of the chat.
+            MessageJournal journal = MessageJournal.open(config); // reopen the segments of earlier runs.
+            ChatSession.setJournal(journal); // every session appends its broadcasts to it, closed by drain on exit.
+        }
+        ChatSession.setIdleReaper(IdleReaper.start(config)); // ping quiet clients and close dead ones, null if turned off.
+        ChatSession.setSearchIndex(SearchIndex.start(config)); // index the chat for /search, null if turned off.
+        ChatSession.setMailbox(OfflineMailbox.open(config)); // keep private lines for offline users, null if turned off.
+        ChatSession.setBroadcastShards(BroadcastShards.start(config)); // fan broadcasts out on worker threads, null if turned off.
+        if (config.getClusterPort() > 0) { // join the other nodes of a cluster.
+            ChatSession.setCluster(ClusterNode.start(config)); // sessions relay through it from now on.
+        }
+        if (config.getMode() == ServerConfig.Mode.NIO) { // the selector based engine was requested.
+            NioServer nioServer = NioServer.open(config); // bind and create the event loops.
+            onShutdown(config, nioServer::stopAccepting, nioServer::close); // drain the clients on exit.
+            nioServer.startServer(); // accept connections and hand them to the event loops.
+            return;
+        }
+        Executor executor = config.getMode() == ServerConfig.Mode.VIRTUAL
+                ? ServerExecutors.virtualThreadPerTask() // one virtual thread per client, needs Java 21.
+                : ServerExecutors.platformThreadPerTask(); // one platform thread per client.
+        TlsContext tls = TlsContext.server(config); // null unless --tls is on.
+        ServerSocket serverSocket = tls != null
+                ? tls.serverSocket() // accepted sockets shake hands on the handshake stage, not on the acceptor.
+                : new ServerSocket(); // create an unbound server socket, so options can be set first.
+        if (config.isReusePort()) { // share the port with a server that is still draining.
+            if (!serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("SO_REUSEPORT is not supported on this platform"); // better to fail than to clash on the port.
+            }
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true); // must be set before binding.
+        }
+        serverSocket.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog()); // listen on the configured port.
+        Server server = new Server(serverSocket, executor, config); // create a server instance.
+        onShutdown(config, server::close, () -> { }); // drain the clients on exit, their threads end with their sockets.
+        server.startServer(); // start the server to listen for incoming connections.
+    }
+
+    private static void onShutdown(ServerConfig config, Runnable stopAccepting, Runnable closeEngine) { // drain when the JVM is asked to exit.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(config, stopAccepting, closeEngine), "server-drain"));
+    }
+
+    // Stop accepting, send every client its reconnect hint and last lines, then close everything down
+    public static void drain(ServerConfig config, Runnable stopAccepting, Runnable closeEngine) {
+        stopAccepting.run(); // a restarted server, or another one sharing the port, takes the new connections.
+        int clients = ChatSession.registry.size(); // how many clients are about to be told.
+        System.out.println("draining " + clients + " clients"); // say what the exit is waiting for.
+        try {
+            int cutOff = ChatSession.drainAll(config.getDrainTimeoutMillis(), config.getReconnectSpreadMillis());
+            System.out.println("drained " + (clients - cutOff) + " clients, " + cutOff + " closed at the deadline");
+        } catch (InterruptedException e) { // the drain was cut short, close what is left below.
+            Thread.currentThread().interrupt();
+        }
+        closeEngine.run(); // close the event loops and anything still connected.
+        IdleReaper idleReaper = ChatSession.getIdleReaper();
+        if (idleReaper != null) {
+            idleReaper.close(); // stop the timer wheel.
+        }
+        BroadcastShards shards = ChatSession.getBroadcastShards();
+        if (shards != null) {
+            shards.close(); // every client is gone, nothing is left to fan out.
+        }
+        SearchIndex searchIndex = ChatSession.getSearchIndex();
+        if (searchIndex != null) {
+            searchIndex.close(); // stop the indexer thread, the index lives in memory only.
+        }
+        OfflineMailbox mailbox = ChatSession.getMailbox();
+        if (mailbox != null) {
+            mailbox.close(); // mail still waiting is lost with the process.
+        }
+        ClusterNode cluster = ChatSession.getCluster();
+        if (cluster != null) {
+            cluster.close(); // the peers drop this node's users once the links close.
+        }
+        MessageJournal journal = ChatSession.getJournal();
+        if (journal != null) {
+            journal.close(); // write out what is pending, after the last chat line.
+        }
+    }
+
     public static void main(String[] args) { // the main entry point of the server.
         try {
-            ServerSocket serverSocket = new ServerSocket(1234); // create a server socket on port 1234.
-            Server server = new Server(serverSocket); // create a server instance.
-            server.startServer(); // start the server to listen for incoming connections.
+            run(ServerConfig.fromArgs(args)); // read the --name=value options and start the server.
         } catch (IOException e) { // handle potential IOException.
             e.printStackTrace(); // display the error message (log it better in a production application).
         }
@@ -54,15 +158,37 @@ public class Server { // create a class named 'Server' for our server applicatio
  * that serves as the entry point for the server application.
  *
  * In the constructor, a 'Server' instance is created, accepting a 'ServerSocket' to manage connections.
- * The 'startServer' method continuously listens for incoming client connections, creating a new
- * 'ClientHandler' for each connected client. Each client is processed in a separate thread for concurrent
- * communication.
+ * The 'startServer' method is the acceptor: it continuously accepts incoming client connections and
+ * submits each one to the 'HandshakeStage', whose pool creates the 'ClientHandler' that reads the
+ * username. So a client that connects and says nothing only costs a handshake thread until its
+ * --handshake-timeout-millis run out, and never holds up the next connections. Once registered, each
+ * client is read on its own thread and written from a second one, both taken from the 'Executor'
+ * given to the constructor: new platform threads by default, or virtual threads with --mode=virtual.
+ * The listening socket holds up to --accept-backlog connections the acceptor has not taken yet.
+ * With --tls it is an 'SSLServerSocket' from the 'TlsContext', and the handshake stage runs the TLS
+ * handshake before reading the username, so encryption costs the acceptor nothing either.
  *
  * The 'close' method is used to gracefully close the server, closing the 'ServerSocket' and handling
  * any potential exceptions.
  *
- * The 'main' method is the entry point of the server application. It initializes a 'ServerSocket' on port 1234,
- * creates a 'Server' instance, and starts the server to listen for incoming client connections.
+ * When the JVM is asked to exit, for example by SIGTERM, 'drain' shuts the server down gracefully. It
+ * stops accepting, tells every client to reconnect after a random delay of up to
+ * --reconnect-spread-millis, and waits up to --drain-timeout-millis for their queues to be written
+ * before closing what is left, the cluster links and the journal. With --reuse-port=true the new
+ * server can already be listening on the same port, so a rolling restart is: start the new process,
+ * then stop the old one, whose clients trickle over instead of reconnecting all at once.
+ *
+ * The 'main' method is the entry point of the server application. It reads a 'ServerConfig' from the
+ * command line and starts the selected engine on the configured port (1234 by default): either a
+ * 'ServerSocket' with a thread per client, or the selector based 'NioServer' with --mode=nio.
+ * The 'run' method does the same for callers that already hold a 'ServerConfig'. With --journal-dir it first
+ * opens the 'MessageJournal' there, so the chat history outlives the process. It also registers the
+ * 'ServerMetrics' with JMX. With --cluster-port it starts a 'ClusterNode' that links it to the other
+ * servers listed in --peers, so users connected to different servers can talk to each other. With --heartbeat-seconds
+ * and --idle-timeout-seconds an 'IdleReaper' pings clients that go quiet and closes those that stay quiet. A 'SearchIndex'
+ * keeps the last --search-capacity chat lines in memory for /search, and an 'OfflineMailbox' the private
+ * lines sent to users who are not connected. With --broadcast-shards 'BroadcastShards' fan the broadcasts out
+ * on several cores.
  * Any potential IOExceptions are handled and displayed in the console.
  */
 
@@ -0,0 +1,907 @@
+package com.myapp;
+
+public class ServerConfig {
+
+    // The engines the server can run with
+    public enum Mode {
+        BLOCKING, // one thread per connection, see ClientHandler
+        VIRTUAL, // one virtual thread per connection running the same ClientHandler, needs Java 21
+        NIO // a few selector event loops shared by all connections, see NioServer
+    }
+
+    private int port = 1234;
+    private Mode mode = Mode.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int outboundQueueCapacity = 1024;
+    private OutboundQueue.BackpressurePolicy backpressurePolicy = OutboundQueue.BackpressurePolicy.DROP_OLDEST;
+    private long backpressureBlockMillis = 1000;
+    private int flushBytes = 16 * 1024;
+    private long flushDelayMicros = 0;
+    private String journalDir = null;
+    private int journalSegmentBytes = 64 * 1024 * 1024;
+    private int journalMaxSegments = 16;
+    private long journalFsyncMillis = 1000;
+    private int historyOnJoin = 20;
+    private int historyLimit = 1000;
+    private boolean compression = true;
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private int clusterPort = 0;
+    // Loopback unless opened up, the cluster port trusts whatever a peer sends
+    private String clusterBindAddress = "127.0.0.1";
+    private String nodeId = null;
+    private String peers = "";
+    private int relayQueueCapacity = 65536;
+    private int relayBatchBytes = 64 * 1024;
+    private long relayDelayMicros = 0;
+    private int rateLimitMessages = 50;
+    private int rateLimitBurst = 100;
+    private int rateLimitBytes = 256 * 1024;
+    private int maxLineBytes = 64 * 1024;
+    // Off by default: text clients from before the heartbeat never answer a ping
+    private int heartbeatSeconds = 0;
+    private int idleTimeoutSeconds = 0;
+    private long drainTimeoutMillis = 10_000;
+    private long reconnectSpreadMillis = 5_000;
+    private boolean reusePort = false;
+    private int searchCapacity = 100_000;
+    private int searchRetentionMinutes = 24 * 60;
+    private int mailboxPerUser = 100;
+    private long mailboxMemoryBytes = 16 * 1024 * 1024;
+    private String mailboxDir = null;
+    private long mailboxSpillBytes = 256L * 1024 * 1024;
+    private int mailboxPerSender = 100;
+    private int mailboxTtlMinutes = 1440;
+    private int broadcastShards = 0;
+    private int broadcastRingSize = 4096;
+    private int acceptBacklog = 1024;
+    private int handshakeThreads = 32;
+    private int handshakeQueue = 4096;
+    private long handshakeTimeoutMillis = 5000;
+    private boolean tls = false;
+    private String tlsKeystore = null;
+    private String tlsKeystorePassword = TlsContext.DEFAULT_PASSWORD;
+    private int tlsSessionCacheSize = 10_000;
+    private int tlsSessionTimeoutSeconds = 3600;
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public ServerConfig setEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be at least 1");
+        }
+        this.eventLoops = eventLoops;
+        return this;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity < 1) {
+            throw new IllegalArgumentException("outboundQueueCapacity must be at least 1");
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        return this;
+    }
+
+    public OutboundQueue.BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public ServerConfig setBackpressurePolicy(OutboundQueue.BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+        return this;
+    }
+
+    public long getBackpressureBlockMillis() {
+        return backpressureBlockMillis;
+    }
+
+    public ServerConfig setBackpressureBlockMillis(long backpressureBlockMillis) {
+        this.backpressureBlockMillis = backpressureBlockMillis;
+        return this;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public ServerConfig setFlushBytes(int flushBytes) {
+        if (flushBytes < 1) {
+            throw new IllegalArgumentException("flushBytes must be at least 1");
+        }
+        this.flushBytes = flushBytes;
+        return this;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public ServerConfig setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+        return this;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public ServerConfig setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+        return this;
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    public ServerConfig setJournalSegmentBytes(int journalSegmentBytes) {
+        if (journalSegmentBytes < 4096) {
+            throw new IllegalArgumentException("journalSegmentBytes must be at least 4096");
+        }
+        this.journalSegmentBytes = journalSegmentBytes;
+        return this;
+    }
+
+    public int getJournalMaxSegments() {
+        return journalMaxSegments;
+    }
+
+    public ServerConfig setJournalMaxSegments(int journalMaxSegments) {
+        if (journalMaxSegments < 1) {
+            throw new IllegalArgumentException("journalMaxSegments must be at least 1");
+        }
+        this.journalMaxSegments = journalMaxSegments;
+        return this;
+    }
+
+    public long getJournalFsyncMillis() {
+        return journalFsyncMillis;
+    }
+
+    public ServerConfig setJournalFsyncMillis(long journalFsyncMillis) {
+        if (journalFsyncMillis < 0) {
+            throw new IllegalArgumentException("journalFsyncMillis must not be negative");
+        }
+        this.journalFsyncMillis = journalFsyncMillis;
+        return this;
+    }
+
+    public int getHistoryOnJoin() {
+        return historyOnJoin;
+    }
+
+    public ServerConfig setHistoryOnJoin(int historyOnJoin) {
+        if (historyOnJoin < 0) {
+            throw new IllegalArgumentException("historyOnJoin must not be negative");
+        }
+        this.historyOnJoin = historyOnJoin;
+        return this;
+    }
+
+    public int getHistoryLimit() {
+        return historyLimit;
+    }
+
+    public ServerConfig setHistoryLimit(int historyLimit) {
+        if (historyLimit < 1) {
+            throw new IllegalArgumentException("historyLimit must be at least 1");
+        }
+        this.historyLimit = historyLimit;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public ServerConfig setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public ServerConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    public String getClusterBindAddress() {
+        return clusterBindAddress;
+    }
+
+    // The address the cluster port listens on, such as 0.0.0.0 for every interface
+    public ServerConfig setClusterBindAddress(String clusterBindAddress) {
+        if (clusterBindAddress == null || clusterBindAddress.isBlank()) {
+            throw new IllegalArgumentException("clusterBindAddress must not be blank");
+        }
+        this.clusterBindAddress = clusterBindAddress;
+        return this;
+    }
+
+    // The name other nodes know this one by, "node-<port>" unless set
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    public ServerConfig setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    public String getPeers() {
+        return peers;
+    }
+
+    // The cluster ports of the other nodes, "host:port" separated by commas
+    public ServerConfig setPeers(String peers) {
+        for (String peer : peers.split(",")) {
+            if (!peer.isBlank() && peer.lastIndexOf(':') < 1) {
+                throw new IllegalArgumentException("Expected host:port but got " + peer);
+            }
+        }
+        this.peers = peers;
+        return this;
+    }
+
+    public int getRelayQueueCapacity() {
+        return relayQueueCapacity;
+    }
+
+    public ServerConfig setRelayQueueCapacity(int relayQueueCapacity) {
+        if (relayQueueCapacity < 1) {
+            throw new IllegalArgumentException("relayQueueCapacity must be at least 1");
+        }
+        this.relayQueueCapacity = relayQueueCapacity;
+        return this;
+    }
+
+    public int getRelayBatchBytes() {
+        return relayBatchBytes;
+    }
+
+    public ServerConfig setRelayBatchBytes(int relayBatchBytes) {
+        if (relayBatchBytes < 1) {
+            throw new IllegalArgumentException("relayBatchBytes must be at least 1");
+        }
+        this.relayBatchBytes = relayBatchBytes;
+        return this;
+    }
+
+    public long getRelayDelayMicros() {
+        return relayDelayMicros;
+    }
+
+    public ServerConfig setRelayDelayMicros(long relayDelayMicros) {
+        this.relayDelayMicros = relayDelayMicros;
+        return this;
+    }
+
+    // Lines and frames a client may send per second on average, 0 for no limit
+    public int getRateLimitMessages() {
+        return rateLimitMessages;
+    }
+
+    public ServerConfig setRateLimitMessages(int rateLimitMessages) {
+        if (rateLimitMessages < 0) {
+            throw new IllegalArgumentException("rateLimitMessages must not be negative");
+        }
+        this.rateLimitMessages = rateLimitMessages;
+        return this;
+    }
+
+    // Lines and frames a client may send at once above the average rate
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public ServerConfig setRateLimitBurst(int rateLimitBurst) {
+        if (rateLimitBurst < 1) {
+            throw new IllegalArgumentException("rateLimitBurst must be at least 1");
+        }
+        this.rateLimitBurst = rateLimitBurst;
+        return this;
+    }
+
+    // Bytes a client may send per second on average, 0 for no limit
+    public int getRateLimitBytes() {
+        return rateLimitBytes;
+    }
+
+    public ServerConfig setRateLimitBytes(int rateLimitBytes) {
+        if (rateLimitBytes < 0) {
+            throw new IllegalArgumentException("rateLimitBytes must not be negative");
+        }
+        this.rateLimitBytes = rateLimitBytes;
+        return this;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    public ServerConfig setMaxLineBytes(int maxLineBytes) {
+        if (maxLineBytes < 256) {
+            throw new IllegalArgumentException("maxLineBytes must be at least 256");
+        }
+        this.maxLineBytes = maxLineBytes;
+        return this;
+    }
+
+    // Seconds without anything from a client before it is pinged, 0 to never ping
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    public ServerConfig setHeartbeatSeconds(int heartbeatSeconds) {
+        if (heartbeatSeconds < 0) {
+            throw new IllegalArgumentException("heartbeatSeconds must not be negative");
+        }
+        this.heartbeatSeconds = heartbeatSeconds;
+        return this;
+    }
+
+    // Seconds without anything from a client before it is disconnected, 0 to keep idle clients
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public ServerConfig setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        if (idleTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("idleTimeoutSeconds must not be negative");
+        }
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+
+    // How long a shutdown waits for the clients' queues to be written before closing what is left
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    public ServerConfig setDrainTimeoutMillis(long drainTimeoutMillis) {
+        if (drainTimeoutMillis < 0) {
+            throw new IllegalArgumentException("drainTimeoutMillis must not be negative");
+        }
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        return this;
+    }
+
+    // Clients told to reconnect on shutdown are given random delays up to this, so they do not all come back at once
+    public long getReconnectSpreadMillis() {
+        return reconnectSpreadMillis;
+    }
+
+    public ServerConfig setReconnectSpreadMillis(long reconnectSpreadMillis) {
+        if (reconnectSpreadMillis < 0) {
+            throw new IllegalArgumentException("reconnectSpreadMillis must not be negative");
+        }
+        this.reconnectSpreadMillis = reconnectSpreadMillis;
+        return this;
+    }
+
+    // Bind with SO_REUSEPORT, so a new server can listen on the port while the old one drains
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public ServerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    // How many of the latest chat lines /search looks through, 0 to keep no index
+    public int getSearchCapacity() {
+        return searchCapacity;
+    }
+
+    public ServerConfig setSearchCapacity(int searchCapacity) {
+        if (searchCapacity < 0) {
+            throw new IllegalArgumentException("searchCapacity must not be negative");
+        }
+        this.searchCapacity = searchCapacity;
+        return this;
+    }
+
+    // Chat lines older than this are dropped from the search index
+    public int getSearchRetentionMinutes() {
+        return searchRetentionMinutes;
+    }
+
+    public ServerConfig setSearchRetentionMinutes(int searchRetentionMinutes) {
+        if (searchRetentionMinutes < 1) {
+            throw new IllegalArgumentException("searchRetentionMinutes must be at least 1");
+        }
+        this.searchRetentionMinutes = searchRetentionMinutes;
+        return this;
+    }
+
+    // How many private lines may wait for one offline user, 0 to drop lines to offline users
+    public int getMailboxPerUser() {
+        return mailboxPerUser;
+    }
+
+    public ServerConfig setMailboxPerUser(int mailboxPerUser) {
+        if (mailboxPerUser < 0) {
+            throw new IllegalArgumentException("mailboxPerUser must not be negative");
+        }
+        this.mailboxPerUser = mailboxPerUser;
+        return this;
+    }
+
+    // How much memory the waiting private lines of all users may take before they spill to disk
+    public long getMailboxMemoryBytes() {
+        return mailboxMemoryBytes;
+    }
+
+    public ServerConfig setMailboxMemoryBytes(long mailboxMemoryBytes) {
+        if (mailboxMemoryBytes < 0) {
+            throw new IllegalArgumentException("mailboxMemoryBytes must not be negative");
+        }
+        this.mailboxMemoryBytes = mailboxMemoryBytes;
+        return this;
+    }
+
+    // Where waiting private lines spill past the memory budget, null to refuse them instead
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    public ServerConfig setMailboxDir(String mailboxDir) {
+        this.mailboxDir = mailboxDir;
+        return this;
+    }
+
+    // The largest the spill file may grow
+    public long getMailboxSpillBytes() {
+        return mailboxSpillBytes;
+    }
+
+    public ServerConfig setMailboxSpillBytes(long mailboxSpillBytes) {
+        if (mailboxSpillBytes < 0) {
+            throw new IllegalArgumentException("mailboxSpillBytes must not be negative");
+        }
+        this.mailboxSpillBytes = mailboxSpillBytes;
+        return this;
+    }
+
+    // How many private lines one user may have waiting for offline users in all, 0 for no limit
+    public int getMailboxPerSender() {
+        return mailboxPerSender;
+    }
+
+    public ServerConfig setMailboxPerSender(int mailboxPerSender) {
+        if (mailboxPerSender < 0) {
+            throw new IllegalArgumentException("mailboxPerSender must not be negative");
+        }
+        this.mailboxPerSender = mailboxPerSender;
+        return this;
+    }
+
+    // How long a mailbox nobody writes to is kept for a user who does not come back, 0 to keep it until then
+    public int getMailboxTtlMinutes() {
+        return mailboxTtlMinutes;
+    }
+
+    public ServerConfig setMailboxTtlMinutes(int mailboxTtlMinutes) {
+        if (mailboxTtlMinutes < 0) {
+            throw new IllegalArgumentException("mailboxTtlMinutes must not be negative");
+        }
+        this.mailboxTtlMinutes = mailboxTtlMinutes;
+        return this;
+    }
+
+    // Threads fanning broadcasts out, 0 to fan out on the thread that read the line
+    public int getBroadcastShards() {
+        return broadcastShards;
+    }
+
+    public ServerConfig setBroadcastShards(int broadcastShards) {
+        if (broadcastShards < 0 || broadcastShards > ClientRegistry.PARTITIONS) {
+            throw new IllegalArgumentException("broadcastShards must be between 0 and " + ClientRegistry.PARTITIONS);
+        }
+        this.broadcastShards = broadcastShards;
+        return this;
+    }
+
+    // Broadcasts that may wait for the shards before publishers have to wait too
+    public int getBroadcastRingSize() {
+        return broadcastRingSize;
+    }
+
+    public ServerConfig setBroadcastRingSize(int broadcastRingSize) {
+        if (broadcastRingSize < 2 || Integer.bitCount(broadcastRingSize) != 1) {
+            throw new IllegalArgumentException("broadcastRingSize must be a power of two");
+        }
+        this.broadcastRingSize = broadcastRingSize;
+        return this;
+    }
+
+    // Connections the operating system may hold for the acceptor before refusing more
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public ServerConfig setAcceptBacklog(int acceptBacklog) {
+        if (acceptBacklog < 1) {
+            throw new IllegalArgumentException("acceptBacklog must be at least 1");
+        }
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    // Threads running the handshakes of the blocking engines
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    public ServerConfig setHandshakeThreads(int handshakeThreads) {
+        if (handshakeThreads < 1) {
+            throw new IllegalArgumentException("handshakeThreads must be at least 1");
+        }
+        this.handshakeThreads = handshakeThreads;
+        return this;
+    }
+
+    // Accepted connections that may wait for a handshake thread before new ones are refused
+    public int getHandshakeQueue() {
+        return handshakeQueue;
+    }
+
+    public ServerConfig setHandshakeQueue(int handshakeQueue) {
+        if (handshakeQueue < 1) {
+            throw new IllegalArgumentException("handshakeQueue must be at least 1");
+        }
+        this.handshakeQueue = handshakeQueue;
+        return this;
+    }
+
+    // How long a client has to complete its handshake, 0 to wait as long as it takes
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public ServerConfig setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis < 0 || handshakeTimeoutMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("handshakeTimeoutMillis must be between 0 and " + Integer.MAX_VALUE);
+        }
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    public ServerConfig setTls(boolean tls) {
+        this.tls = tls;
+        return this;
+    }
+
+    // The PKCS12 keystore with the server's key and certificate, null for a generated self-signed one
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public ServerConfig setTlsKeystore(String tlsKeystore) {
+        this.tlsKeystore = tlsKeystore;
+        return this;
+    }
+
+    public String getTlsKeystorePassword() {
+        return tlsKeystorePassword;
+    }
+
+    public ServerConfig setTlsKeystorePassword(String tlsKeystorePassword) {
+        this.tlsKeystorePassword = tlsKeystorePassword;
+        return this;
+    }
+
+    // TLS sessions kept for resumption, 0 for no limit
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public ServerConfig setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < 0) {
+            throw new IllegalArgumentException("tlsSessionCacheSize must not be negative");
+        }
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        return this;
+    }
+
+    // How long a TLS session may be resumed after it was negotiated
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public ServerConfig setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        if (tlsSessionTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("tlsSessionTimeoutSeconds must be at least 1");
+        }
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+        return this;
+    }
+
+    // Build a configuration from "--name=value" command line arguments
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "mode":
+                    config.setMode(Mode.valueOf(value.toUpperCase()));
+                    break;
+                case "event-loops":
+                    config.setEventLoops(Integer.parseInt(value));
+                    break;
+                case "outbound-queue":
+                    config.setOutboundQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "backpressure":
+                    config.setBackpressurePolicy(OutboundQueue.BackpressurePolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "backpressure-block-millis":
+                    config.setBackpressureBlockMillis(Long.parseLong(value));
+                    break;
+                case "flush-bytes":
+                    config.setFlushBytes(Integer.parseInt(value));
+                    break;
+                case "flush-delay-micros":
+                    config.setFlushDelayMicros(Long.parseLong(value));
+                    break;
+                case "journal-dir":
+                    config.setJournalDir(value);
+                    break;
+                case "journal-segment-bytes":
+                    config.setJournalSegmentBytes(Integer.parseInt(value));
+                    break;
+                case "journal-max-segments":
+                    config.setJournalMaxSegments(Integer.parseInt(value));
+                    break;
+                case "journal-fsync-millis":
+                    config.setJournalFsyncMillis(Long.parseLong(value));
+                    break;
+                case "history-on-join":
+                    config.setHistoryOnJoin(Integer.parseInt(value));
+                    break;
+                case "history-limit":
+                    config.setHistoryLimit(Integer.parseInt(value));
+                    break;
+                case "compression":
+                    config.setCompression(Boolean.parseBoolean(value));
+                    break;
+                case "compression-threshold":
+                    config.setCompressionThreshold(Integer.parseInt(value));
+                    break;
+                case "cluster-port":
+                    config.setClusterPort(Integer.parseInt(value));
+                    break;
+                case "cluster-bind-address":
+                    config.setClusterBindAddress(value);
+                    break;
+                case "node-id":
+                    config.setNodeId(value);
+                    break;
+                case "peers":
+                    config.setPeers(value);
+                    break;
+                case "relay-queue":
+                    config.setRelayQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "relay-batch-bytes":
+                    config.setRelayBatchBytes(Integer.parseInt(value));
+                    break;
+                case "relay-delay-micros":
+                    config.setRelayDelayMicros(Long.parseLong(value));
+                    break;
+                case "rate-limit-messages":
+                    config.setRateLimitMessages(Integer.parseInt(value));
+                    break;
+                case "rate-limit-burst":
+                    config.setRateLimitBurst(Integer.parseInt(value));
+                    break;
+                case "rate-limit-bytes":
+                    config.setRateLimitBytes(Integer.parseInt(value));
+                    break;
+                case "max-line-bytes":
+                    config.setMaxLineBytes(Integer.parseInt(value));
+                    break;
+                case "heartbeat-seconds":
+                    config.setHeartbeatSeconds(Integer.parseInt(value));
+                    break;
+                case "idle-timeout-seconds":
+                    config.setIdleTimeoutSeconds(Integer.parseInt(value));
+                    break;
+                case "drain-timeout-millis":
+                    config.setDrainTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "reconnect-spread-millis":
+                    config.setReconnectSpreadMillis(Long.parseLong(value));
+                    break;
+                case "reuse-port":
+                    config.setReusePort(Boolean.parseBoolean(value));
+                    break;
+                case "search-capacity":
+                    config.setSearchCapacity(Integer.parseInt(value));
+                    break;
+                case "search-retention-minutes":
+                    config.setSearchRetentionMinutes(Integer.parseInt(value));
+                    break;
+                case "mailbox-per-user":
+                    config.setMailboxPerUser(Integer.parseInt(value));
+                    break;
+                case "mailbox-memory-bytes":
+                    config.setMailboxMemoryBytes(Long.parseLong(value));
+                    break;
+                case "mailbox-dir":
+                    config.setMailboxDir(value);
+                    break;
+                case "mailbox-spill-bytes":
+                    config.setMailboxSpillBytes(Long.parseLong(value));
+                    break;
+                case "mailbox-per-sender":
+                    config.setMailboxPerSender(Integer.parseInt(value));
+                    break;
+                case "mailbox-ttl-minutes":
+                    config.setMailboxTtlMinutes(Integer.parseInt(value));
+                    break;
+                case "broadcast-shards":
+                    config.setBroadcastShards(Integer.parseInt(value));
+                    break;
+                case "broadcast-ring-size":
+                    config.setBroadcastRingSize(Integer.parseInt(value));
+                    break;
+                case "accept-backlog":
+                    config.setAcceptBacklog(Integer.parseInt(value));
+                    break;
+                case "handshake-threads":
+                    config.setHandshakeThreads(Integer.parseInt(value));
+                    break;
+                case "handshake-queue":
+                    config.setHandshakeQueue(Integer.parseInt(value));
+                    break;
+                case "handshake-timeout-millis":
+                    config.setHandshakeTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "tls":
+                    config.setTls(Boolean.parseBoolean(value));
+                    break;
+                case "tls-keystore":
+                    config.setTlsKeystore(value);
+                    break;
+                case "tls-keystore-password":
+                    config.setTlsKeystorePassword(value);
+                    break;
+                case "tls-session-cache-size":
+                    config.setTlsSessionCacheSize(Integer.parseInt(value));
+                    break;
+                case "tls-session-timeout-seconds":
+                    config.setTlsSessionTimeoutSeconds(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        return config;
+    }
+}
+
+/**
+ * ServerConfig gathers the startup options of the chat server.
+ *
+ * Options are read from the command line as --name=value pairs, for example
+ * "--port=1234 --mode=nio --event-loops=4", where the mode is one of blocking, virtual or nio.
+ * Anything not given keeps its default: port 1234, the blocking engine and one event loop per
+ * available core.
+ *
+ * Each client gets an outbound queue of --outbound-queue lines (1024 by default). --backpressure
+ * picks what happens when it is full: drop_oldest (the default), disconnect, or block, where the
+ * sender waits up to --backpressure-block-millis before the client is disconnected. Only the blocking
+ * engines' reader threads ever wait; with --mode=nio or --broadcast-shards broadcasts are sent from
+ * threads serving many clients, and block then disconnects the slow client right away.
+ *
+ * Queued lines are coalesced into one socket write until --flush-bytes (16 KB by default) are
+ * pending or the queue is empty. With --flush-delay-micros the blocking writer also waits that
+ * long for more lines before flushing, at the cost of that much extra latency.
+ *
+ * --journal-dir turns on the MessageJournal: chat lines are appended to memory-mapped segments of
+ * --journal-segment-bytes (64 MB by default) in that directory, keeping the newest
+ * --journal-max-segments (16) of them, and forced to disk every --journal-fsync-millis (1000, where 0
+ * forces after every batch). Clients are sent the last --history-on-join lines of a room (20) when
+ * they enter it, and /history may ask for up to --history-limit (1000).
+ *
+ * Binary clients that ask for it get messages of --compression-threshold bytes or more (256)
+ * deflated, unless the server runs with --compression=false.
+ *
+ * --cluster-port turns the server into a node of a ClusterNode cluster, listening there for the
+ * other nodes; --peers lists their cluster ports as host:port,host:port and --node-id names this
+ * node (node-<port> by default). Up to --relay-queue records (65536) wait for each peer, and are
+ * written in batches of up to --relay-batch-bytes (64 KB), optionally waiting --relay-delay-micros
+ * for a batch to fill. The cluster port listens on --cluster-bind-address (127.0.0.1), so nodes on
+ * other hosts need it set to an address they can reach, and it only accepts connections from the
+ * hosts in --peers.
+ *
+ * Every connection may send --rate-limit-messages lines or frames per second (50) with bursts of up
+ * to --rate-limit-burst (100), and --rate-limit-bytes per second (256 KB); 0 turns a limit off. A
+ * single line or frame may not exceed --max-line-bytes (64 KB). See RateLimiter.
+ *
+ * A client that has sent nothing for --heartbeat-seconds is pinged, and one that has sent nothing for
+ * --idle-timeout-seconds is disconnected; any line or frame counts, not only the answer to a ping. Both
+ * are 0, off, by default: text clients written before the heartbeat show "/ping" as a chat line and
+ * never answer it, so a quiet one would be dropped. Turn them on, 30 and 90 say, when every client
+ * answers pings. See IdleReaper.
+ *
+ * On shutdown the server stops accepting, tells every client to reconnect after a random delay of
+ * up to --reconnect-spread-millis (5000), and gives their queues --drain-timeout-millis (10000) to be
+ * written. With --reuse-port=true the port is bound with SO_REUSEPORT, so the next server can start
+ * listening before the old one has let go of it.
+ *
+ * /search looks through the last --search-capacity chat lines (100000) said within
+ * --search-retention-minutes (1440); a capacity of 0 turns the SearchIndex off.
+ *
+ * Private lines to users who are not connected wait in the OfflineMailbox, up to --mailbox-per-user
+ * (100) per user, where 0 drops them. They take up to --mailbox-memory-bytes (16 MB) in memory, and
+ * past that spill to a file in --mailbox-dir of up to --mailbox-spill-bytes (256 MB); without a
+ * directory they are refused instead. One sender may have up to --mailbox-per-sender lines (100)
+ * waiting in all, and a mailbox nobody has written to for --mailbox-ttl-minutes (1440) is dropped;
+ * 0 turns either limit off.
+ *
+ * With --broadcast-shards (0) above zero, broadcasts are fanned out by that many BroadcastShards
+ * threads, usually one per core, through a ring of --broadcast-ring-size (4096) slots. With 0 the
+ * thread that read the line fans it out, which costs less for small rooms.
+ *
+ * The listening socket queues up to --accept-backlog (1024) connections for the acceptor. A client
+ * has --handshake-timeout-millis (5000) to send its username, or is disconnected.
+ * The blocking engines run handshakes on --handshake-threads (32) threads, with up to
+ * --handshake-queue (4096) connections waiting for one; see HandshakeStage.
+ *
+ * --tls=true encrypts every client connection, with the key and certificate in the PKCS12
+ * --tls-keystore opened with --tls-keystore-password (changeit). Without a keystore a self-signed one
+ * for localhost is generated in ~/.chatapp, private to the user, for local tests. Up to --tls-session-cache-size (10000) sessions can be
+ * resumed for --tls-session-timeout-seconds (3600) after they were negotiated; see TlsContext.
+ */
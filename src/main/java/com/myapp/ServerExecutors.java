@@ -0,0 +1,38 @@
+package com.myapp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class ServerExecutors {
+
+    private ServerExecutors() {
+    }
+
+    // Start a new platform thread for every task, the way the server has always run its handlers
+    public static Executor platformThreadPerTask() {
+        return task -> new Thread(task).start();
+    }
+
+    // Start a new virtual thread for every task
+    public static ExecutorService virtualThreadPerTask() {
+        try {
+            // Looked up reflectively so the default build can keep targeting Java 11
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads need Java 21 or newer, this is Java " + Runtime.version().feature(), e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+}
+
+/**
+ * ServerExecutors creates the executors that run blocking ClientHandlers.
+ *
+ * Virtual threads let the simple blocking-per-connection code scale to a very large number of idle
+ * connections. The method is resolved at runtime, so the same build runs on Java 11 with platform
+ * threads and on Java 21 (build with -Pjava21) with virtual threads.
+ */
@@ -0,0 +1,607 @@
+package com.myapp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class ServerMetrics {
+    public static final String OBJECT_NAME = "com.myapp:type=ServerMetrics";
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder messagesIn = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder broadcasts = new LongAdder();
+    private static final LongAdder deliveries = new LongAdder();
+    // Messages deflated for compressed recipients, and the time it took
+    private static final LongAdder compressions = new LongAdder();
+    private static final LongAdder compressionNanos = new LongAdder();
+    // Writes of a compressed frame, and the bytes they saved over the plain frame
+    private static final LongAdder compressedWrites = new LongAdder();
+    private static final LongAdder compressionBytesSaved = new LongAdder();
+    // Incoming lines and frames dropped for going over a rate limit, or over the size limit
+    private static final LongAdder rateLimited = new LongAdder();
+    private static final LongAdder tooLarge = new LongAdder();
+    // Connections accepted, and how their handshakes ended: completed, failed or timed out, or refused unstarted
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder handshakesCompleted = new LongAdder();
+    private static final LongAdder handshakesFailed = new LongAdder();
+    private static final LongAdder handshakesRejected = new LongAdder();
+    // From the accept to the end of a successful handshake, in nanoseconds
+    private static final LatencyHistogram handshakeTime = new LatencyHistogram();
+    // TLS handshakes that negotiated a new session, and those that resumed one, with their time in nanoseconds
+    private static final LongAdder tlsFullHandshakes = new LongAdder();
+    private static final LongAdder tlsResumedHandshakes = new LongAdder();
+    private static final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+    // Time spent queueing one broadcast for every recipient, in nanoseconds
+    private static final LatencyHistogram fanoutTime = new LatencyHistogram();
+    // From reading a chat line to the last recipient's socket write, in nanoseconds
+    private static final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    // Per second rates, updated by the sampler once register() has been called
+    private static volatile Rates rates = new Rates(0, 0, 0, 0, 0, 0);
+
+    private ServerMetrics() {
+    }
+
+    public static void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public static void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public static void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public static void handshakeCompleted(long nanos) {
+        handshakesCompleted.increment();
+        handshakeTime.record(nanos);
+    }
+
+    public static void handshakeFailed() {
+        handshakesFailed.increment();
+    }
+
+    public static void handshakeRejected() {
+        handshakesRejected.increment();
+    }
+
+    public static void tlsHandshake(long nanos, boolean resumed) {
+        (resumed ? tlsResumedHandshakes : tlsFullHandshakes).increment();
+        tlsHandshakeTime.record(nanos);
+    }
+
+    public static void messageReceived() {
+        messagesIn.increment();
+    }
+
+    public static void bytesReceived(long count) {
+        bytesIn.add(count);
+    }
+
+    public static void broadcast(int recipients, long nanos) {
+        broadcasts.increment();
+        deliveries.add(recipients);
+        fanoutTime.record(nanos);
+    }
+
+    public static void delivered(long nanos) {
+        deliveryLatency.record(nanos);
+    }
+
+    public static void compressed(long nanos) {
+        compressions.increment();
+        compressionNanos.add(nanos);
+    }
+
+    public static void compressedWrite(int bytesSaved) {
+        compressedWrites.increment();
+        compressionBytesSaved.add(bytesSaved);
+    }
+
+    public static void rateLimited() {
+        rateLimited.increment();
+    }
+
+    public static void tooLarge() {
+        tooLarge.increment();
+    }
+
+    public static long openConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    public static long connectionsAccepted() {
+        return accepted.sum();
+    }
+
+    public static long handshakesCompleted() {
+        return handshakesCompleted.sum();
+    }
+
+    public static long handshakesFailed() {
+        return handshakesFailed.sum();
+    }
+
+    public static long handshakesRejected() {
+        return handshakesRejected.sum();
+    }
+
+    public static LatencyHistogram handshakeTime() {
+        return handshakeTime;
+    }
+
+    public static long tlsFullHandshakes() {
+        return tlsFullHandshakes.sum();
+    }
+
+    public static long tlsResumedHandshakes() {
+        return tlsResumedHandshakes.sum();
+    }
+
+    public static LatencyHistogram tlsHandshakeTime() {
+        return tlsHandshakeTime;
+    }
+
+    public static long messagesIn() {
+        return messagesIn.sum();
+    }
+
+    public static long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public static long broadcasts() {
+        return broadcasts.sum();
+    }
+
+    public static long deliveries() {
+        return deliveries.sum();
+    }
+
+    public static long compressions() {
+        return compressions.sum();
+    }
+
+    public static long compressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    public static long compressedWrites() {
+        return compressedWrites.sum();
+    }
+
+    public static long compressionBytesSaved() {
+        return compressionBytesSaved.sum();
+    }
+
+    public static long rateLimitedMessages() {
+        return rateLimited.sum();
+    }
+
+    public static long tooLargeMessages() {
+        return tooLarge.sum();
+    }
+
+    public static LatencyHistogram fanoutTime() {
+        return fanoutTime;
+    }
+
+    public static LatencyHistogram deliveryLatency() {
+        return deliveryLatency;
+    }
+
+    // The outbound queue depth of every registered client: {total, deepest}
+    public static int[] queueDepths() {
+        int total = 0;
+        int deepest = 0;
+        for (ChatSession session : ChatSession.registry.snapshot()) {
+            int depth = session.getOutboundQueue().depth();
+            total += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        return new int[] {total, deepest};
+    }
+
+    // Wrap a socket stream so every byte read from it is counted
+    public static InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesReceived(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytesReceived(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    // A multi-line report, as shown by /stats
+    public static String report() {
+        Rates current = rates;
+        int[] depths = queueDepths();
+        StringBuilder report = new StringBuilder("Server stats:");
+        report.append(String.format("%nclients: %d registered, %d connections, %d rooms",
+                ChatSession.registry.size(), openConnections(), ChatSession.rooms.rooms().size()));
+        report.append(String.format("%nconnects: %d accepted (%.0f/s), %d handshakes (%.0f/s) p50=%.1f p99=%.1f ms, %d failed, %d refused",
+                connectionsAccepted(), current.accepts, handshakesCompleted(), current.handshakes,
+                handshakeTime.valueAtPercentile(0.50) / 1e6, handshakeTime.valueAtPercentile(0.99) / 1e6,
+                handshakesFailed(), handshakesRejected()));
+        if (tlsHandshakeTime.count() > 0) {
+            report.append(String.format("%ntls: %d full handshakes, %d resumed, p50=%.1f p99=%.1f ms",
+                    tlsFullHandshakes(), tlsResumedHandshakes(),
+                    tlsHandshakeTime.valueAtPercentile(0.50) / 1e6, tlsHandshakeTime.valueAtPercentile(0.99) / 1e6));
+        }
+        report.append(String.format("%nin: %d messages (%.0f/s), %d bytes (%.0f/s)",
+                messagesIn(), current.messagesIn, bytesIn(), current.bytesIn));
+        report.append(String.format("%nout: %d messages (%.0f/s), %d bytes (%.0f/s), %.3f writes/message",
+                WriteStats.messages(), current.messagesOut, WriteStats.bytes(), current.bytesOut,
+                WriteStats.writeCallsPerMessage()));
+        report.append(String.format("%nbroadcasts: %d to %d recipients, fan-out p50=%.1f p99=%.1f max=%.1f us",
+                broadcasts(), deliveries(), fanoutTime.valueAtPercentile(0.50) / 1e3,
+                fanoutTime.valueAtPercentile(0.99) / 1e3, fanoutTime.max() / 1e3));
+        report.append("\nreceive to last write: ").append(deliveryLatency.summaryMillis());
+        report.append(String.format("%noutbound queues: %d queued, deepest %d, %d dropped, %d slow consumers disconnected",
+                depths[0], depths[1], OutboundQueue.totalDropped(), OutboundQueue.totalDisconnected()));
+        report.append(String.format("%ncompression: %d messages deflated in %.1f ms, %d compressed writes saved %d bytes",
+                compressions(), compressionNanos() / 1e6, compressedWrites(), compressionBytesSaved()));
+        report.append(String.format("%nlimits: %d messages over the rate limit, %d over the size limit",
+                rateLimitedMessages(), tooLargeMessages()));
+        BroadcastShards shards = ChatSession.getBroadcastShards();
+        if (shards != null) {
+            report.append('\n').append(shards.report());
+        }
+        IdleReaper idleReaper = ChatSession.getIdleReaper();
+        if (idleReaper != null) {
+            report.append('\n').append(idleReaper.report());
+        }
+        ClusterNode cluster = ChatSession.getCluster();
+        if (cluster != null) {
+            report.append('\n').append(cluster.report());
+        }
+        SearchIndex searchIndex = ChatSession.getSearchIndex();
+        if (searchIndex != null) {
+            report.append('\n').append(searchIndex.report());
+        }
+        OfflineMailbox mailbox = ChatSession.getMailbox();
+        if (mailbox != null) {
+            report.append('\n').append(mailbox.report());
+        }
+        MessageJournal journal = ChatSession.getJournal();
+        if (journal != null) {
+            report.append(String.format("%njournal: %d lines, %d dropped", journal.size(), journal.dropped()));
+        }
+        return report.toString();
+    }
+
+    // Expose the metrics over JMX and start computing the per second rates
+    public static void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+            return;
+        }
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] previous = totals();
+        sampler.scheduleAtFixedRate(() -> {
+            long[] current = totals();
+            rates = new Rates(current[0] - previous[0], current[1] - previous[1],
+                    current[2] - previous[2], current[3] - previous[3],
+                    current[4] - previous[4], current[5] - previous[5]);
+            System.arraycopy(current, 0, previous, 0, current.length);
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static long[] totals() {
+        return new long[] {messagesIn(), bytesIn(), WriteStats.messages(), WriteStats.bytes(),
+                connectionsAccepted(), handshakesCompleted()};
+    }
+
+    // The counters of the last second
+    private static final class Rates {
+        final double messagesIn;
+        final double bytesIn;
+        final double messagesOut;
+        final double bytesOut;
+        final double accepts;
+        final double handshakes;
+
+        Rates(double messagesIn, double bytesIn, double messagesOut, double bytesOut, double accepts, double handshakes) {
+            this.messagesIn = messagesIn;
+            this.bytesIn = bytesIn;
+            this.messagesOut = messagesOut;
+            this.bytesOut = bytesOut;
+            this.accepts = accepts;
+            this.handshakes = handshakes;
+        }
+    }
+
+    // The JMX view of the metrics, every attribute is read when asked for
+    private static final class Bean implements ServerMetricsMXBean {
+        @Override
+        public int getRegisteredClients() {
+            return ChatSession.registry.size();
+        }
+
+        @Override
+        public long getOpenConnections() {
+            return openConnections();
+        }
+
+        @Override
+        public long getMessagesIn() {
+            return messagesIn();
+        }
+
+        @Override
+        public long getMessagesOut() {
+            return WriteStats.messages();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return WriteStats.bytes();
+        }
+
+        @Override
+        public double getMessagesInPerSecond() {
+            return rates.messagesIn;
+        }
+
+        @Override
+        public double getMessagesOutPerSecond() {
+            return rates.messagesOut;
+        }
+
+        @Override
+        public double getBytesInPerSecond() {
+            return rates.bytesIn;
+        }
+
+        @Override
+        public double getBytesOutPerSecond() {
+            return rates.bytesOut;
+        }
+
+        @Override
+        public double getWriteCallsPerMessage() {
+            return WriteStats.writeCallsPerMessage();
+        }
+
+        @Override
+        public long getBroadcasts() {
+            return broadcasts();
+        }
+
+        @Override
+        public long getDeliveries() {
+            return deliveries();
+        }
+
+        @Override
+        public double getFanoutP50Micros() {
+            return fanoutTime.valueAtPercentile(0.50) / 1e3;
+        }
+
+        @Override
+        public double getFanoutP99Micros() {
+            return fanoutTime.valueAtPercentile(0.99) / 1e3;
+        }
+
+        @Override
+        public double getDeliveryLatencyP50Millis() {
+            return deliveryLatency.valueAtPercentile(0.50) / 1e6;
+        }
+
+        @Override
+        public double getDeliveryLatencyP99Millis() {
+            return deliveryLatency.valueAtPercentile(0.99) / 1e6;
+        }
+
+        @Override
+        public double getDeliveryLatencyP999Millis() {
+            return deliveryLatency.valueAtPercentile(0.999) / 1e6;
+        }
+
+        @Override
+        public double getDeliveryLatencyMaxMillis() {
+            return deliveryLatency.max() / 1e6;
+        }
+
+        @Override
+        public long getCompressions() {
+            return compressions();
+        }
+
+        @Override
+        public double getCompressionMillis() {
+            return compressionNanos() / 1e6;
+        }
+
+        @Override
+        public long getCompressedWrites() {
+            return compressedWrites();
+        }
+
+        @Override
+        public long getCompressionBytesSaved() {
+            return compressionBytesSaved();
+        }
+
+        @Override
+        public long getRateLimitedMessages() {
+            return rateLimitedMessages();
+        }
+
+        @Override
+        public long getTooLargeMessages() {
+            return tooLargeMessages();
+        }
+
+        @Override
+        public long getHeartbeatPingsSent() {
+            IdleReaper idleReaper = ChatSession.getIdleReaper();
+            return idleReaper == null ? 0 : idleReaper.pingsSent();
+        }
+
+        @Override
+        public long getIdleConnectionsClosed() {
+            IdleReaper idleReaper = ChatSession.getIdleReaper();
+            return idleReaper == null ? 0 : idleReaper.sessionsReaped();
+        }
+
+        @Override
+        public int getSearchIndexSize() {
+            SearchIndex searchIndex = ChatSession.getSearchIndex();
+            return searchIndex == null ? 0 : searchIndex.size();
+        }
+
+        @Override
+        public long getSearches() {
+            SearchIndex searchIndex = ChatSession.getSearchIndex();
+            return searchIndex == null ? 0 : searchIndex.searches();
+        }
+
+        @Override
+        public int getMailboxQueued() {
+            OfflineMailbox mailbox = ChatSession.getMailbox();
+            return mailbox == null ? 0 : mailbox.queued();
+        }
+
+        @Override
+        public long getMailboxDelivered() {
+            OfflineMailbox mailbox = ChatSession.getMailbox();
+            return mailbox == null ? 0 : mailbox.delivered();
+        }
+
+        @Override
+        public long getBroadcastShardBacklog() {
+            BroadcastShards shards = ChatSession.getBroadcastShards();
+            return shards == null ? 0 : shards.backlog();
+        }
+
+        @Override
+        public double getConnectsPerSecond() {
+            return rates.accepts;
+        }
+
+        @Override
+        public double getHandshakesPerSecond() {
+            return rates.handshakes;
+        }
+
+        @Override
+        public long getHandshakesFailed() {
+            return handshakesFailed();
+        }
+
+        @Override
+        public long getHandshakesRefused() {
+            return handshakesRejected();
+        }
+
+        @Override
+        public long getTlsFullHandshakes() {
+            return tlsFullHandshakes();
+        }
+
+        @Override
+        public long getTlsResumedHandshakes() {
+            return tlsResumedHandshakes();
+        }
+
+        @Override
+        public int getOutboundQueuedTotal() {
+            return queueDepths()[0];
+        }
+
+        @Override
+        public int getOutboundQueueDepthMax() {
+            return queueDepths()[1];
+        }
+
+        @Override
+        public long getMessagesDropped() {
+            return OutboundQueue.totalDropped();
+        }
+
+        @Override
+        public long getSlowConsumersDisconnected() {
+            return OutboundQueue.totalDisconnected();
+        }
+
+        @Override
+        public int getOutboundQueueDepth(String username) {
+            ChatSession session = ChatSession.registry.find(username);
+            return session == null ? -1 : session.getOutboundQueue().depth();
+        }
+
+        @Override
+        public void resetHistograms() {
+            fanoutTime.reset();
+            deliveryLatency.reset();
+        }
+    }
+}
+
+/**
+ * ServerMetrics collects what the server is doing, for the /stats command and for JMX.
+ *
+ * Counters are LongAdders and histograms are LatencyHistograms with striped buckets, so the session
+ * threads, event loops and shards that update them take no lock and seldom share a cache line. Messages and bytes written
+ * come from WriteStats, drops and slow-consumer disconnects from OutboundQueue; queue depths are
+ * read from the registered sessions when asked for.
+ *
+ * Two latencies are recorded. The fan-out time is how long a broadcast takes to queue a line for
+ * every member of the room. The delivery latency runs from reading a chat line off the sender's
+ * socket to the moment the last recipient's copy has been written to its socket; see
+ * OutboundMessage.trackDelivery.
+ *
+ * For compression the cost and the gain are counted apart: the time spent deflating each message
+ * once, and the bytes saved on every write of a compressed frame to a recipient.
+ *
+ * Lines and frames a client sent too fast, or too large, are counted as they are dropped; see
+ * RateLimiter and --max-line-bytes.
+ *
+ * Connections are counted as they are accepted and again as their handshake ends, with the time
+ * from the accept to the registered session, so a reconnect storm after a restart shows up as
+ * connects and handshakes per second, and as handshakes failed or refused; see HandshakeStage.
+ *
+ * With --tls, TLS handshakes are counted apart by whether they resumed a session, with their time;
+ * a rising share of full handshakes after a restart is what resumption is there to avoid.
+ *
+ * Server.run registers the metrics under com.myapp:type=ServerMetrics, where jconsole or any JMX
+ * client can read them, and starts a sampler that turns the totals into per second rates.
+ */
@@ -0,0 +1,104 @@
+package com.myapp;
+
+public interface ServerMetricsMXBean {
+
+    int getRegisteredClients();
+
+    long getOpenConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    double getConnectsPerSecond();
+
+    double getHandshakesPerSecond();
+
+    // Handshakes that timed out or went wrong, and connections closed because the handshake stage was full
+    long getHandshakesFailed();
+
+    long getHandshakesRefused();
+
+    // TLS handshakes that negotiated a new session, and those that resumed a cached one
+    long getTlsFullHandshakes();
+
+    long getTlsResumedHandshakes();
+
+    double getWriteCallsPerMessage();
+
+    long getBroadcasts();
+
+    long getDeliveries();
+
+    double getFanoutP50Micros();
+
+    double getFanoutP99Micros();
+
+    double getDeliveryLatencyP50Millis();
+
+    double getDeliveryLatencyP99Millis();
+
+    double getDeliveryLatencyP999Millis();
+
+    double getDeliveryLatencyMaxMillis();
+
+    long getCompressions();
+
+    double getCompressionMillis();
+
+    long getCompressedWrites();
+
+    long getCompressionBytesSaved();
+
+    long getRateLimitedMessages();
+
+    long getTooLargeMessages();
+
+    long getHeartbeatPingsSent();
+
+    long getIdleConnectionsClosed();
+
+    // Chat lines retained by the search index, 0 without one
+    int getSearchIndexSize();
+
+    long getSearches();
+
+    // Private lines waiting for offline users, 0 without a mailbox
+    int getMailboxQueued();
+
+    long getMailboxDelivered();
+
+    // Broadcasts published to the shards that some shard has not fanned out yet
+    long getBroadcastShardBacklog();
+
+    int getOutboundQueuedTotal();
+
+    int getOutboundQueueDepthMax();
+
+    long getMessagesDropped();
+
+    long getSlowConsumersDisconnected();
+
+    // The queue depth of one client, -1 if no such user is connected
+    int getOutboundQueueDepth(String username);
+
+    void resetHistograms();
+}
+
+/**
+ * ServerMetricsMXBean is the JMX interface of ServerMetrics, registered as
+ * com.myapp:type=ServerMetrics. Latencies are percentiles of everything recorded since the start
+ * or the last resetHistograms().
+ */
@@ -0,0 +1,273 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+public class TlsConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Records wrapped before a write, so several small messages still go out in one system call
+    private static final int RECORDS_PER_WRITE = 4;
+
+    private final SSLEngine engine;
+    // Bytes read from the socket that have not been unwrapped yet, in fill mode
+    private ByteBuffer netIn;
+    // Records wrapped but not yet written to the socket, in fill mode
+    private ByteBuffer netOut;
+    // Plaintext unwrapped from a record that did not fit in the caller's buffer, in drain mode
+    private ByteBuffer appIn;
+    private boolean handshakeDone;
+    private boolean inboundClosed;
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private final long handshakeStart = System.nanoTime();
+
+    public TlsConnection(SSLEngine engine) throws SSLException {
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize * RECORDS_PER_WRITE);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.appIn.flip();
+        engine.beginHandshake();
+    }
+
+    // Read what the socket has and unwrap it into dst, shaking hands on the way; -1 once the peer has closed
+    public int read(SocketChannel channel, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        if (!inboundClosed && channel.read(netIn) < 0) {
+            inboundClosed = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // The peer closed without a close_notify, what was unwrapped is still good
+            }
+        }
+        unwrap(channel, dst);
+        int produced = dst.position() - start;
+        return produced == 0 && inboundClosed && !appIn.hasRemaining() ? -1 : produced;
+    }
+
+    // Whether unwrapped plaintext is waiting because dst was full; call read again once it has room
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining();
+    }
+
+    private void unwrap(SocketChannel channel, ByteBuffer dst) throws IOException {
+        netIn.flip();
+        try {
+            while (true) {
+                if (appIn.hasRemaining()) {
+                    moveInto(dst);
+                    if (appIn.hasRemaining()) {
+                        // The caller's buffer is full, the rest waits here
+                        return;
+                    }
+                }
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (!wrapHandshake(channel)) {
+                        // The socket does not take the handshake yet, the caller flushes once it is writable
+                        return;
+                    }
+                    continue;
+                }
+                if (!netIn.hasRemaining()) {
+                    return;
+                }
+                appIn.clear();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+                finishedHandshake(result);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // Only part of a record is here, make sure the rest fits and wait for it
+                        if (netIn.limit() == netIn.capacity()) {
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        }
+                        return;
+                    case BUFFER_OVERFLOW:
+                        appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2,
+                                engine.getSession().getApplicationBufferSize()));
+                        appIn.flip();
+                        break;
+                    case CLOSED:
+                        inboundClosed = true;
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // Wrap as much of srcs as fits and write it out; returns the plaintext bytes taken, which may be 0 mid-handshake
+    public long write(SocketChannel channel, ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush(channel) || !handshakeDone) {
+            return 0;
+        }
+        long consumed = 0;
+        while (true) {
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("The TLS session is closed");
+            }
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // A batch of records is ready, write it and carry on if the socket took all of it
+                if (!writeOut(channel)) {
+                    return consumed;
+                }
+            } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                // Everything is wrapped
+                writeOut(channel);
+                return consumed;
+            }
+        }
+    }
+
+    // Write the records already wrapped and whatever the handshake needs to send next, true once nothing is left
+    public boolean flush(SocketChannel channel) throws IOException {
+        return writeOut(channel) && continueHandshake(channel);
+    }
+
+    // Write the records already wrapped, true once nothing is left
+    private boolean writeOut(SocketChannel channel) throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            long written = channel.write(netOut);
+            if (!engine.getUseClientMode()) {
+                WriteStats.writeCall(written);
+            }
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut.position() > 0;
+    }
+
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    // Run whatever the handshake needs from this side before application data can be wrapped
+    private boolean continueHandshake(SocketChannel channel) throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!wrapHandshake(channel)) {
+                    return false;
+                }
+            } else {
+                return true;
+            }
+        }
+    }
+
+    // Wrap and write one handshake message, false if the socket could not take all of it
+    private boolean wrapHandshake(SocketChannel channel) throws IOException {
+        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            if (!writeOut(channel)) {
+                return false;
+            }
+            result = engine.wrap(EMPTY, netOut);
+        }
+        finishedHandshake(result);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && !engine.isOutboundDone()) {
+            throw new SSLException("The TLS session is closed");
+        }
+        return writeOut(channel);
+    }
+
+    private void finishedHandshake(SSLEngineResult result) {
+        if (!handshakeDone && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeDone = true;
+            if (!engine.getUseClientMode()) {
+                ServerMetrics.tlsHandshake(System.nanoTime() - handshakeStart,
+                        TlsContext.resumed(engine.getSession(), handshakeStartMillis));
+            }
+        }
+    }
+
+    // The key exchange and certificate checks, run right here: they are short, and a pool would only add hops
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void moveInto(ByteBuffer dst) {
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+    }
+
+    // A larger copy of a buffer in drain mode, left in drain mode
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, atLeast));
+        larger.put(buffer);
+        larger.flip();
+        return larger;
+    }
+
+    // Send close_notify if the socket takes it right away; the channel is closed by the caller
+    public void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            while (!engine.isOutboundDone()) {
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+            }
+            writeOut(channel);
+        } catch (IOException e) {
+            // The peer finds out when the connection closes anyway
+        }
+    }
+}
+
+/**
+ * TlsConnection drives an SSLEngine over a non-blocking SocketChannel, for NioClientHandler on the
+ * server and for Client. It stands between the caller's buffers and the channel: read() unwraps what
+ * the socket has into the caller's read buffer, and write() wraps the caller's gather array and
+ * writes the records, taking the place of channel.read and the gathering channel.write.
+ *
+ * The handshake runs inside those calls, on the thread that owns the channel. Reads answer the peer's
+ * handshake messages as they arrive, and the engine's delegated tasks run inline. write() takes no
+ * application data until the handshake is done, so the caller waits for readability rather than
+ * spinning on a writable socket, and flushes again once isHandshakeDone() turns true.
+ *
+ * Records are wrapped into a buffer of a few records before they are written, so lines gathered for
+ * one write still leave in one system call. When the socket does not take all of them the rest
+ * stays here, hasPendingOutput() says so, and flush() writes it once the socket is writable again.
+ * The plaintext of a record that does not fit in the caller's buffer is kept too, and
+ * hasBufferedInput() tells the caller to read again after making room.
+ *
+ * The server side records each finished handshake in ServerMetrics, as full or resumed.
+ */
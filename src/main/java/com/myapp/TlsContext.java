@@ -0,0 +1,258 @@
+package com.myapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class TlsContext {
+    // Where a self-signed keystore is generated when none is configured, shared by the user's servers and clients
+    static final String SELF_SIGNED_DIRECTORY = ".chatapp";
+    static final String SELF_SIGNED_FILE = "selfsigned.p12";
+    static final String DEFAULT_PASSWORD = "changeit";
+    private static final String ALIAS = "chatapp";
+    private static final String PROTOCOL = "TLS";
+    private static final long KEYTOOL_TIMEOUT_SECONDS = 60;
+
+    // One client context per trust store, so every client of the process shares its session cache
+    private static final Map<Path, TlsContext> clients = new ConcurrentHashMap<>();
+
+    private final SSLContext context;
+
+    private TlsContext(SSLContext context) {
+        this.context = context;
+    }
+
+    // The server's context as configured, null unless --tls is on; generates a self-signed keystore if none is given
+    public static TlsContext server(ServerConfig config) throws IOException {
+        if (!config.isTls()) {
+            return null;
+        }
+        char[] password = config.getTlsKeystorePassword().toCharArray();
+        Path keystore;
+        if (config.getTlsKeystore() != null) {
+            keystore = Paths.get(config.getTlsKeystore());
+        } else {
+            keystore = selfSigned(defaultKeystore(), password);
+            System.out.println("tls: WARNING no --tls-keystore given, serving the self-signed certificate in "
+                    + keystore + "; clients only trust it if told to, use a real keystore outside local tests");
+        }
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(keyManagers.getKeyManagers(), null, null);
+            // Sessions the server remembers, a client coming back within the timeout skips the key exchange
+            context.getServerSessionContext().setSessionCacheSize(config.getTlsSessionCacheSize());
+            context.getServerSessionContext().setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+            return new TlsContext(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use the keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // A client context trusting the certificates in the given store, created once per store
+    public static TlsContext client(Path trustStore, String password) throws IOException {
+        Path key = trustStore.toAbsolutePath().normalize();
+        TlsContext existing = clients.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            // A keystore holding the server's own key works too, its certificate is trusted
+            trustManagers.init(load(trustStore, password.toCharArray()));
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(null, trustManagers.getTrustManagers(), null);
+            TlsContext created = new TlsContext(context);
+            existing = clients.putIfAbsent(key, created);
+            return existing != null ? existing : created;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use the trust store " + trustStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // A client context trusting the self-signed certificate a local server generates, for tests and local use
+    public static TlsContext localClient() throws IOException {
+        return client(selfSigned(defaultKeystore(), DEFAULT_PASSWORD.toCharArray()), DEFAULT_PASSWORD);
+    }
+
+    // The self-signed keystore's path, in a directory of the user's home only they may enter
+    static Path defaultKeystore() throws IOException {
+        Path directory = Paths.get(System.getProperty("user.home"), SELF_SIGNED_DIRECTORY);
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            if (isPosix()) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+                        EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                                PosixFilePermission.OWNER_EXECUTE)));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        checkPrivate(directory);
+        return directory.resolve(SELF_SIGNED_FILE);
+    }
+
+    // Generate a self-signed certificate for localhost with keytool, unless the file is already there
+    static synchronized Path selfSigned(Path keystore, char[] password) throws IOException {
+        if (Files.exists(keystore, LinkOption.NOFOLLOW_LINKS)) {
+            // Whoever else could have written it could have planted their own key
+            checkPrivate(keystore);
+            return keystore;
+        }
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Path partial = keystore.resolveSibling(keystore.getFileName() + ".tmp");
+        Path output = keystore.resolveSibling(keystore.getFileName() + ".keytool.log");
+        Files.deleteIfExists(partial);
+        // An EC key makes the full handshake a good deal cheaper than RSA for the server
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "EC", "-groupname", "secp256r1", "-sigalg", "SHA256withECDSA",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "365",
+                "-storetype", "PKCS12", "-keystore", partial.toString(),
+                "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true)
+                // To a file rather than a pipe, so waiting for keytool never depends on reading it
+                .redirectOutput(output.toFile())
+                .start();
+        try {
+            if (!process.waitFor(KEYTOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("keytool did not generate " + keystore
+                        + " within " + KEYTOOL_TIMEOUT_SECONDS + " s");
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("keytool could not generate " + keystore + ": "
+                        + Files.readString(output).trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new IOException("Interrupted while generating " + keystore, e);
+        } finally {
+            Files.deleteIfExists(output);
+        }
+        if (isPosix()) {
+            Files.setPosixFilePermissions(partial,
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        }
+        // Another process may have generated it meanwhile, either file will do
+        Files.move(partial, keystore, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("generated a self-signed certificate for localhost in " + keystore);
+        return keystore;
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    // Refuse a file or directory another user owns or may write to, or, for the keystore, read
+    private static void checkPrivate(Path path) throws IOException {
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal self = path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(self)) {
+            throw new IOException(path + " belongs to " + owner.getName() + ", not to " + self.getName());
+        }
+        if (isPosix()) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            for (PosixFilePermission permission : permissions) {
+                if (permission.name().startsWith("GROUP_") || permission.name().startsWith("OTHERS_")) {
+                    throw new IOException(path + " is open to other users ("
+                            + PosixFilePermissions.toString(permissions) + "), remove it or make it private to its owner");
+                }
+            }
+        }
+    }
+
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+
+    // An engine for one accepted connection
+    public SSLEngine serverEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // An engine for a connection to host:port; its cached session, if any, is offered for resumption
+    public SSLEngine clientEngine(String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        // Check the certificate is for the host connected to, as a browser would
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    // Drop the client sessions cached so far, so the next connections run full handshakes; for benchmarks
+    void forgetSessions() {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    // The listening socket of the blocking engines, unbound; accepted sockets shake hands on their first read
+    public SSLServerSocket serverSocket() throws IOException {
+        return (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+    }
+
+    // Whether a session that just finished its handshake was resumed rather than negotiated from scratch
+    static boolean resumed(SSLSession session, long handshakeStartMillis) {
+        // A resumed session keeps the creation time of the one it resumes
+        return session.getCreationTime() < handshakeStartMillis;
+    }
+}
+
+/**
+ * TlsContext holds the SSLContext behind the optional TLS transport, turned on with --tls=true.
+ *
+ * The server loads its key and certificate from the PKCS12 --tls-keystore. Without one it warns and
+ * generates a self-signed certificate for localhost with the JDK's keytool, once, in ~/.chatapp,
+ * where localClient() finds it too; that is meant for local tests only. The directory and the file
+ * are private to their owner, and both are refused if another user owns them or may get at them,
+ * since whoever could plant the file would have the server serve their key and clients trust it. Clients trust whatever
+ * certificates their trust store holds and check that the server's is for the host they connected to.
+ *
+ * A full handshake costs the server a key exchange and a signature. Resumption skips both: the
+ * server remembers up to --tls-session-cache-size sessions for --tls-session-timeout-seconds, and
+ * with TLS 1.3 also hands out session tickets. Clients share one context per trust store, so a
+ * reconnecting client, or any other client of the same process, offers the session cached for that
+ * host and port. ServerMetrics counts full and resumed handshakes apart.
+ *
+ * The NIO paths drive an SSLEngine through TlsConnection, the blocking engines use the SSLSocket
+ * made by serverSocket().
+ */
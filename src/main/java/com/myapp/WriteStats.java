@@ -0,0 +1,66 @@
+package com.myapp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class WriteStats {
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder writeCalls = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+
+    private WriteStats() {
+    }
+
+    public static void messagesWritten(int count) {
+        messages.add(count);
+    }
+
+    // One write on a socket, which is one system call
+    public static void writeCall(long byteCount) {
+        writeCalls.increment();
+        bytes.add(byteCount);
+    }
+
+    public static long messages() {
+        return messages.sum();
+    }
+
+    public static long writeCalls() {
+        return writeCalls.sum();
+    }
+
+    public static long bytes() {
+        return bytes.sum();
+    }
+
+    public static double writeCallsPerMessage() {
+        long messageCount = messages.sum();
+        return messageCount == 0 ? 0 : (double) writeCalls.sum() / messageCount;
+    }
+
+    public static String summary() {
+        return String.format("messages=%d writes=%d bytes=%d writes/message=%.3f",
+                messages(), writeCalls(), bytes(), writeCallsPerMessage());
+    }
+
+    // Wrap a socket stream so every write that reaches it is counted
+    public static OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                writeCall(len);
+            }
+        };
+    }
+}
+
+/**
+ * WriteStats counts how the server writes to its clients: lines written, socket writes and bytes.
+ *
+ * Outbound lines are coalesced, so writes/message drops well below one under bursty traffic;
+ * this is the number to watch when tuning --flush-bytes and --flush-delay-micros. Counters are
+ * LongAdders, cheap to update from many writer threads at once.
+ */
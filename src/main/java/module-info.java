@@ -1,6 +1,7 @@
 module com.myapp {
     requires transitive javafx.controls;
     requires transitive javafx.fxml;
+    requires java.management;
 
     opens com.myapp to javafx.fxml;
     exports com.myapp;